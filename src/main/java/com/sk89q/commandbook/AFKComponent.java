@@ -1,8 +1,9 @@
 package com.sk89q.commandbook;
 
+import com.sk89q.commandbook.afk.ActivityTracker;
 import com.sk89q.commandbook.session.PersistentSession;
 import com.sk89q.commandbook.session.SessionComponent;
-import com.sk89q.commandbook.util.LocationUtil;
+import com.sk89q.commandbook.util.TimingWheel;
 import com.sk89q.commandbook.util.entity.player.PlayerUtil;
 import com.sk89q.minecraft.util.commands.Command;
 import com.sk89q.minecraft.util.commands.CommandContext;
@@ -19,6 +20,7 @@
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.EntityDamageByEntityEvent;
 import org.bukkit.event.entity.EntityTargetEvent;
@@ -27,7 +29,7 @@
 import org.bukkit.event.inventory.InventoryOpenEvent;
 import org.bukkit.event.player.*;
 
-import java.util.Collection;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -40,6 +42,16 @@ public class AFKComponent extends BukkitComponent implements Runnable, Listener
     private final Server server = CommandBook.server();
 
     @InjectComponent private SessionComponent sessions;
+    private final ActivityTracker activity = new ActivityTracker();
+    private TimingWheel<AFKSession> checks;
+    private final Set<AFKSession> away = new LinkedHashSet<AFKSession>();
+    private final Queue<AFKSession> kickQueue = new ArrayDeque<AFKSession>();
+    private int kickTaskId = -1;
+
+    /**
+     * How long a player's auto exempt permission is cached for, in milliseconds
+     */
+    private static final long EXEMPT_CACHE_TIME = TimeUnit.MINUTES.toMillis(1);
 
     private LocalConfiguration config;
 
@@ -47,6 +59,11 @@ public class AFKComponent extends BukkitComponent implements Runnable, Listener
     public void enable() {
 
         config = configure(new LocalConfiguration());
+        checks = new TimingWheel<AFKSession>(1000, System.currentTimeMillis());
+        for (Player player : server.getOnlinePlayers()) {
+            activity.register(player);
+            scheduleCheck(player);
+        }
 
         CommandBook.registerEvents(this);
         if (config.useMovementEvent) {
@@ -62,6 +79,11 @@ public void reload() {
 
         super.reload();
         configure(config);
+        // The AFK time or permissions may have changed, so every player is checked again
+        for (Player player : server.getOnlinePlayers()) {
+            getSession(player).autoExemptCheckTime = 0;
+            scheduleCheck(player);
+        }
     }
 
     private static class LocalConfiguration extends ConfigurationBase {
@@ -72,10 +94,16 @@ private static class LocalConfiguration extends ConfigurationBase {
         public double movementThreshold = .04;
         @Setting("sneak-movement-threshold")
         public double sneakMovementThreshold = .004;
+        @Setting("movement-sample-fraction")
+        public double movementSampleFraction = .25;
         @Setting("afk-minutes")
         public int afkMinutes = 3;
         @Setting("afk-kick-minutes")
         public int afkKickMinutes = 60;
+        @Setting("afk-kick-free-fraction")
+        public double afkKickFreeFraction = .2;
+        @Setting("afk-kicks-per-tick")
+        public int afkKicksPerTick = 1;
         @Setting("afk-general-sleep-ignored")
         public boolean afkGeneralSleepIgnored = true;
         @Setting("afk-command-sleep-ignored")
@@ -118,7 +146,7 @@ public boolean isAfk(long time) {
      */
     public boolean shouldKick(Player player) {
 
-        return shouldKick(sessions.getSession(AFKSession.class, player).getLastUpdate());
+        return shouldKick(getSession(player).getLastUpdate());
     }
 
     /**
@@ -129,14 +157,26 @@ public boolean shouldKick(Player player) {
      */
     public boolean shouldKick(long time) {
 
-        if (config.afkKickMinutes < 1) return false;
+        long duration = getKickDuration();
+        return duration != -1 && time != 0 && System.currentTimeMillis() - time >= duration;
+    }
+
+    /**
+     * Gets how long a player must be idle before they may be kicked, which gets
+     * shorter as the server fills up.
+     *
+     * @return the duration in milliseconds, or -1 if players are never kicked
+     */
+    private long getKickDuration() {
+
+        if (config.afkKickMinutes < 1) return -1;
 
         double maxP = server.getMaxPlayers();
         double curP = server.getOnlinePlayers().size();
 
-        double fraction = ((maxP - curP) + maxP * .2) / maxP;
+        double fraction = ((maxP - curP) + maxP * config.afkKickFreeFraction) / maxP;
         int duration = (int) Math.max(config.afkMinutes + 2, Math.min(config.afkKickMinutes, config.afkKickMinutes * fraction));
-        return time != 0 && System.currentTimeMillis() - time >= TimeUnit.MINUTES.toMillis(duration);
+        return TimeUnit.MINUTES.toMillis(duration);
     }
 
     /**
@@ -147,7 +187,7 @@ public boolean shouldKick(long time) {
      */
     public boolean canIgnoreSleep(Player player) {
 
-        AFKSession session = sessions.getSession(AFKSession.class, player);
+        AFKSession session = getSession(player);
         return (session.isRequested() && canIgnoreSleep(true)) || (isAfk(session.getLastUpdate()) && canIgnoreSleep(false));
     }
 
@@ -170,7 +210,7 @@ public boolean canIgnoreSleep(boolean requested) {
      */
     public boolean canProtect(Player player) {
 
-        AFKSession session = sessions.getSession(AFKSession.class, player);
+        AFKSession session = getSession(player);
         return (session.isRequested() && canProtect(true)) || (isAfk(session.getLastUpdate()) && canProtect(false));
     }
 
@@ -192,81 +232,257 @@ public boolean canProtect(boolean requested) {
      */
     public void update(Player player) {
 
+        activity.update(player);
+    }
+
+    /**
+     * Gets a player's session, bringing its last active time up to date
+     * and removing the idle message if they have been active since it was set.
+     *
+     * @param player the player
+     * @return the player's session
+     */
+    private AFKSession getSession(Player player) {
+
         AFKSession session = sessions.getSession(AFKSession.class, player);
+        sync(session, player);
+        return session;
+    }
+
+    private void sync(AFKSession session, Player player) {
+
+        long lastActivity = activity.getLastActivity(player);
+        if (lastActivity > session.getLastUpdate()) {
+            session.setLastUpdate(lastActivity);
+            if (lastActivity > session.getIdleStatusTime()) {
+                session.setIdleStatus(null);
+            }
+        }
+    }
+
+    /**
+     * Schedules a player's next AFK check for when they would pass the AFK time if they stay idle.
+     */
+    private void scheduleCheck(AFKSession session) {
+
+        long now = System.currentTimeMillis();
+        long lastUpdate = session.getLastUpdate() == 0 ? now : session.getLastUpdate();
+        long deadline = Math.max(now, lastUpdate + TimeUnit.MINUTES.toMillis(config.afkMinutes));
+        if (deadline != session.nextCheck) {
+            session.nextCheck = deadline;
+            checks.schedule(session, deadline);
+        }
+    }
 
-        // Update the time and remove the idle message
-        session.setLastUpdate(System.currentTimeMillis());
-        session.setIdleStatus(null);
+    private void scheduleCheck(Player player) {
 
+        AFKSession session = getSession(player);
+        away.remove(session);
+        session.nextCheck = 0;
+        scheduleCheck(session);
+    }
+
+    /**
+     * Determines whether a player is exempt from being automatically marked as AFK.
+     * The result is cached until the player joins or changes world, the component
+     * is reloaded, or {@link #EXEMPT_CACHE_TIME} has passed.
+     */
+    private boolean isAutoExempt(AFKSession session, Player player) {
+
+        long now = System.currentTimeMillis();
+        if (session.autoExemptCheckTime == 0 || now - session.autoExemptCheckTime >= EXEMPT_CACHE_TIME) {
+            session.autoExempt = player.hasPermission("commandbook.away.autoexempt");
+            session.autoExemptCheckTime = now;
+        }
+        return session.autoExempt;
     }
 
+    /**
+     * Checks the players whose AFK time may have passed and the players who are away. Players
+     * who are neither are not looked at until their next check is due.
+     */
     @Override
     public void run() {
 
-        Collection<? extends Player> onlinePlayers = config.npcCompatibilty ? server.getOnlinePlayers() : null;
-        for (final AFKSession session : sessions.getSessions(AFKSession.class).values()) {
+        long now = System.currentTimeMillis();
+        List<AFKSession> due = new ArrayList<AFKSession>();
+        checks.advance(now, due);
+        for (AFKSession session : due) {
+            // Checks that were superseded by a later one are skipped
+            if (session.nextCheck > now || away.contains(session)) continue;
+            check(session);
+        }
 
-            if (session == null) continue;
-            final Player target = session.getPlayer();
-            if (target == null || !session.getPlayer().isValid()) continue;
+        for (AFKSession session : new ArrayList<AFKSession>(away)) {
+            check(session);
+        }
 
-            if (onlinePlayers != null && (target.hasMetadata("NPC") || !onlinePlayers.contains(target))) {
-                continue;
+        planKicks(now);
+    }
+
+    /**
+     * Picks the away players to kick this cycle. Players idle for longer than the kick
+     * time are always kicked. When the server is fuller than the free fraction allows,
+     * players idle for longer than the shortened kick time are kicked too, most idle
+     * first, but only as many as are needed to free that many slots. The kicks
+     * themselves are spread over the following ticks.
+     */
+    private void planKicks(long now) {
+
+        long duration = getKickDuration();
+        if (duration == -1 || away.isEmpty()) return;
+
+        long maxDuration = TimeUnit.MINUTES.toMillis(config.afkKickMinutes);
+        List<AFKSession> candidates = new ArrayList<AFKSession>();
+        for (AFKSession session : away) {
+            if (session.kickPending || session.getLastUpdate() == 0) continue;
+            long idle = now - session.getLastUpdate();
+            if (idle >= maxDuration) {
+                queueKick(session);
+            } else if (idle >= duration) {
+                candidates.add(session);
             }
+        }
+        if (candidates.isEmpty()) return;
+
+        int maxPlayers = server.getMaxPlayers();
+        int freeSlots = maxPlayers - server.getOnlinePlayers().size() + kickQueue.size();
+        int needed = (int) Math.ceil(maxPlayers * config.afkKickFreeFraction) - freeSlots;
+        if (needed <= 0) return;
+
+        Collections.sort(candidates, new Comparator<AFKSession>() {
+            @Override
+            public int compare(AFKSession a, AFKSession b) {
+                // Least recently active first
+                return a.getLastUpdate() < b.getLastUpdate() ? -1 : (a.getLastUpdate() == b.getLastUpdate() ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < needed && i < candidates.size(); i++) {
+            queueKick(candidates.get(i));
+        }
+    }
 
-            boolean passedTime = isAfk(session.getLastUpdate());
-            if (session.isRequested() || (passedTime && !target.hasPermission("commandbook.away.autoexempt"))) {
-                if (shouldKick(session.getLastUpdate())) {
-                    // Restore sleep ignored setting
-                    if (session.isSleepIgnored()) {
-                        target.setSleepingIgnored(false);
-                        session.setSleepIgnored(false);
-                    }
-
-                    server.getScheduler().runTaskLater(inst, new Runnable() {
-
-                        @Override
-                        public void run() {
-
-                            target.kickPlayer("Inactivity - " + (System.currentTimeMillis() - session.getLastUpdate()) / 60000 + " Minutes");
-                        }
-                    }, 1);
-                } else if (!session.isAFK()) {
-
-                    // Grey out list name
-                    String name = target.getName();
-                    session.setLastTabName(target.getPlayerListName());
-                    target.setPlayerListName(ChatColor.DARK_GRAY + name.substring(0, Math.min(14, name.length())));
-
-                    // Mark the player as AFK
-                    session.setAFK(true);
-                    target.sendMessage(ChatColor.YELLOW + "You are now marked as AFK.");
-                }
+    private void queueKick(AFKSession session) {
+
+        session.kickPending = true;
+        kickQueue.add(session);
+        if (kickTaskId == -1) {
+            kickTaskId = server.getScheduler().scheduleSyncRepeatingTask(inst, new Runnable() {
 
-                // Check and set sleep ignored
-                if (canIgnoreSleep(session.isRequested()) || (passedTime && canIgnoreSleep(false))) {
-                    if (!target.isSleepingIgnored()) {
-                        target.setSleepingIgnored(true);
-                        session.setSleepIgnored(true);
-                    }
+                @Override
+                public void run() {
+
+                    drainKicks();
                 }
+            }, 1, 1);
+        }
+    }
+
+    /**
+     * Kicks up to {@link LocalConfiguration#afkKicksPerTick} queued players, skipping
+     * any who have left or been active since they were queued.
+     */
+    private void drainKicks() {
+
+        int kicked = 0;
+        while (kicked < Math.max(1, config.afkKicksPerTick) && !kickQueue.isEmpty()) {
+            AFKSession session = kickQueue.poll();
+            session.kickPending = false;
+            Player target = session.getPlayer();
+            if (target == null || !target.isOnline()
+                    || activity.getLastActivity(target) > session.getLastUpdate()) {
+                continue;
+            }
+
+            // Restore sleep ignored setting
+            if (session.isSleepIgnored()) {
+                target.setSleepingIgnored(false);
+                session.setSleepIgnored(false);
+            }
+
+            target.kickPlayer("Inactivity - " + (System.currentTimeMillis() - session.getLastUpdate()) / 60000 + " Minutes");
+            kicked++;
+        }
+
+        if (kickQueue.isEmpty()) {
+            server.getScheduler().cancelTask(kickTaskId);
+            kickTaskId = -1;
+        }
+    }
 
-            } else if (session.isAFK()) {
+    private void check(AFKSession session) {
+
+        Player target = session.getPlayer();
+        if (target == null || !target.isOnline()) {
+            away.remove(session); // They'll be scheduled again when they join
+            return;
+        }
+        if (!target.isValid()) {
+            // Dead players are invalid until they respawn, so look at them again next cycle
+            if (!away.contains(session)) {
+                session.nextCheck = System.currentTimeMillis() + 1000;
+                checks.schedule(session, session.nextCheck);
+            }
+            return;
+        }
+
+        if (config.npcCompatibilty && (target.hasMetadata("NPC") || server.getPlayer(target.getUniqueId()) != target)) {
+            away.remove(session);
+            return;
+        }
+        sync(session, target);
 
-                // Fix list name
-                String lastName = session.getLastTabName();
-                target.setPlayerListName(lastName == null ? target.getName() : lastName);
+        boolean passedTime = isAfk(session.getLastUpdate());
+        if (session.isRequested() || (passedTime && !isAutoExempt(session, target))) {
+            if (!session.isAFK()) {
 
-                // Restore sleep ignored setting
-                if (session.isSleepIgnored()) {
-                    target.setSleepingIgnored(false);
-                    session.setSleepIgnored(false);
+                // Grey out list name
+                String name = target.getName();
+                session.setLastTabName(target.getPlayerListName());
+                target.setPlayerListName(ChatColor.DARK_GRAY + name.substring(0, Math.min(14, name.length())));
+
+                // Mark the player as AFK
+                session.setAFK(true);
+                target.sendMessage(ChatColor.YELLOW + "You are now marked as AFK.");
+            }
+
+            // Check and set sleep ignored
+            if (canIgnoreSleep(session.isRequested()) || (passedTime && canIgnoreSleep(false))) {
+                if (!target.isSleepingIgnored()) {
+                    target.setSleepingIgnored(true);
+                    session.setSleepIgnored(true);
                 }
+            }
+
+            // Away players are checked every cycle, so they notice activity and can be kicked
+            away.add(session);
+            session.nextCheck = Long.MAX_VALUE;
+            return;
+
+        } else if (session.isAFK()) {
 
-                // Mark the player as not AFK
-                session.setAFK(false);
-                target.sendMessage(ChatColor.YELLOW + "You are no longer marked as AFK.");
+            // Fix list name
+            String lastName = session.getLastTabName();
+            target.setPlayerListName(lastName == null ? target.getName() : lastName);
+
+            // Restore sleep ignored setting
+            if (session.isSleepIgnored()) {
+                target.setSleepingIgnored(false);
+                session.setSleepIgnored(false);
             }
+
+            // Mark the player as not AFK
+            session.setAFK(false);
+            target.sendMessage(ChatColor.YELLOW + "You are no longer marked as AFK.");
+        }
+
+        away.remove(session);
+        if (passedTime) {
+            // Exempt players are looked at again after the exemption could have changed
+            session.nextCheck = System.currentTimeMillis() + EXEMPT_CACHE_TIME;
+            checks.schedule(session, session.nextCheck);
+        } else {
+            scheduleCheck(session);
         }
     }
 
@@ -288,7 +504,11 @@ public void afk(CommandContext args, CommandSender sender) throws CommandExcepti
                     status = "";
                 }
             }
-            sessions.getSession(AFKSession.class, player).setIdleStatus(status);
+            AFKSession session = getSession(player);
+            session.setIdleStatus(status);
+            // Mark them as away straight away rather than at their next check
+            session.nextCheck = System.currentTimeMillis();
+            checks.schedule(session, session.nextCheck);
 
             player.sendMessage(ChatColor.YELLOW
                     + (status.isEmpty() ? "Set as away" : "Set away status to \"" + status + "\"")
@@ -307,10 +527,30 @@ public void onEntityTargetPlayer(EntityTargetEvent event) {
         }
     }
 
-    @EventHandler
+    @EventHandler(priority = EventPriority.LOWEST)
     public void onPlayerJoin(PlayerJoinEvent event) {
 
-        update(event.getPlayer());
+        // Registered before other plugins' join handlers can cause activity
+        activity.register(event.getPlayer());
+        getSession(event.getPlayer()).autoExemptCheckTime = 0;
+        scheduleCheck(event.getPlayer());
+    }
+
+    @EventHandler
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+
+        // Permissions are often set per world
+        getSession(event.getPlayer()).autoExemptCheckTime = 0;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+
+        // Keep the last active time in the session before the slot is reused
+        AFKSession session = sessions.getSession(AFKSession.class, event.getPlayer());
+        sync(session, event.getPlayer());
+        away.remove(session);
+        activity.unregister(event.getPlayer());
     }
 
     @EventHandler
@@ -365,13 +605,10 @@ public class MovementListener implements Listener {
         @EventHandler
         public void onMoveChange(PlayerMoveEvent event) {
 
-            Player player = event.getPlayer();
-            double distanceSQ = LocationUtil.distanceSquared2D(event.getFrom(), event.getTo());
-
-            if (distanceSQ > config.movementThreshold
-                    || (player.isSneaking() && distanceSQ > config.sneakMovementThreshold)) {
-                update(player);
-            }
+            // Movement is only sampled once a fraction of the AFK time has passed since the last activity
+            long sampleDelay = (long) (TimeUnit.MINUTES.toMillis(config.afkMinutes) * config.movementSampleFraction);
+            activity.move(event.getPlayer(), event.getFrom(), event.getTo(),
+                    config.movementThreshold, config.sneakMovementThreshold, sampleDelay);
         }
     }
 
@@ -381,6 +618,11 @@ public static class AFKSession extends PersistentSession {
         @Setting("idle-status") private String idleStatus = "null";
         private String lastTabName;
         private long lastUpdate = 0;
+        private long idleStatusTime = 0;
+        private long nextCheck = 0;
+        private boolean kickPending = false;
+        private boolean autoExempt = false;
+        private long autoExemptCheckTime = 0;
         private boolean protect = false;
         private boolean sleepIgnored = false;
         private boolean awayFromKeyboard = false;
@@ -400,6 +642,11 @@ public String getIdleStatus() {
 
         public void setIdleStatus(String status) {
             this.idleStatus = status == null ? "null" : status;
+            this.idleStatusTime = System.currentTimeMillis();
+        }
+
+        public long getIdleStatusTime() {
+            return idleStatusTime;
         }
 
         public String getLastTabName() {
@@ -81,7 +81,8 @@ public static CommandBook inst() {
     }
 
     public static Logger logger() {
-        return inst().getLogger();
+        // Falls back to a plain logger when used without the plugin, such as in tests
+        return instance != null ? instance.getLogger() : Logger.getLogger("CommandBook");
     }
 
     public static void registerEvents(Listener listener) {
@@ -19,9 +19,12 @@
 package com.sk89q.commandbook;
 
 import com.sk89q.commandbook.commands.PaginatedResult;
+import com.sk89q.commandbook.cooldowns.CooldownStore;
 import com.sk89q.commandbook.session.PersistentSession;
 import com.sk89q.commandbook.session.SessionComponent;
+import com.sk89q.commandbook.session.SessionType;
 import com.sk89q.commandbook.util.InputUtil;
+import com.sk89q.commandbook.util.entity.player.UUIDUtil;
 import com.sk89q.minecraft.util.commands.Command;
 import com.sk89q.minecraft.util.commands.CommandContext;
 import com.sk89q.minecraft.util.commands.CommandException;
@@ -34,11 +37,13 @@
 import com.zachsthings.libcomponents.config.Setting;
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.command.PluginCommand;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
@@ -46,43 +51,73 @@
 import static com.sk89q.commandbook.util.NestUtil.getNestedMap;
 
 /**
- * This component provides command warmups and cooldowns, measured in seconds, by using
- * a repeating scheduler task that increases the value for each entry in each CooldownState
- * by one each second if the value is less than the number of seconds specified in the
- * configuration, removing the entry if the warmup/cooldown has been removed from the configuration
+ * This component provides command warmups and cooldowns, measured in seconds. Each
+ * cooldown is stored as the time at which it expires, so checking one is a single
+ * comparison and nothing has to be updated while it runs. Cooldowns are also kept in a
+ * {@link CooldownStore}, so they still hold after a restart. Each warmup is a delayed
+ * task that runs its command on the main thread as soon as the warmup completes.
  */
 @Depend(components = SessionComponent.class)
 @ComponentInformation(friendlyName = "Warmups and Cooldowns", desc = "Allows warmups and cooldowns for commands, specified in seconds.")
-public class CooldownsComponent extends BukkitComponent implements Listener, Runnable {
+public class CooldownsComponent extends BukkitComponent implements Listener {
     @InjectComponent private SessionComponent sessions;
+    private SessionType<CooldownState> cooldownStates;
     private LocalConfiguration config;
-    private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(5);
+    private volatile CommandLimitTable limits = CommandLimitTable.EMPTY;
+    private CooldownStore store;
+    private int flushTaskId = -1;
 
     @Override
     public void enable() {
+        cooldownStates = sessions.registerSessionType(CooldownState.class);
         config = configure(new LocalConfiguration());
+        limits = CommandLimitTable.compile(config.registeredActions);
+        store = new CooldownStore(new File(CommandBook.inst().getDataFolder(), "cooldowns.dat"));
+        store.load();
+        scheduleFlush();
         CommandBook.registerEvents(this);
         registerCommands(Commands.class);
-        scheduler.scheduleAtFixedRate(this, 1, 1, TimeUnit.SECONDS);
+        // Other plugins' commands may not be registered yet, so resolve aliases again once the server is running
+        CommandBook.server().getScheduler().scheduleSyncDelayedTask(CommandBook.inst(), new Runnable() {
+            @Override
+            public void run() {
+                limits = CommandLimitTable.compile(config.registeredActions);
+            }
+        });
     }
 
     @Override
     public void reload() {
         super.reload();
         configure(config);
+        limits = CommandLimitTable.compile(config.registeredActions);
+        scheduleFlush();
     }
 
-    @Override
-    public void disable() {
-        scheduler.shutdown();
+    private void scheduleFlush() {
+        if (flushTaskId != -1) {
+            CommandBook.server().getScheduler().cancelTask(flushTaskId);
+        }
+        long interval = Math.max(1, config.flushInterval) * 20L;
+        flushTaskId = CommandBook.server().getScheduler().scheduleAsyncRepeatingTask(CommandBook.inst(), new Runnable() {
+            @Override
+            public void run() {
+                store.flush();
+            }
+        }, interval, interval);
     }
 
-    private static String firstWord(final String str) {
-        int spaceIndex = str.indexOf(" ");
-        if (spaceIndex == -1) {
-            return str;
+    @Override
+    public void disable() {
+        CommandBook.server().getScheduler().cancelTask(flushTaskId);
+        flushTaskId = -1;
+        store.flush();
+        for (CooldownState state : cooldownStates.getSessions()) {
+            for (WarmupInfo warmup : state.warmupCommands.values()) {
+                CommandBook.server().getScheduler().cancelTask(warmup.taskId);
+            }
+            state.warmupCommands.clear();
         }
-        return str.substring(0, spaceIndex);
     }
 
     private static String titleCase(String input) {
@@ -101,56 +136,18 @@ private static String titleCase(String input) {
     }
 
     private static final SimpleDateFormat timeFormat = new SimpleDateFormat("mm:ss");
-    private static String formatTime(int timeInSeconds, TimeUnit unit) {
+    private static String formatTime(long time, TimeUnit unit) {
         synchronized (timeFormat) {
-            return timeFormat.format(new Date(unit.toMillis(timeInSeconds)));
+            return timeFormat.format(new Date(unit.toMillis(time)));
         }
     }
 
-    public void run() {
-        for (final CooldownState state : sessions.getSessions(CooldownState.class).values()) {
-            final HashSet<String> visitedCooldowns = new HashSet<String>();
-            for (Iterator<Map.Entry<String, Integer>> i = state.cooldownCommands.entrySet().iterator(); i.hasNext();) {
-                final Map.Entry<String, Integer> entry = i.next();
-                final Integer cooldownTime = getNestedMap(config.registeredActions, entry.getKey()).get("cooldown");
-                if (cooldownTime == null) {
-                    i.remove(); // The cooldown has been removed, so we can get rid of it.
-                    continue;
-                }
-                if (entry.getValue() <= cooldownTime) { // Increment the time if it isn't already at the required time
-                    entry.setValue(entry.getValue() + 1);
-                }
-                visitedCooldowns.add(entry.getKey());
-            }
-
-            for (Iterator<Map.Entry<String, WarmupInfo>> i = state.warmupCommands.entrySet().iterator(); i.hasNext();) {
-                final Map.Entry<String, WarmupInfo> entry = i.next();
-                final Integer warmupTime = getNestedMap(config.registeredActions, entry.getKey()).get("warmup");
-                if (warmupTime == null) {
-                    i.remove(); // The warmup has been removed, so we can get rid of it.
-                    continue;
-                } else if (visitedCooldowns.contains(entry.getKey())) {
-                    continue;
-                }
-
-                if (entry.getValue().remainingTime < warmupTime) {
-                    entry.getValue().remainingTime++;
-                } else if (entry.getValue().remainingTime == warmupTime) {
-                    // Reached the needed time, run a scheduler task to execute the command
-                    // back on the main thread.
-                    final CommandSender owner = state.getOwner();
-                    if (owner != null) {
-                        CommandBook.server().getScheduler().callSyncMethod(CommandBook.inst(), new Callable<Boolean>() {
-                            @Override
-                            public Boolean call() {
-                                return CommandBook.server().dispatchCommand(owner, entry.getValue().fullCommand);
-                            }
-                        });
-                    }
-                    i.remove();
-                }
-            }
-        }
+    /**
+     * Formats the time left until a deadline, rounded up to the next second.
+     */
+    private static String formatRemaining(long deadline) {
+        long remaining = Math.max(0, deadline - System.currentTimeMillis());
+        return formatTime(TimeUnit.MILLISECONDS.toSeconds(remaining + 999), TimeUnit.SECONDS);
     }
 
     private static class LocalConfiguration extends ConfigurationBase {
@@ -158,6 +155,7 @@ private static class LocalConfiguration extends ConfigurationBase {
                 "For each command there are both warmup and cooldown values, with numbers " +
                 "measured in seconds"*/)
         public Map<String, Map<String, Integer>> registeredActions = createDefaultStructure();
+        @Setting("flush-interval") public int flushInterval = 30;
 
         public Map<String, Map<String, Integer>> createDefaultStructure() {
             Map<String, Map<String, Integer>> result = new HashMap<String, Map<String, Integer>>();
@@ -169,10 +167,155 @@ public Map<String, Map<String, Integer>> createDefaultStructure() {
         }
     }
 
+    /**
+     * Gets the cooldown state of a sender, restoring the cooldowns it had
+     * before a restart the first time the state is used.
+     */
+    private CooldownState getState(CommandSender sender) {
+        CooldownState state = sessions.getSession(CooldownState.class, sender);
+        if (!state.restored) {
+            synchronized (state.cooldownCommands) {
+                if (!state.restored) {
+                    for (Map.Entry<String, Long> entry : store.get(UUIDUtil.toUniqueString(sender)).entrySet()) {
+                        Long current = state.cooldownCommands.get(entry.getKey());
+                        if (current == null || current < entry.getValue()) {
+                            state.cooldownCommands.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    state.restored = true;
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * The limits configured for a single command, with times in milliseconds.
+     * A time of zero means that there is no limit of that kind.
+     */
+    private static class CommandLimit {
+        public final String label;
+        public final long cooldown;
+        public final long warmup;
+        public final String cooldownOverridePermission;
+        public final String warmupOverridePermission;
+
+        public CommandLimit(String label, Map<String, Integer> times) {
+            this.label = label;
+            this.cooldown = toMillis(times.get("cooldown"));
+            this.warmup = toMillis(times.get("warmup"));
+            this.cooldownOverridePermission = "commandbook.cooldown.override." + label;
+            this.warmupOverridePermission = "commandbook.warmup.override." + label;
+        }
+
+        private static long toMillis(Integer seconds) {
+            return seconds == null || seconds <= 0 ? 0 : TimeUnit.SECONDS.toMillis(seconds);
+        }
+    }
+
+    /**
+     * An immutable table from command labels and their aliases to {@link CommandLimit}s,
+     * compiled from the configuration whenever it is loaded. Lookups take a region of
+     * the command line directly, so no label string has to be created to find a limit.
+     */
+    private static class CommandLimitTable {
+        public static final CommandLimitTable EMPTY = new CommandLimitTable(new HashMap<String, CommandLimit>());
+
+        private final String[] keys;
+        private final CommandLimit[] values;
+        private final int mask;
+
+        private CommandLimitTable(Map<String, CommandLimit> entries) {
+            int capacity = 2;
+            while (capacity < entries.size() * 2) {
+                capacity <<= 1;
+            }
+            keys = new String[capacity];
+            values = new CommandLimit[capacity];
+            mask = capacity - 1;
+            for (Map.Entry<String, CommandLimit> entry : entries.entrySet()) {
+                String key = entry.getKey();
+                int i = hash(key, 0, key.length()) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = entry.getValue();
+            }
+        }
+
+        public static CommandLimitTable compile(Map<String, Map<String, Integer>> registeredActions) {
+            Map<String, CommandLimit> entries = new HashMap<String, CommandLimit>();
+            for (Map.Entry<String, Map<String, Integer>> entry : registeredActions.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                CommandLimit limit = new CommandLimit(entry.getKey().toLowerCase(), entry.getValue());
+                if (limit.cooldown > 0 || limit.warmup > 0) {
+                    entries.put(limit.label, limit);
+                }
+            }
+
+            // Aliases of a configured command share its limits, unless they are configured themselves
+            for (CommandLimit limit : new ArrayList<CommandLimit>(entries.values())) {
+                PluginCommand command = CommandBook.server().getPluginCommand(limit.label);
+                if (command == null) {
+                    continue;
+                }
+                addAlias(entries, command.getName(), limit);
+                for (String alias : command.getAliases()) {
+                    addAlias(entries, alias, limit);
+                }
+            }
+            return new CommandLimitTable(entries);
+        }
+
+        private static void addAlias(Map<String, CommandLimit> entries, String alias, CommandLimit limit) {
+            alias = alias.toLowerCase();
+            if (!entries.containsKey(alias)) {
+                entries.put(alias, limit);
+            }
+        }
+
+        private static int hash(CharSequence str, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; ++i) {
+                hash = 31 * hash + Character.toLowerCase(str.charAt(i));
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * Looks up the limits for the first word of a command line.
+         *
+         * @param line The command line
+         * @param start The index at which the command label starts
+         * @return The limits for the command, or null if it has none
+         */
+        public CommandLimit get(String line, int start) {
+            int end = line.indexOf(' ', start);
+            if (end == -1) {
+                end = line.length();
+            }
+            int length = end - start;
+            for (int i = hash(line, start, end) & mask; keys[i] != null; i = (i + 1) & mask) {
+                if (keys[i].length() == length && line.regionMatches(true, start, keys[i], 0, length)) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+    }
+
     @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
     public void playerHandler(PlayerCommandPreprocessEvent event) {
-        if (!checkCooldown(event.getPlayer(), event.getMessage().substring(1))
-                || !checkWarmup(event.getPlayer(), event.getMessage().substring(1))) {
+        String message = event.getMessage();
+        CommandLimit limit = limits.get(message, 1);
+        if (limit == null) {
+            return;
+        }
+        if (!checkCooldown(event.getPlayer(), limit)
+                || !checkWarmup(event.getPlayer(), limit, message, 1)) {
             event.setCancelled(true);
         }
     }
@@ -185,68 +328,94 @@ public void serverCommandHandler(ServerCommandEvent event) {
         }
     }*/
 
-    public boolean checkCooldown(CommandSender sender, String command) {
-        CooldownState state = sessions.getSession(CooldownState.class, sender);
-        command = firstWord(command);
-        synchronized (state.cooldownCommands) {
-            Map<String, Integer> storedTimes = config.registeredActions.get(command);
-            if (storedTimes == null) { // Nothing in the config for this command
-                return true;
-            }
+    /**
+     * Gets the label that a command's cooldowns and warmups are kept under,
+     * which for an alias is the label of the command it belongs to.
+     *
+     * @param command The command or alias
+     * @return The label
+     */
+    private String getLimitLabel(String command) {
+        CommandLimit limit = limits.get(command, 0);
+        return limit != null ? limit.label : command.toLowerCase();
+    }
 
-            Integer requiredCooldownTime = storedTimes.get("cooldown");
-            if (requiredCooldownTime == null) { // No cooldown for this command
-                return true;
-            }
+    public boolean checkCooldown(CommandSender sender, String command) {
+        CommandLimit limit = limits.get(command, 0);
+        return limit == null || checkCooldown(sender, limit);
+    }
 
-            Integer passedCooldownTime = state.cooldownCommands.get(command);
-            if (passedCooldownTime == null) { // There isn't an in-progress cooldown for this command
-                passedCooldownTime = 0;
-                state.cooldownCommands.put(command, passedCooldownTime);
-            }
+    private boolean checkCooldown(CommandSender sender, CommandLimit limit) {
+        if (limit.cooldown == 0) { // No cooldown for this command
+            return true;
+        }
 
-            if (passedCooldownTime >= requiredCooldownTime
-                    || CommandBook.inst().hasPermission(sender, "commandbook.cooldown.override." + command)) {
-                state.cooldownCommands.remove(command);
+        CooldownState state = getState(sender);
+        long now = System.currentTimeMillis();
+        synchronized (state.cooldownCommands) {
+            Long expiry = state.cooldownCommands.get(limit.label);
+            if (expiry == null || expiry <= now
+                    || CommandBook.inst().hasPermission(sender, limit.cooldownOverridePermission)) {
+                // Allowed, so the cooldown starts now
+                state.cooldownCommands.put(limit.label, now + limit.cooldown);
+                store.set(UUIDUtil.toUniqueString(sender), limit.label, now + limit.cooldown);
                 return true;
             } else {
-                sender.sendMessage(ChatColor.YELLOW + "The command '" + command +
-                        "' has a remaining cooldown of " +
-                        formatTime(requiredCooldownTime - passedCooldownTime, TimeUnit.SECONDS)
-                        + " seconds.");
+                sender.sendMessage(ChatColor.YELLOW + "The command '" + limit.label +
+                        "' has a remaining cooldown of " + formatRemaining(expiry) + " seconds.");
                 return false;
             }
         }
     }
 
     public boolean checkWarmup(CommandSender sender, String command) {
-        CooldownState state = sessions.getSession(CooldownState.class, sender);
-        synchronized (state.warmupCommands) {
-            Map<String, Integer> storedTimes = config.registeredActions.get(firstWord(command));
-            if (storedTimes == null) { // Nothing in the config for this command
-                return true;
-            }
+        CommandLimit limit = limits.get(command, 0);
+        return limit == null || checkWarmup(sender, limit, command, 0);
+    }
 
-            Integer requiredWarmupTime = storedTimes.get("warmup");
-            if (requiredWarmupTime == null || CommandBook.inst().hasPermission(sender,
-                    "commandbook.warmup.override." + firstWord(command))) { // No warmup for this command
-                return true;
-            }
+    /**
+     * Checks the warmup for a command, starting one if there is none in progress.
+     *
+     * @param sender The sender of the command
+     * @param limit The limits for the command
+     * @param line The line the command was read from
+     * @param start The index in {@code line} at which the command starts
+     * @return Whether the command can be run now
+     */
+    private boolean checkWarmup(CommandSender sender, final CommandLimit limit, String line, int start) {
+        if (limit.warmup == 0 || CommandBook.inst().hasPermission(sender,
+                limit.warmupOverridePermission)) { // No warmup for this command
+            return true;
+        }
 
-            WarmupInfo warmupInfo = state.warmupCommands.get(firstWord(command));
+        final CooldownState state = sessions.getSession(CooldownState.class, sender);
+        synchronized (state.warmupCommands) {
+            WarmupInfo warmupInfo = state.warmupCommands.get(limit.label);
             if (warmupInfo == null) { // There isn't an in-progress warmup for this command
-                warmupInfo = new WarmupInfo(command);
-                state.warmupCommands.put(command, warmupInfo);
+                final WarmupInfo warmup = new WarmupInfo(line.substring(start),
+                        System.currentTimeMillis() + limit.warmup);
+                state.warmupCommands.put(limit.label, warmup);
+                // Run the command on the main thread once the warmup is complete, unless it was cancelled
+                warmup.taskId = CommandBook.server().getScheduler().scheduleSyncDelayedTask(CommandBook.inst(), new Runnable() {
+                    @Override
+                    public void run() {
+                        if (state.warmupCommands.remove(limit.label, warmup) && state.getOwner() != null) {
+                            CommandBook.server().dispatchCommand(state.getOwner(), warmup.fullCommand);
+                        }
+                    }
+                }, limit.warmup / 50); // 50 milliseconds per tick
                 sender.sendMessage(ChatColor.YELLOW + "Warmup started for command '"
-                        + firstWord(command) + "', time remaining: " +
-                        formatTime(requiredWarmupTime, TimeUnit.SECONDS) + " seconds");
+                        + limit.label + "', time remaining: " +
+                        formatTime(limit.warmup, TimeUnit.MILLISECONDS) + " seconds");
                 return false;
             }
 
-            if (!command.equals(warmupInfo.fullCommand)) {
+            String fullCommand = warmupInfo.fullCommand;
+            if (line.length() - start != fullCommand.length()
+                    || !line.regionMatches(start, fullCommand, 0, fullCommand.length())) {
                 sender.sendMessage(ChatColor.RED + "You are trying to use the command '"
-                        + command + "', which already has a warmup in progress. Type /warmup cancel "
-                        + firstWord(command) + " to cancel the existing warmup" );
+                        + line.substring(start) + "', which already has a warmup in progress. Type /warmup cancel "
+                        + limit.label + " to cancel the existing warmup" );
             }
             return false;
         }
@@ -254,18 +423,28 @@ public boolean checkWarmup(CommandSender sender, String command) {
 
     private static class WarmupInfo {
         public final String fullCommand;
-        public int remainingTime;
+        public final long readyTime;
+        public int taskId = -1;
 
-        public WarmupInfo(String fullCommand) {
+        public WarmupInfo(String fullCommand, long readyTime) {
             this.fullCommand = fullCommand;
+            this.readyTime = readyTime;
         }
     }
 
     private static class CooldownState extends PersistentSession {
         public static final long MAX_AGE = TimeUnit.MINUTES.toMillis(30);
 
-        public final Map<String, WarmupInfo> warmupCommands = new ConcurrentHashMap<String, WarmupInfo>();
-        @Setting("cooldown-commands") public final Map<String, Integer> cooldownCommands = new ConcurrentHashMap<String, Integer>();
+        public final ConcurrentMap<String, WarmupInfo> warmupCommands = new ConcurrentHashMap<String, WarmupInfo>();
+        /**
+         * The time at which each cooldown expires, in milliseconds since the epoch.
+         * These are persisted by the {@link CooldownStore}, not with the session.
+         */
+        public final Map<String, Long> cooldownCommands = new ConcurrentHashMap<String, Long>();
+        /**
+         * Whether the cooldowns kept in the {@link CooldownStore} have been added to this state.
+         */
+        public volatile boolean restored;
 
         protected CooldownState() {
             super(MAX_AGE);
@@ -282,7 +461,7 @@ public void warmup() {}
         public void cooldown() {}
     }
 
-    public class CooldownCommands extends SubCommands<Map.Entry<String, Integer>> {
+    public class CooldownCommands extends SubCommands<Map.Entry<String, Long>> {
 
         @Command(aliases = {"list", "ls"}, desc = "List active command limitations", usage = "[-p page] [player]", flags = "p:", min = 0, max = 1)
         public void list(CommandContext args, CommandSender sender) throws CommandException {
@@ -312,34 +491,37 @@ public String getTypeName() {
         }
 
         @Override
-        public PaginatedResult<Map.Entry<String, Integer>> getListOutput() {
-            return new PaginatedResult<Map.Entry<String, Integer>>("Command - Time remaining") {
+        public PaginatedResult<Map.Entry<String, Long>> getListOutput() {
+            return new PaginatedResult<Map.Entry<String, Long>>("Command - Time remaining") {
 
                 @Override
-                public String format(Map.Entry<String, Integer> entry) {
-                    Map<String, Integer> storedTimes = config.registeredActions.get(entry.getKey());
-                    if (storedTimes == null) { // Nothing in the config for this command
-                        return "Invalid cooldown: " + entry.getKey();
-                    }
-
-                    Integer requiredCooldownTime = storedTimes.get("cooldown");
-                    if (requiredCooldownTime == null) { // No cooldown for this command
-                        return "Invalid cooldown: " + entry.getKey();
-                    }
-                    return entry.getKey() + " - " +
-                            formatTime(requiredCooldownTime - entry.getValue(), TimeUnit.SECONDS);
+                public String format(Map.Entry<String, Long> entry) {
+                    return entry.getKey() + " - " + formatRemaining(entry.getValue());
                 }
             };
         }
 
         @Override
-        public Collection<Map.Entry<String, Integer>> getActive(CommandSender sender) {
-            return sessions.getSession(CooldownState.class, sender).cooldownCommands.entrySet();
+        public Collection<Map.Entry<String, Long>> getActive(CommandSender sender) {
+            Map<String, Long> cooldowns = getState(sender).cooldownCommands;
+            long now = System.currentTimeMillis();
+            List<Map.Entry<String, Long>> active = new ArrayList<Map.Entry<String, Long>>();
+            for (Iterator<Map.Entry<String, Long>> i = cooldowns.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<String, Long> entry = i.next();
+                if (entry.getValue() <= now) {
+                    i.remove(); // Expired cooldowns are dropped whenever they are noticed
+                } else {
+                    active.add(entry);
+                }
+            }
+            return active;
         }
 
         @Override
         public boolean remove(CommandSender sender, String name) {
-            return sessions.getSession(CooldownState.class, sender).cooldownCommands.remove(name.toLowerCase()) != null;
+            String label = getLimitLabel(name);
+            store.remove(UUIDUtil.toUniqueString(sender), label);
+            return getState(sender).cooldownCommands.remove(label) != null;
         }
     }
 
@@ -377,18 +559,7 @@ public PaginatedResult<WarmupInfo> getListOutput() {
             return new PaginatedResult<WarmupInfo>("Command - Remaining time") {
                 @Override
                 public String format(WarmupInfo entry) {
-                    Map<String, Integer> storedTimes = config.registeredActions
-                            .get(firstWord(entry.fullCommand));
-                    if (storedTimes == null) { // Nothing in the config for this command
-                        return "Invalid warmup: " + entry.fullCommand;
-                    }
-
-                    Integer requiredWarmupTime = storedTimes.get("warmup");
-                    if (requiredWarmupTime == null) { // No cooldown for this command
-                        return "Invalid warmup: " + entry.fullCommand;
-                    }
-                    return "/" + entry.fullCommand + " - " +
-                            formatTime(requiredWarmupTime - entry.remainingTime, TimeUnit.SECONDS);
+                    return "/" + entry.fullCommand + " - " + formatRemaining(entry.readyTime);
                 }
             };
         }
@@ -400,7 +571,12 @@ public Collection<WarmupInfo> getActive(CommandSender sender) {
 
         @Override
         public boolean remove(CommandSender sender, String name) {
-            return sessions.getSession(CooldownState.class, sender).warmupCommands.remove(name.toLowerCase()) != null;
+            WarmupInfo warmup = sessions.getSession(CooldownState.class, sender).warmupCommands.remove(getLimitLabel(name));
+            if (warmup == null) {
+                return false;
+            }
+            CommandBook.server().getScheduler().cancelTask(warmup.taskId);
+            return true;
         }
     }
 
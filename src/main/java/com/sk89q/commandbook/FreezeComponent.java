@@ -34,8 +34,16 @@
 import org.bukkit.Location;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 
@@ -46,65 +54,112 @@
 
 @Depend(components = SessionComponent.class)
 @ComponentInformation(friendlyName = "Freeze", desc = "Blocks a specified player's movement on command")
-public class FreezeComponent extends BukkitComponent implements Listener, Runnable {
-    public static final int MOVE_THRESHOLD = 2;
-    private static final int MOVE_THRESHOLD_SQ = MOVE_THRESHOLD * MOVE_THRESHOLD;
+public class FreezeComponent extends BukkitComponent implements Listener {
+    /**
+     * How far, squared, a frozen player may move from their freeze location before they are held back
+     */
+    private static final double MOVE_THRESHOLD_SQ = 0.01;
+    /**
+     * How often a frozen player is reminded that they are frozen, in milliseconds
+     */
+    private static final long MESSAGE_INTERVAL = TimeUnit.SECONDS.toMillis(2);
 
     @InjectComponent private SessionComponent sessions;
+    /**
+     * The states of the frozen players who are online, so that moves by everyone
+     * else are let through after one lookup
+     */
+    private final ConcurrentMap<UUID, FreezeState> frozen = new ConcurrentHashMap<UUID, FreezeState>();
 
     @Override
     public void enable() {
         registerCommands(Commands.class);
         CommandBook.registerEvents(this);
-        CommandBook.server().getScheduler().scheduleSyncRepeatingTask(CommandBook.inst(), this, 20 * 2, 20 * 2);
+        for (Player player : CommandBook.server().getOnlinePlayers()) {
+            track(player);
+        }
     }
 
     public boolean freezePlayer(Player player) {
         FreezeState session = sessions.getSession(FreezeState.class, player);
         final boolean previous = session.isFrozen();
         session.freeze(player.getLocation());
+        frozen.put(player.getUniqueId(), session);
         return previous;
     }
 
     public boolean isFrozen(Player player) {
-        return sessions.getSession(FreezeState.class, player).isFrozen();
+        return frozen.containsKey(player.getUniqueId());
     }
 
     public boolean unfreezePlayer(Player player) {
         FreezeState session = sessions.getSession(FreezeState.class, player);
         final boolean previous = session.isFrozen();
         session.freeze(null);
+        frozen.remove(player.getUniqueId());
         return previous;
     }
 
-    @Override
-    public void run() {
-        for (FreezeState frozenState : sessions.getSessions(FreezeState.class).values()) {
-            if (!frozenState.isFrozen()) {
-                continue;
-            }
+    private void track(Player player) {
+        FreezeState session = sessions.getSession(FreezeState.class, player);
+        if (session.isFrozen()) {
+            frozen.put(player.getUniqueId(), session);
+        }
+    }
 
-            Player player = frozenState.getOwner();
-            if (player == null || !player.isOnline()) {
-                continue;
-            }
+    @EventHandler
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        // A player who left while frozen is frozen again until their session expires
+        track(event.getPlayer());
+    }
 
-            Location loc = player.getLocation();
-            if (loc.distanceSquared(frozenState.getFreezeLocation()) >= MOVE_THRESHOLD_SQ) {
-                loc.setX(frozenState.getFreezeLocation().getX());
-                loc.setY(frozenState.getFreezeLocation().getY());
-                loc.setZ(frozenState.getFreezeLocation().getZ());
-                player.sendMessage(ChatColor.RED + "You are frozen.");
-                player.teleport(loc);
-            }
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        frozen.remove(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        if (frozen.isEmpty()) {
+            return;
+        }
+        FreezeState state = frozen.get(event.getPlayer().getUniqueId());
+        if (state == null) {
+            return;
+        }
+
+        Location freezeLocation = state.getFreezeLocation();
+        if (freezeLocation == null) {
+            return;
+        }
+        Location to = event.getTo();
+        if (to.getWorld() == freezeLocation.getWorld() && to.distanceSquared(freezeLocation) < MOVE_THRESHOLD_SQ) {
+            return;
+        }
+
+        // Hold them at the freeze location, but let them look around
+        Player player = event.getPlayer();
+        Location held = freezeLocation.clone();
+        held.setYaw(to.getYaw());
+        held.setPitch(to.getPitch());
+        if (to.getWorld() == freezeLocation.getWorld()) {
+            event.setTo(held);
+        } else {
+            player.teleport(held);
+        }
 
+        long now = System.currentTimeMillis();
+        if (now - state.lastMessage >= MESSAGE_INTERVAL) {
+            state.lastMessage = now;
+            player.sendMessage(ChatColor.RED + "You are frozen.");
         }
     }
 
     private static class FreezeState extends PersistentSession {
         public static final long MAX_AGE = TimeUnit.MINUTES.toMillis(30);
 
-        private Location freezeLocation;
+        private volatile Location freezeLocation;
+        private long lastMessage;
 
         protected FreezeState() {
             super(MAX_AGE);
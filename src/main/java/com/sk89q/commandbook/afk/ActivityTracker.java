@@ -0,0 +1,269 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.afk;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the last time each online player did something, without locking on
+ * the update path. Each player is given a dense slot when they are registered,
+ * and recording activity is a single volatile store into an array at that slot.
+ *
+ * <p>Slots are found through an open-addressed table from entity id to slot.
+ * The table and the array are only replaced when players are registered or
+ * unregistered, so readers always see a complete copy of them. An update made
+ * while the array is being grown can be lost, which only delays the player's
+ * time until their next action.</p>
+ *
+ * <p>Movement is sampled: a player who was active recently is skipped with one
+ * timestamp comparison, and the others are compared against an anchor position
+ * taken when sampling resumed, so that slow movement adds up.</p>
+ */
+public class ActivityTracker {
+    private static final int FREE = -1;
+
+    private volatile SlotTable table = new SlotTable(16);
+    private volatile AtomicLongArray times = new AtomicLongArray(16);
+    private volatile Anchors anchors = new Anchors(16);
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int nextSlot;
+    private int registered;
+
+    /**
+     * An immutable map from entity id to slot, once it has been published.
+     */
+    private static class SlotTable {
+        private final int[] ids;
+        private final int[] slots;
+        private final int mask;
+
+        private SlotTable(int capacity) {
+            ids = new int[capacity];
+            slots = new int[capacity];
+            Arrays.fill(slots, FREE);
+            mask = capacity - 1;
+        }
+
+        private void insert(int id, int slot) {
+            int i = mix(id) & mask;
+            while (slots[i] != FREE) {
+                i = (i + 1) & mask;
+            }
+            ids[i] = id;
+            slots[i] = slot;
+        }
+
+        private int get(int id) {
+            for (int i = mix(id) & mask; slots[i] != FREE; i = (i + 1) & mask) {
+                if (ids[i] == id) {
+                    return slots[i];
+                }
+            }
+            return FREE;
+        }
+
+        /**
+         * Copies every entry but one into a new table.
+         */
+        private SlotTable copy(int capacity, int excludedId) {
+            SlotTable copy = new SlotTable(capacity);
+            for (int i = 0; i < slots.length; ++i) {
+                if (slots[i] != FREE && ids[i] != excludedId) {
+                    copy.insert(ids[i], slots[i]);
+                }
+            }
+            return copy;
+        }
+
+        private static int mix(int id) {
+            int hash = id * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * The position each player is compared against when their movement is sampled.
+     * These are only used from the main thread.
+     */
+    private static class Anchors {
+        private final World[] world;
+        private final double[] x;
+        private final double[] z;
+        private final long[] time;
+
+        private Anchors(int capacity) {
+            world = new World[capacity];
+            x = new double[capacity];
+            z = new double[capacity];
+            time = new long[capacity];
+        }
+
+        private Anchors grow(int capacity) {
+            Anchors grown = new Anchors(capacity);
+            System.arraycopy(world, 0, grown.world, 0, world.length);
+            System.arraycopy(x, 0, grown.x, 0, x.length);
+            System.arraycopy(z, 0, grown.z, 0, z.length);
+            System.arraycopy(time, 0, grown.time, 0, time.length);
+            return grown;
+        }
+
+        private void set(int slot, Location location, long now) {
+            world[slot] = location.getWorld();
+            x[slot] = location.getX();
+            z[slot] = location.getZ();
+            time[slot] = now;
+        }
+
+        private void clear(int slot) {
+            world[slot] = null;
+            time[slot] = 0;
+        }
+    }
+
+    /**
+     * Gives a player a slot, if they don't already have one, and records them as active now.
+     *
+     * @param player The player to register
+     */
+    public void register(Player player) {
+        int id = player.getEntityId();
+        synchronized (this) {
+            int slot = table.get(id);
+            if (slot == FREE) {
+                slot = freeCount > 0 ? freeSlots[--freeCount] : nextSlot++;
+                if (slot >= times.length()) {
+                    AtomicLongArray grown = new AtomicLongArray(times.length() * 2);
+                    for (int i = 0; i < times.length(); ++i) {
+                        grown.set(i, times.get(i));
+                    }
+                    times = grown;
+                    anchors = anchors.grow(grown.length());
+                }
+                anchors.clear(slot);
+
+                ++registered;
+                int capacity = table.slots.length;
+                while (capacity < registered * 2) {
+                    capacity <<= 1;
+                }
+                SlotTable updated = table.copy(capacity, FREE);
+                updated.insert(id, slot);
+                times.set(slot, System.currentTimeMillis());
+                table = updated;
+                return;
+            }
+            times.set(slot, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Frees a player's slot once they have left.
+     *
+     * @param player The player to unregister
+     */
+    public synchronized void unregister(Player player) {
+        int id = player.getEntityId();
+        int slot = table.get(id);
+        if (slot == FREE) {
+            return;
+        }
+        table = table.copy(table.slots.length, id);
+        times.set(slot, 0);
+        anchors.clear(slot);
+        --registered;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Records a player as active now. Players that are not registered are ignored,
+     * so that events arriving after a player has left do not give them a slot again.
+     *
+     * @param player The player who was active
+     */
+    public void update(Player player) {
+        int slot = table.get(player.getEntityId());
+        if (slot != FREE) {
+            times.set(slot, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Records movement as activity if a player has moved far enough, in two dimensions,
+     * since their movement was last sampled. Players who were active less than
+     * {@code sampleDelay} ago are not sampled at all, and players that are not
+     * registered are ignored. This must only be called from the main thread.
+     *
+     * @param player The player who moved
+     * @param from The location they moved from
+     * @param to The location they moved to
+     * @param threshold The squared distance that counts as activity
+     * @param sneakThreshold The squared distance that counts as activity while sneaking
+     * @param sampleDelay The time after activity during which movement is ignored, in milliseconds
+     * @return Whether the movement counted as activity
+     */
+    public boolean move(Player player, Location from, Location to, double threshold,
+                        double sneakThreshold, long sampleDelay) {
+        int slot = table.get(player.getEntityId());
+        if (slot == FREE) {
+            return false;
+        }
+
+        AtomicLongArray times = this.times;
+        long lastActivity = times.get(slot);
+        long now = System.currentTimeMillis();
+        if (now - lastActivity < sampleDelay) {
+            return false;
+        }
+
+        // The anchor is stale once there has been activity since it was taken
+        Anchors anchors = this.anchors;
+        if (anchors.time[slot] <= lastActivity || anchors.world[slot] != to.getWorld()) {
+            anchors.set(slot, from, now);
+        }
+
+        double dx = to.getX() - anchors.x[slot];
+        double dz = to.getZ() - anchors.z[slot];
+        double distanceSQ = dx * dx + dz * dz;
+        if (distanceSQ > threshold || (distanceSQ > sneakThreshold && player.isSneaking())) {
+            times.set(slot, now);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the last time a player was active.
+     *
+     * @param player The player to check
+     * @return The time in milliseconds since the epoch, or 0 if the player is not registered
+     */
+    public long getLastActivity(Player player) {
+        int slot = table.get(player.getEntityId());
+        return slot == FREE ? 0 : times.get(slot);
+    }
+}
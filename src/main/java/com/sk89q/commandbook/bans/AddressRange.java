@@ -0,0 +1,212 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * An IPv4 or IPv6 address range written in CIDR notation, such as
+ * {@code 10.0.0.0/24}. A single address is a range covering all of its bits.
+ */
+public class AddressRange {
+    private final byte[] prefix;
+    private final int prefixLength;
+
+    public AddressRange(byte[] address, int prefixLength) {
+        if (address.length != 4 && address.length != 16) {
+            throw new IllegalArgumentException("address must be 4 or 16 bytes long");
+        }
+        if (prefixLength < 0 || prefixLength > address.length * 8) {
+            throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+        }
+        this.prefix = address.clone();
+        this.prefixLength = prefixLength;
+
+        // Clear the host bits so equal ranges have equal prefixes
+        for (int i = 0; i < prefix.length * 8; i++) {
+            if (i >= prefixLength) {
+                prefix[i >> 3] &= ~(0x80 >>> (i & 7));
+            }
+        }
+    }
+
+    /**
+     * Parses an address or range. Only address literals are accepted, so no name
+     * lookups are ever made.
+     *
+     * @param input The address, optionally followed by /prefix-length
+     * @return The parsed range, or null if the input is not a valid address or range
+     */
+    public static AddressRange parse(String input) {
+        if (input == null) {
+            return null;
+        }
+        String address = input;
+        int prefixLength = -1;
+        int slash = input.indexOf('/');
+        if (slash != -1) {
+            address = input.substring(0, slash);
+            try {
+                prefixLength = Integer.parseInt(input.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (prefixLength < 0) {
+                return null;
+            }
+        }
+
+        byte[] bytes;
+        if (address.indexOf(':') != -1) {
+            bytes = parseIPv6(address);
+        } else {
+            bytes = parseIPv4(address);
+        }
+        if (bytes == null) {
+            return null;
+        }
+        if (prefixLength == -1) {
+            prefixLength = bytes.length * 8;
+        } else if (prefixLength > bytes.length * 8) {
+            return null;
+        }
+        return new AddressRange(bytes, prefixLength);
+    }
+
+    /**
+     * Brings an address or range into the form it is stored in, so that different
+     * spellings of the same range refer to the same ban.
+     *
+     * @param address The address or range, may be null
+     * @return The normalized address, or the input if it could not be parsed
+     */
+    public static String normalize(String address) {
+        AddressRange range = parse(address);
+        return range == null ? address : range.toString();
+    }
+
+    private static byte[] parseIPv4(String address) {
+        byte[] bytes = new byte[4];
+        int octet = 0;
+        int value = -1;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value == -1 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return null;
+                }
+            } else if (c == '.' && value != -1 && octet < 3) {
+                bytes[octet++] = (byte) value;
+                value = -1;
+            } else {
+                return null;
+            }
+        }
+        if (value == -1 || octet != 3) {
+            return null;
+        }
+        bytes[octet] = (byte) value;
+        return bytes;
+    }
+
+    private static byte[] parseIPv6(String address) {
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (Character.digit(c, 16) == -1 && c != ':' && c != '.') {
+                return null;
+            }
+        }
+        try {
+            // A literal containing a colon is never resolved as a host name
+            byte[] bytes = InetAddress.getByName(address).getAddress();
+            return bytes.length == 16 ? bytes : null;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    public byte[] getPrefix() {
+        return prefix.clone();
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * Checks if this range covers a single address only.
+     *
+     * @return whether this range is a single address
+     */
+    public boolean isSingleAddress() {
+        return prefixLength == prefix.length * 8;
+    }
+
+    public boolean contains(InetAddress address) {
+        return contains(address.getAddress());
+    }
+
+    public boolean contains(byte[] address) {
+        if (address.length != prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefixLength; i++) {
+            int mask = 0x80 >>> (i & 7);
+            if ((address[i >> 3] & mask) != (prefix[i >> 3] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof AddressRange)) {
+            return false;
+        }
+        AddressRange range = (AddressRange) other;
+        return prefixLength == range.prefixLength && Arrays.equals(prefix, range.prefix);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(prefix) + prefixLength;
+    }
+
+    /**
+     * Returns this range in the form used as a ban address: the address as given by
+     * {@link InetAddress#getHostAddress()}, followed by the prefix length unless the
+     * range is a single address.
+     *
+     * @return The string form of this range
+     */
+    @Override
+    public String toString() {
+        String address;
+        try {
+            address = InetAddress.getByAddress(prefix).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // Only thrown for invalid lengths
+        }
+        return isSingleAddress() ? address : address + "/" + prefixLength;
+    }
+}
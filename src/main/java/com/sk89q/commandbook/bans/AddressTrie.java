@@ -0,0 +1,163 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import java.net.InetAddress;
+
+/**
+ * A binary radix trie mapping IPv4 and IPv6 address ranges to values, walked one
+ * bit of the raw address at a time. Lookups find the value of the longest
+ * (most specific) range containing an address in at most 32 or 128 steps, and may
+ * run concurrently with a single writer without locking.
+ *
+ * @param <V> The type of value stored for each range
+ */
+public class AddressTrie<V> {
+
+    private static class Node<V> {
+        volatile Node<V> zero;
+        volatile Node<V> one;
+        volatile V value;
+    }
+
+    private volatile Node<V> v4Root = new Node<V>();
+    private volatile Node<V> v6Root = new Node<V>();
+    private int size;
+
+    private Node<V> root(int addressLength) {
+        return addressLength == 4 ? v4Root : v6Root;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        v4Root = new Node<V>();
+        v6Root = new Node<V>();
+        size = 0;
+    }
+
+    /**
+     * Maps a range to a value, replacing any previous value for the same range.
+     *
+     * @param range The range
+     * @param value The value
+     * @return The previous value for the range, or null
+     */
+    public synchronized V put(AddressRange range, V value) {
+        byte[] prefix = range.getPrefix();
+        Node<V> node = root(prefix.length);
+        for (int i = 0; i < range.getPrefixLength(); i++) {
+            boolean bit = (prefix[i >> 3] & (0x80 >>> (i & 7))) != 0;
+            Node<V> child = bit ? node.one : node.zero;
+            if (child == null) {
+                child = new Node<V>();
+                if (bit) {
+                    node.one = child;
+                } else {
+                    node.zero = child;
+                }
+            }
+            node = child;
+        }
+        V old = node.value;
+        node.value = value;
+        if (old == null) {
+            ++size;
+        }
+        return old;
+    }
+
+    /**
+     * Removes the value for a range.
+     *
+     * @param range The range
+     * @return The removed value, or null if the range had none
+     */
+    public synchronized V remove(AddressRange range) {
+        byte[] prefix = range.getPrefix();
+        int length = range.getPrefixLength();
+        @SuppressWarnings("unchecked")
+        Node<V>[] path = new Node[length + 1];
+        Node<V> node = root(prefix.length);
+        path[0] = node;
+        for (int i = 0; i < length; i++) {
+            node = (prefix[i >> 3] & (0x80 >>> (i & 7))) != 0 ? node.one : node.zero;
+            if (node == null) {
+                return null;
+            }
+            path[i + 1] = node;
+        }
+        V old = node.value;
+        if (old == null) {
+            return null;
+        }
+        node.value = null;
+        --size;
+
+        // Prune the nodes which no longer lead to a value
+        for (int i = length; i > 0; i--) {
+            Node<V> current = path[i];
+            if (current.value != null || current.zero != null || current.one != null) {
+                break;
+            }
+            Node<V> parent = path[i - 1];
+            if (parent.one == current) {
+                parent.one = null;
+            } else {
+                parent.zero = null;
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Finds the value of the most specific range containing an address.
+     *
+     * @param address The address
+     * @return The value, or null if no range contains the address
+     */
+    public V find(InetAddress address) {
+        return find(address.getAddress());
+    }
+
+    /**
+     * Finds the value of the most specific range containing an address.
+     *
+     * @param address The raw address bytes, 4 or 16 long
+     * @return The value, or null if no range contains the address
+     */
+    public V find(byte[] address) {
+        Node<V> node = root(address.length);
+        V match = node.value;
+        int bits = address.length * 8;
+        for (int i = 0; i < bits; i++) {
+            node = (address[i >> 3] & (0x80 >>> (i & 7))) != 0 ? node.one : node.zero;
+            if (node == null) {
+                break;
+            }
+            V value = node.value;
+            if (value != null) {
+                match = value;
+            }
+        }
+        return match;
+    }
+}
@@ -1,25 +1,35 @@
 package com.sk89q.commandbook.bans;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author zml2008
  */
 public class Ban {
+    private static final AtomicLong nextSequence = new AtomicLong();
+
     private final UUID ID;
     private String name;
     private final String address;
     private final String reason;
     private final long start;
     private final long end;
+    private final String issuer;
+    private final long sequence = nextSequence.incrementAndGet();
 
     public Ban(UUID ID, String name, String address, String reason, long start, long end) {
+        this(ID, name, address, reason, start, end, null);
+    }
+
+    public Ban(UUID ID, String name, String address, String reason, long start, long end, String issuer) {
         this.ID = ID;
         this.name = name;
         this.address = address;
         this.reason = reason;
         this.start = start;
         this.end = end;
+        this.issuer = issuer;
     }
 
     public UUID getID() {
@@ -50,6 +60,24 @@ public long getEnd() {
         return end;
     }
 
+    /**
+     * Returns the name of whoever placed this ban.
+     *
+     * @return the issuer's name, or null if it is not known
+     */
+    public String getIssuer() {
+        return issuer;
+    }
+
+    /**
+     * Returns a number that is unique to this ban object, given out in the order bans are created.
+     *
+     * @return the sequence number
+     */
+    long getSequence() {
+        return sequence;
+    }
+
     @Override
     public boolean equals(Object other) {
         if (!(other instanceof Ban)) {
@@ -99,6 +127,9 @@ public String toString() {
             builder.append("NEVER");
         }
         builder.append(")");
+        if (issuer != null) {
+            builder.append("(ISSUER: ").append(issuer).append(")");
+        }
         builder.append("]");
         return builder.toString();
     }
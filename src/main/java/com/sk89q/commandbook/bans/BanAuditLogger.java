@@ -0,0 +1,321 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import com.sk89q.commandbook.util.ChatUtil;
+import com.sk89q.commandbook.util.ServerUtil;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Writes an audit trail of bans, unbans and kicks, shared by the ban database
+ * implementations.
+ *
+ * <p>Logging a record only captures its details and places it in a bounded
+ * queue, so it never waits on the disk. A writer thread takes records from the
+ * queue in batches and writes them to bans.log, which is rotated when the date
+ * changes or when it grows past a maximum size. If the queue fills up, new
+ * records are dropped and the number dropped is written to the log instead.</p>
+ */
+public class BanAuditLogger implements Runnable {
+
+    /**
+     * The maximum number of records waiting to be written
+     */
+    public static final int CAPACITY = 4096;
+
+    /**
+     * The maximum number of records written at once
+     */
+    public static final int BATCH_SIZE = 256;
+
+    public static final long DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private enum Action {
+        BAN,
+        UNBAN,
+        KICK
+    }
+
+    /**
+     * The details of a record, captured on the thread that logged it.
+     */
+    private static class Entry {
+        private final Action action;
+        private final long time;
+        private final String source;
+        private final String address;
+        private final Object subject;
+        private final String reason;
+
+        private Entry(Action action, String source, String address, Object subject, String reason) {
+            this.action = action;
+            this.time = System.currentTimeMillis();
+            this.source = source;
+            this.address = address;
+            this.subject = subject;
+            this.reason = reason;
+        }
+    }
+
+    private final File directory;
+    private final File file;
+    private final long maxSize;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(CAPACITY);
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    // Only used by the writer thread
+    private final TimeZone timeZone = TimeZone.getDefault();
+    private final List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+    private final StringBuilder line = new StringBuilder(256);
+    private final char[] stamp = "[00/00/0000 00:00:00] ".toCharArray();
+    private long day = Long.MIN_VALUE;
+    private String date;
+    private Writer writer;
+    private long size;
+
+    public BanAuditLogger(File banStorageDir) {
+        this(banStorageDir, DEFAULT_MAX_SIZE);
+    }
+
+    public BanAuditLogger(File banStorageDir, long maxSize) {
+        this.directory = banStorageDir;
+        this.file = new File(banStorageDir, "bans.log");
+        this.maxSize = maxSize;
+
+        writerThread = new Thread(this, "CommandBook Ban Audit");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public void logBan(CommandSender source, Ban ban) {
+        log(new Entry(Action.BAN,
+                source == null ? "Plugin" : ChatUtil.toUniqueName(source),
+                source == null ? "local" : ServerUtil.toInetAddressString(source),
+                ban,
+                ban.getReason()));
+    }
+
+    public void logUnban(CommandSender source, Ban ban, String reason) {
+        log(new Entry(Action.UNBAN,
+                source == null ? "Plugin" : ChatUtil.toUniqueName(source),
+                source == null ? "local" : ServerUtil.toInetAddressString(source),
+                ban,
+                reason));
+    }
+
+    public void logKick(Player player, CommandSender source, String reason) {
+        log(new Entry(Action.KICK,
+                ChatUtil.toUniqueName(source),
+                ServerUtil.toInetAddressString(source),
+                player.getName(),
+                reason));
+    }
+
+    private void log(Entry entry) {
+        if (closed || !queue.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes out every record still waiting and closes the audit log file.
+     *
+     * @return whether the log was open
+     */
+    public boolean close() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Entry first;
+            try {
+                first = closed ? queue.poll() : queue.take();
+            } catch (InterruptedException e) {
+                // Interrupted by close(), so write out what is left
+                continue;
+            }
+            if (first == null) {
+                break;
+            }
+            batch.add(first);
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            try {
+                for (Entry entry : batch) {
+                    write(entry);
+                }
+                int lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    writeDropped(lost);
+                }
+                writer.flush();
+            } catch (IOException e) {
+                logger().warning("Failed to write to the ban audit log: " + e.getMessage());
+                closeFile();
+            }
+            batch.clear();
+        }
+        closeFile();
+    }
+
+    private void write(Entry entry) throws IOException {
+        line.setLength(0);
+        switch (entry.action) {
+            case BAN:
+                line.append("BAN: ").append(entry.source).append(" (").append(entry.address).append(") added ")
+                        .append(entry.subject).append(": ").append(entry.reason);
+                break;
+            case UNBAN:
+                line.append("UNBAN: ").append(entry.source).append(" (").append(entry.address).append(") removed ")
+                        .append(entry.subject).append(": ").append(entry.reason);
+                break;
+            case KICK:
+                line.append("KICKED: ").append(entry.source).append(" (").append(entry.address)
+                        .append(") kicked player '").append(entry.subject).append("': ").append(entry.reason);
+                break;
+        }
+        writeLine(entry.time);
+    }
+
+    private void writeDropped(int count) throws IOException {
+        line.setLength(0);
+        line.append("DROPPED: ").append(count).append(" records were not logged because the log fell behind");
+        writeLine(System.currentTimeMillis());
+    }
+
+    private void writeLine(long time) throws IOException {
+        formatStamp(time);
+        if (writer != null && size >= maxSize) {
+            rotate(date);
+        }
+        if (writer == null) {
+            openFile();
+        }
+        line.append("\r\n");
+        writer.write(stamp);
+        writer.append(line);
+        size += stamp.length + line.length();
+    }
+
+    /**
+     * Writes the local date and time into {@link #stamp} in place. The date
+     * is only recalculated when the day changes, which also rotates the log.
+     */
+    private void formatStamp(long time) throws IOException {
+        long local = time + timeZone.getOffset(time);
+        long localDay = local / DAY;
+        if (localDay != day) {
+            if (writer != null && date != null) {
+                rotate(date);
+            }
+            day = localDay;
+            Calendar calendar = Calendar.getInstance(timeZone);
+            calendar.setTimeInMillis(time);
+            int year = calendar.get(Calendar.YEAR);
+            int month = calendar.get(Calendar.MONTH) + 1;
+            int dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
+            writeDigits(1, dayOfMonth, 2);
+            writeDigits(4, month, 2);
+            writeDigits(7, year, 4);
+            date = String.format("%04d-%02d-%02d", year, month, dayOfMonth);
+        }
+        int seconds = (int) ((local - localDay * DAY) / 1000);
+        writeDigits(12, seconds / 3600, 2);
+        writeDigits(15, seconds / 60 % 60, 2);
+        writeDigits(18, seconds % 60, 2);
+    }
+
+    private void writeDigits(int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; --i) {
+            stamp[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private void openFile() throws IOException {
+        // A log left over from an earlier day is rotated under that day's date
+        if (file.length() > 0) {
+            Calendar modified = Calendar.getInstance(timeZone);
+            modified.setTimeInMillis(file.lastModified());
+            String modifiedDate = String.format("%04d-%02d-%02d", modified.get(Calendar.YEAR),
+                    modified.get(Calendar.MONTH) + 1, modified.get(Calendar.DAY_OF_MONTH));
+            if (!modifiedDate.equals(date)) {
+                rotate(modifiedDate);
+            }
+        }
+        size = file.length();
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "utf-8"));
+    }
+
+    private void closeFile() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Moves the current log to bans.[date].[n].log, using the first free number.
+     */
+    private void rotate(String logDate) {
+        closeFile();
+        if (!file.exists()) {
+            return;
+        }
+        File target;
+        int n = 0;
+        do {
+            target = new File(directory, "bans." + logDate + "." + n++ + ".log");
+        } while (target.exists());
+        if (!file.renameTo(target)) {
+            logger().warning("Failed to rotate " + file.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import java.io.*;
+import java.util.UUID;
+
+/**
+ * A single change made to a ban database on one server, as it is sent to the
+ * other servers. Every change carries the node it came from and that node's
+ * sequence number for it, which is used to tell which changes a node has
+ * already applied.
+ */
+public class BanChange {
+    private static final int FORMAT_VERSION = 1;
+
+    public enum Type {
+        BAN,
+        UNBAN,
+        UNBAN_NAME
+    }
+
+    private final Type type;
+    private final String origin;
+    private final long sequence;
+    private final long time;
+    private final UUID ID;
+    private final String name;
+    private final String address;
+    private final String reason;
+    private final long start;
+    private final long end;
+    private final String issuer;
+
+    private BanChange(Type type, String origin, long sequence, long time, UUID ID, String name, String address,
+                      String reason, long start, long end, String issuer) {
+        this.type = type;
+        this.origin = origin;
+        this.sequence = sequence;
+        this.time = time;
+        this.ID = ID;
+        this.name = name;
+        this.address = address;
+        this.reason = reason;
+        this.start = start;
+        this.end = end;
+        this.issuer = issuer;
+    }
+
+    public static BanChange ban(String origin, long sequence, Ban ban) {
+        return new BanChange(Type.BAN, origin, sequence, System.currentTimeMillis(), ban.getID(),
+                ban.getLastKnownAlias(), ban.getAddress(), ban.getReason(), ban.getStart(), ban.getEnd(),
+                ban.getIssuer());
+    }
+
+    public static BanChange unban(String origin, long sequence, UUID ID, String address, String reason) {
+        return new BanChange(Type.UNBAN, origin, sequence, System.currentTimeMillis(), ID, null, address,
+                reason, 0, 0, null);
+    }
+
+    public static BanChange unbanName(String origin, long sequence, String name, String reason) {
+        return new BanChange(Type.UNBAN_NAME, origin, sequence, System.currentTimeMillis(), null, name, null,
+                reason, 0, 0, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns when the change was made on its origin node.
+     *
+     * @return the time in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public UUID getID() {
+        return ID;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Returns the ban placed by this change.
+     *
+     * @return the ban, or null if this change lifts a ban
+     */
+    public Ban getBan() {
+        return type == Type.BAN ? new Ban(ID, name, address, reason, start, end, issuer) : null;
+    }
+
+    /**
+     * Checks whether this change was made after another change to the same ban.
+     * Changes made at the same time are ordered by their origin node.
+     *
+     * @param time The time of the other change
+     * @param origin The origin of the other change
+     * @return whether this change is newer
+     */
+    public boolean isNewerThan(long time, String origin) {
+        return this.time != time ? this.time > time : this.origin.compareTo(origin) > 0;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            output.writeByte(FORMAT_VERSION);
+            output.writeByte(type.ordinal());
+            output.writeUTF(origin);
+            output.writeLong(sequence);
+            output.writeLong(time);
+            output.writeBoolean(ID != null);
+            if (ID != null) {
+                output.writeLong(ID.getMostSignificantBits());
+                output.writeLong(ID.getLeastSignificantBits());
+            }
+            writeString(output, name);
+            writeString(output, address);
+            writeString(output, reason);
+            if (type == Type.BAN) {
+                output.writeLong(start);
+                output.writeLong(end);
+                writeString(output, issuer);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static BanChange decode(byte[] data) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        int version = input.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown ban change format " + version);
+        }
+        int typeIndex = input.readUnsignedByte();
+        if (typeIndex >= Type.values().length) {
+            throw new IOException("Unknown ban change type " + typeIndex);
+        }
+        Type type = Type.values()[typeIndex];
+        String origin = input.readUTF();
+        long sequence = input.readLong();
+        long time = input.readLong();
+        UUID ID = input.readBoolean() ? new UUID(input.readLong(), input.readLong()) : null;
+        String name = readString(input);
+        String address = readString(input);
+        String reason = readString(input);
+        long start = 0;
+        long end = 0;
+        String issuer = null;
+        if (type == Type.BAN) {
+            start = input.readLong();
+            end = input.readLong();
+            issuer = readString(input);
+        }
+        return new BanChange(type, origin, sequence, time, ID, name, address, reason, start, end, issuer);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    @Override
+    public String toString() {
+        return type + "[" + origin + "#" + sequence + "]";
+    }
+}
@@ -22,11 +22,18 @@
 import org.bukkit.entity.Player;
 
 import java.net.InetAddress;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 /**
  * Interface for a ban database.
  *
+ * <p>The lookup methods ({@code isBanned} and {@code getBanned}) are called from
+ * asynchronous login threads as well as the main thread, so implementations must
+ * make them thread-safe and keep them fast. They should not block on changes to
+ * the database for longer than a single indexed read.</p>
+ *
  * @author sk89q
  */
 public interface BanDatabase extends Iterable<Ban> {
@@ -60,7 +67,8 @@ public interface BanDatabase extends Iterable<Ban> {
     public boolean isBanned(UUID ID);
 
     /**
-     * Checks if a player's address is banned.
+     * Checks if a player's address is banned, either directly or as part of a
+     * banned address range.
      *
      * @param address The address to check
      * @return Whether the given address is banned
@@ -96,7 +104,8 @@ public interface BanDatabase extends Iterable<Ban> {
     public void ban(Player player, CommandSender source, String reason, long end);
 
     /**
-     * Bans a UUID and or address.
+     * Bans a UUID and or address. The address may also be a range in CIDR
+     * notation, such as 10.0.0.0/24.
      *
      * @param ID
      * @param name
@@ -107,6 +116,15 @@ public interface BanDatabase extends Iterable<Ban> {
      */
     public void ban(UUID ID, String name, String address, CommandSender source, String reason, long end);
 
+    /**
+     * Places a ban as it is given, keeping its start time and issuer. This is
+     * used for bans that were placed elsewhere, such as on another server.
+     *
+     * @param ban The ban to place
+     * @param source The source to log the ban as coming from, may be null
+     */
+    public void ban(Ban ban, CommandSender source);
+
     /**
      * Unbans a name.
      *
@@ -159,6 +177,15 @@ public interface BanDatabase extends Iterable<Ban> {
      */
     public void importFrom(BanDatabase bans);
 
+    /**
+     * Adds a batch of bans read from elsewhere, such as a bulk import. The bans
+     * are not logged one by one, and are not guaranteed to be stored until the
+     * next {@link #save()}.
+     *
+     * @param bans The bans to add
+     */
+    public void importBans(Collection<Ban> bans);
+
     /**
      * Returns a Ban with the given UUID
      * @param ID The UUID of the banned player.
@@ -168,8 +195,35 @@ public interface BanDatabase extends Iterable<Ban> {
 
     /**
      * Returns a Ban with the given address
-     * @param address The address given to the ban.
+     * @param address The address or address range given to the ban.
      * @return The applicable ban
      */
     public Ban getBanned(String address);
+
+    /**
+     * Returns the Ban which applies to an address. If the address is covered by
+     * several banned ranges, the most specific one is returned.
+     * @param address The address to check
+     * @return The applicable ban
+     */
+    public Ban getBanned(InetAddress address);
+
+    /**
+     * Returns a page of the bans matching a query, newest first. Databases that
+     * keep a history of lifted bans include it in the results.
+     *
+     * @param query The query to match bans against
+     * @param offset The number of matching bans to skip
+     * @param limit The maximum number of bans to return
+     * @return The matching bans
+     */
+    public List<Ban> query(BanQuery query, int offset, int limit);
+
+    /**
+     * Counts the bans matching a query.
+     *
+     * @param query The query to match bans against
+     * @return The number of matching bans
+     */
+    public int count(BanQuery query);
 }
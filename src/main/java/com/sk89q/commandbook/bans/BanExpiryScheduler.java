@@ -0,0 +1,114 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes temporary bans from a {@link CSVBanDatabase} once they end. Bans are kept
+ * in a queue ordered by their end time, and a dedicated thread sleeps until the
+ * earliest one is due, then hands every ban that has ended by then to the database
+ * in a single batch.
+ *
+ * <p>Bans which are replaced or removed before they end are left in the queue and
+ * ignored by the database when they come due.</p>
+ */
+public class BanExpiryScheduler implements Runnable {
+
+    private final CSVBanDatabase database;
+    private final DelayQueue<Expiry> queue = new DelayQueue<Expiry>();
+    private Thread thread;
+
+    public BanExpiryScheduler(CSVBanDatabase database) {
+        this.database = database;
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this, "CommandBook Ban Expiry");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Schedules a ban for removal when it ends. Permanent bans are ignored.
+     *
+     * @param ban The ban to schedule
+     */
+    public void schedule(Ban ban) {
+        if (ban.getEnd() != 0L) {
+            queue.add(new Expiry(ban));
+        }
+    }
+
+    public void clear() {
+        queue.clear();
+    }
+
+    public void run() {
+        List<Expiry> due = new ArrayList<Expiry>();
+        List<Ban> expired = new ArrayList<Ban>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                due.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(due);
+            for (Expiry expiry : due) {
+                expired.add(expiry.ban);
+            }
+            database.expire(expired);
+            due.clear();
+            expired.clear();
+        }
+    }
+
+    private static class Expiry implements Delayed {
+        private final Ban ban;
+
+        public Expiry(Ban ban) {
+            this.ban = ban;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(ban.getEnd() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long end = ban.getEnd();
+            long otherEnd = ((Expiry) other).ban.getEnd();
+            return end < otherEnd ? -1 : (end == otherEnd ? 0 : 1);
+        }
+    }
+}
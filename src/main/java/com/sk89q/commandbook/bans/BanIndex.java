@@ -0,0 +1,295 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The lookup structures of a {@link CSVBanDatabase}. Changes must be made by one
+ * thread at a time, while lookups may be made from any thread without locking.
+ */
+class BanIndex {
+
+    /**
+     * Orders bans newest first. Bans placed in the same millisecond are ordered by
+     * UUID, then address, then the order they were created in, so two different
+     * bans never compare as equal.
+     */
+    private static final Comparator<Ban> NEWEST_FIRST = new Comparator<Ban>() {
+        @Override
+        public int compare(Ban a, Ban b) {
+            if (a == b) return 0;
+            if (a.getStart() != b.getStart()) return a.getStart() > b.getStart() ? -1 : 1;
+            int result = compareNullable(a.getID() == null ? null : a.getID().toString(),
+                    b.getID() == null ? null : b.getID().toString());
+            if (result != 0) return result;
+            result = compareNullable(a.getAddress(), b.getAddress());
+            if (result != 0) return result;
+            return a.getSequence() < b.getSequence() ? -1 : (a.getSequence() == b.getSequence() ? 0 : 1);
+        }
+
+        private int compareNullable(String a, String b) {
+            if (a == null) return b == null ? 0 : -1;
+            return b == null ? 1 : a.compareTo(b);
+        }
+    };
+
+    /**
+     * Used to lookup bans by UUID
+     */
+    private final Map<UUID, Ban> UUIDBan = new ConcurrentHashMap<UUID, Ban>();
+
+    /**
+     * Used to lookup bans by name, only for bans that could not be converted to UUID
+     */
+    private final Map<String, Ban> nameBan = new ConcurrentHashMap<String, Ban>();
+
+    /**
+     * Used to lookup bans by ip address, sorted so that bans can be searched by address prefix
+     */
+    private final ConcurrentSkipListMap<String, Ban> ipBan = new ConcurrentSkipListMap<String, Ban>();
+
+    /**
+     * Used to lookup bans by address range, contains the same bans as {@link #ipBan}
+     */
+    private final AddressTrie<Ban> addressIndex = new AddressTrie<Ban>();
+
+    /**
+     * Used to search bans by issuer, with the issuer's name in lower case
+     */
+    private final Map<String, NavigableSet<Ban>> issuerBans = new ConcurrentHashMap<String, NavigableSet<Ban>>();
+
+    /**
+     * A set of all bans, newest first. No ban in the lookup maps is not in here.
+     */
+    private final NavigableSet<Ban> bans = new ConcurrentSkipListSet<Ban>(NEWEST_FIRST);
+
+    /**
+     * Adds a ban, replacing the bans on the same UUID and address. Each lookup
+     * entry is replaced in a single step, so a concurrent lookup sees either the
+     * old ban or the new one, never neither.
+     *
+     * @param ban The ban
+     */
+    public void put(Ban ban) {
+        index(ban);
+        if (ban.getID() != null) {
+            Ban oldBan = UUIDBan.put(ban.getID(), ban);
+            if (oldBan != null && oldBan != ban) {
+                unindex(oldBan);
+            }
+        }
+        if (ban.getAddress() != null) {
+            Ban oldBan = indexAddress(ban.getAddress(), ban);
+            if (oldBan != null && oldBan != ban) {
+                unindex(oldBan);
+            }
+        }
+    }
+
+    private void index(Ban ban) {
+        bans.add(ban);
+        if (ban.getIssuer() != null) {
+            String issuer = ban.getIssuer().toLowerCase();
+            NavigableSet<Ban> issued = issuerBans.get(issuer);
+            if (issued == null) {
+                issued = new ConcurrentSkipListSet<Ban>(NEWEST_FIRST);
+                issuerBans.put(issuer, issued);
+            }
+            issued.add(ban);
+        }
+    }
+
+    private void unindex(Ban ban) {
+        bans.remove(ban);
+        if (ban.getIssuer() != null) {
+            String issuer = ban.getIssuer().toLowerCase();
+            NavigableSet<Ban> issued = issuerBans.get(issuer);
+            if (issued != null) {
+                issued.remove(ban);
+                if (issued.isEmpty()) {
+                    issuerBans.remove(issuer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a ban which only has a name to identify the player by.
+     *
+     * @param ban The ban
+     */
+    public void putName(Ban ban) {
+        Ban oldBan = nameBan.put(ban.getLastKnownAlias().toLowerCase(), ban);
+        if (oldBan != null && oldBan != ban) {
+            unindex(oldBan);
+        }
+        index(ban);
+    }
+
+    /**
+     * Removes the ban on a UUID, or if there is none, the ban on an address. When
+     * the ban on the UUID is also the ban on the address, both are removed.
+     *
+     * @param ID The UUID, or null
+     * @param address The address, or null
+     * @return The removed ban, or null if there was none
+     */
+    public Ban remove(UUID ID, String address) {
+        Ban ban = null;
+        if (ID != null) {
+            ban = UUIDBan.remove(ID);
+        }
+        if (address != null && (ban == null || ipBan.get(address) == ban)) {
+            Ban addressBan = unindexAddress(address);
+            if (ban == null) {
+                ban = addressBan;
+            }
+        }
+        if (ban != null) {
+            unindex(ban);
+        }
+        return ban;
+    }
+
+    public Ban removeName(String name) {
+        Ban ban = nameBan.remove(name.toLowerCase());
+        if (ban != null) {
+            unindex(ban);
+        }
+        return ban;
+    }
+
+    private Ban indexAddress(String address, Ban ban) {
+        AddressRange range = AddressRange.parse(address);
+        if (range != null) {
+            addressIndex.put(range, ban);
+        }
+        return ipBan.put(address, ban);
+    }
+
+    private Ban unindexAddress(String address) {
+        Ban ban = ipBan.remove(address);
+        if (ban != null) {
+            AddressRange range = AddressRange.parse(address);
+            if (range != null) {
+                addressIndex.remove(range);
+            }
+        }
+        return ban;
+    }
+
+    public Ban get(UUID ID) {
+        return UUIDBan.get(ID);
+    }
+
+    public Ban get(String address) {
+        return ipBan.get(address);
+    }
+
+    public Ban find(InetAddress address) {
+        return addressIndex.find(address);
+    }
+
+    public Ban getName(String name) {
+        return nameBan.get(name.toLowerCase());
+    }
+
+    public boolean hasNameBans() {
+        return !nameBan.isEmpty();
+    }
+
+    public Collection<Ban> getNameBans() {
+        return Collections.unmodifiableCollection(nameBan.values());
+    }
+
+    public Set<Ban> getBans() {
+        return Collections.unmodifiableSet(bans);
+    }
+
+    /**
+     * Picks the smallest index that can answer a query, newest first. The
+     * returned bans still have to be checked against the query.
+     *
+     * @param query The query
+     * @return The candidate bans
+     */
+    private Iterable<Ban> candidates(BanQuery query) {
+        if (query.getIssuer() != null) {
+            NavigableSet<Ban> issued = issuerBans.get(query.getIssuer().toLowerCase());
+            return issued == null ? Collections.<Ban>emptySet() : issued;
+        }
+        if (query.getAddressPrefix() != null) {
+            String prefix = query.getAddressPrefix();
+            List<Ban> matched = new ArrayList<Ban>(ipBan.subMap(prefix, prefix + Character.MAX_VALUE).values());
+            Collections.sort(matched, NEWEST_FIRST);
+            return matched;
+        }
+        long before = query.getStartedBefore();
+        long after = query.getStartedAfter();
+        if (before != 0 && after > before) {
+            return Collections.emptySet();
+        }
+        // The set is sorted newest first, so the upper time bound comes first. The bounds
+        // are kept one millisecond outside the range, as bans are checked against the query anyway.
+        NavigableSet<Ban> range = bans;
+        if (before != 0 && before != Long.MAX_VALUE) {
+            range = range.tailSet(new Ban(null, null, null, null, before + 1, 0), false);
+        }
+        if (after != 0 && after != Long.MIN_VALUE) {
+            range = range.headSet(new Ban(null, null, null, null, after - 1, 0), false);
+        }
+        return range;
+    }
+
+    /**
+     * Returns a page of the bans matching a query, newest first.
+     *
+     * @param query The query
+     * @param offset The number of matching bans to skip
+     * @param limit The maximum number of bans to return
+     * @return The matching bans
+     */
+    public List<Ban> query(BanQuery query, int offset, int limit) {
+        List<Ban> page = new ArrayList<Ban>(Math.min(limit, 64));
+        for (Ban ban : candidates(query)) {
+            if (page.size() >= limit) {
+                break;
+            }
+            if (query.matches(ban) && offset-- <= 0) {
+                page.add(ban);
+            }
+        }
+        return page;
+    }
+
+    public int count(BanQuery query) {
+        int count = 0;
+        for (Ban ban : candidates(query)) {
+            if (query.matches(ban)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+}
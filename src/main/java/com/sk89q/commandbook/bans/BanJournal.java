@@ -0,0 +1,257 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+import java.io.*;
+import java.util.UUID;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * An append-only log of changes made to a ban database since its last snapshot.
+ * Every ban and unban is written as a single CSV record, so a change costs one
+ * small append instead of a rewrite of the whole ban list. The journal is folded
+ * back into the snapshot by compaction, during which the current journal is moved
+ * aside so that new changes can keep being appended while the snapshot is written.
+ */
+public class BanJournal {
+    private static final String BAN_RECORD = "B";
+    private static final String UNBAN_RECORD = "U";
+    private static final String UNBAN_NAME_RECORD = "N";
+
+    private final File file;
+    private final File compactingFile;
+    private FileOutputStream output;
+    private CSVWriter writer;
+    private int records;
+
+    /**
+     * Receives the records of a journal while it is being replayed.
+     */
+    public interface RecordHandler {
+        public void ban(Ban ban);
+
+        public void unban(UUID ID, String address);
+
+        public void unbanName(String name);
+    }
+
+    public BanJournal(File file) {
+        this.file = file;
+        this.compactingFile = new File(file.getPath() + ".compacting");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of records appended since the last compaction.
+     *
+     * @return the number of records
+     */
+    public synchronized int getRecordCount() {
+        return records;
+    }
+
+    public synchronized void appendBan(Ban ban) throws IOException {
+        append(new String[] {
+                BAN_RECORD,
+                String.valueOf(ban.getID()),
+                ban.getLastKnownAlias(),
+                ban.getAddress(),
+                ban.getReason(),
+                String.valueOf(ban.getStart()),
+                String.valueOf(ban.getEnd()),
+                ban.getIssuer()
+        });
+    }
+
+    public synchronized void appendUnban(UUID ID, String address) throws IOException {
+        append(new String[] {UNBAN_RECORD, String.valueOf(ID), address});
+    }
+
+    public synchronized void appendUnbanName(String name) throws IOException {
+        append(new String[] {UNBAN_NAME_RECORD, name});
+    }
+
+    private void append(String[] record) throws IOException {
+        if (writer == null) {
+            output = new FileOutputStream(file, true);
+            writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(output, "utf-8")));
+        }
+        writer.writeNext(record);
+        writer.flush();
+        ++records;
+    }
+
+    /**
+     * Forces all appended records to disk.
+     *
+     * @return whether the operation was fully successful
+     */
+    public synchronized boolean flush() {
+        if (writer == null) {
+            return true;
+        }
+        try {
+            writer.flush();
+            output.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            logger().warning("Failed to flush " + file.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+            }
+            writer = null;
+            output = null;
+        }
+    }
+
+    /**
+     * Moves the current journal aside so that a snapshot can be written while new
+     * records go to a fresh journal. If a previous compaction did not finish,
+     * the current journal is appended to the one that was left behind.
+     *
+     * @return whether the operation was fully successful
+     */
+    public synchronized boolean beginCompaction() {
+        close();
+        records = 0;
+        if (!file.exists()) {
+            return true;
+        }
+        if (!compactingFile.exists()) {
+            if (file.renameTo(compactingFile)) {
+                return true;
+            }
+            logger().warning("Failed to move " + file.getAbsolutePath() + " aside for compaction");
+            return false;
+        }
+
+        FileInputStream input = null;
+        FileOutputStream compactingOutput = null;
+        try {
+            input = new FileInputStream(file);
+            compactingOutput = new FileOutputStream(compactingFile, true);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                compactingOutput.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            logger().warning("Failed to move " + file.getAbsolutePath() + " aside for compaction: " + e.getMessage());
+            return false;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (compactingOutput != null) {
+                try {
+                    compactingOutput.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return file.delete();
+    }
+
+    /**
+     * Discards the records that were moved aside by {@link #beginCompaction()},
+     * once they are contained in a snapshot.
+     */
+    public synchronized void finishCompaction() {
+        if (compactingFile.exists() && !compactingFile.delete()) {
+            logger().warning("Failed to delete " + compactingFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Replays every record that has not been compacted yet, oldest first.
+     *
+     * @param handler The handler to pass records to
+     * @return whether the operation was fully successful
+     */
+    public synchronized boolean replay(RecordHandler handler) {
+        records = 0;
+        return replay(compactingFile, handler) & replay(file, handler);
+    }
+
+    private boolean replay(File source, RecordHandler handler) {
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(source);
+            CSVReader reader = new CSVReader(new BufferedReader(new InputStreamReader(input, "utf-8")));
+            String[] line;
+            while ((line = reader.readNext()) != null) {
+                try {
+                    if (BAN_RECORD.equals(line[0]) && line.length >= 7) {
+                        handler.ban(new Ban(parseID(line[1]), nullIfEmpty(line[2]), nullIfEmpty(line[3]),
+                                nullIfEmpty(line[4]), Long.parseLong(line[5]), Long.parseLong(line[6]),
+                                line.length >= 8 ? nullIfEmpty(line[7]) : null));
+                    } else if (UNBAN_RECORD.equals(line[0]) && line.length >= 3) {
+                        handler.unban(parseID(line[1]), nullIfEmpty(line[2]));
+                    } else if (UNBAN_NAME_RECORD.equals(line[0]) && line.length >= 2) {
+                        handler.unbanName(line[1]);
+                    } else {
+                        logger().warning("An invalid ban journal record was found!");
+                        continue;
+                    }
+                    ++records;
+                } catch (IllegalArgumentException e) {
+                    logger().warning("An invalid ban journal record was found!");
+                }
+            }
+            return true;
+        } catch (FileNotFoundException ignored) {
+            return true;
+        } catch (IOException e) {
+            logger().warning("Failed to replay " + source.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static UUID parseID(String raw) {
+        return raw == null || raw.isEmpty() || raw.equals("null") ? null : UUID.fromString(raw);
+    }
+
+    private static String nullIfEmpty(String raw) {
+        return raw == null || raw.isEmpty() || raw.equals("null") ? null : raw;
+    }
+}
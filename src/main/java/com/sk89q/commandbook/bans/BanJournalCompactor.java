@@ -0,0 +1,42 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+/**
+ * Periodically folds the ban journal into the ban list once enough changes have
+ * accumulated. Meant to be run as an asynchronous task.
+ */
+public class BanJournalCompactor implements Runnable {
+
+    public static final long CHECK_FREQUENCY = 20 * 60;
+
+    private final CSVBanDatabase database;
+    private final int threshold;
+
+    public BanJournalCompactor(CSVBanDatabase database, int threshold) {
+        this.database = database;
+        this.threshold = threshold;
+    }
+
+    public void run() {
+        if (database.getJournalSize() >= threshold) {
+            database.compact();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+/**
+ * A set of filters used to search a {@link BanDatabase}. Every filter is
+ * optional, and a ban matches the query when it passes all of the filters
+ * that are set.
+ */
+public class BanQuery {
+
+    /**
+     * Whether matched bans must still be in effect.
+     */
+    public enum Status {
+        ANY,
+        ACTIVE,
+        EXPIRED
+    }
+
+    private String issuer;
+    private String reason;
+    private long startedAfter;
+    private long startedBefore;
+    private Status status = Status.ANY;
+    private String addressPrefix;
+
+    public String getIssuer() {
+        return issuer;
+    }
+
+    /**
+     * Only match bans placed by an issuer, ignoring case.
+     *
+     * @param issuer The issuer's name
+     * @return this query
+     */
+    public BanQuery setIssuer(String issuer) {
+        this.issuer = issuer;
+        return this;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Only match bans whose reason contains some text, ignoring case.
+     *
+     * @param reason The text
+     * @return this query
+     */
+    public BanQuery setReason(String reason) {
+        this.reason = reason == null ? null : reason.toLowerCase();
+        return this;
+    }
+
+    public long getStartedAfter() {
+        return startedAfter;
+    }
+
+    /**
+     * Only match bans placed at or after a time.
+     *
+     * @param startedAfter The time, or 0 for no lower bound
+     * @return this query
+     */
+    public BanQuery setStartedAfter(long startedAfter) {
+        this.startedAfter = startedAfter;
+        return this;
+    }
+
+    public long getStartedBefore() {
+        return startedBefore;
+    }
+
+    /**
+     * Only match bans placed at or before a time.
+     *
+     * @param startedBefore The time, or 0 for no upper bound
+     * @return this query
+     */
+    public BanQuery setStartedBefore(long startedBefore) {
+        this.startedBefore = startedBefore;
+        return this;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public BanQuery setStatus(Status status) {
+        this.status = status == null ? Status.ANY : status;
+        return this;
+    }
+
+    public String getAddressPrefix() {
+        return addressPrefix;
+    }
+
+    /**
+     * Only match bans on an address or range starting with some text, such as "10.0.".
+     *
+     * @param addressPrefix The text
+     * @return this query
+     */
+    public BanQuery setAddressPrefix(String addressPrefix) {
+        this.addressPrefix = addressPrefix;
+        return this;
+    }
+
+    /**
+     * Checks a ban against every filter of this query.
+     *
+     * @param ban The ban
+     * @return whether the ban matches
+     */
+    public boolean matches(Ban ban) {
+        if (issuer != null && !issuer.equalsIgnoreCase(ban.getIssuer())) {
+            return false;
+        }
+        if (reason != null && (ban.getReason() == null || !ban.getReason().toLowerCase().contains(reason))) {
+            return false;
+        }
+        if (startedAfter != 0 && ban.getStart() < startedAfter) {
+            return false;
+        }
+        if (startedBefore != 0 && ban.getStart() > startedBefore) {
+            return false;
+        }
+        if (addressPrefix != null && (ban.getAddress() == null || !ban.getAddress().startsWith(addressPrefix))) {
+            return false;
+        }
+        switch (status) {
+            case ACTIVE:
+                return CSVBanDatabase.isActive(ban);
+            case EXPIRED:
+                return !CSVBanDatabase.isActive(ban);
+            default:
+                return true;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries {@link BanChange}s between the servers sharing a ban list. A
+ * transport must deliver the changes of each node in the order they were
+ * published, but may deliver a change more than once.
+ */
+public interface BanSyncTransport {
+
+    /**
+     * Receives the changes published by other nodes.
+     */
+    public interface Receiver {
+        /**
+         * Called with changes from other nodes, in the order each node published them.
+         *
+         * @param changes The changes
+         */
+        public void receive(List<BanChange> changes);
+    }
+
+    /**
+     * Starts delivering changes from other nodes.
+     *
+     * @param node The name of this node
+     * @param positions The positions returned by {@link #getPositions()} when the state was last saved
+     * @param receiver The receiver to deliver changes to
+     * @return The highest sequence number this node has already published, or 0
+     * @throws IOException if the transport could not be started
+     */
+    public long start(String node, Map<String, Long> positions, Receiver receiver) throws IOException;
+
+    /**
+     * Gets how far the changes of other nodes have been delivered, to be saved
+     * with the state of this node. A position only covers changes that the
+     * receiver has already returned from.
+     *
+     * @return The positions, by the transport's own keys
+     */
+    public Map<String, Long> getPositions();
+
+    /**
+     * Sends a change made on this node to the other nodes.
+     *
+     * @param change The change
+     * @throws IOException if the change could not be sent
+     */
+    public void publish(BanChange change) throws IOException;
+
+    /**
+     * Delivers the changes of a node again, from the oldest change the transport
+     * still holds. Used when a gap is found in the changes delivered from it.
+     *
+     * @param node The name of the node
+     */
+    public void resync(String node);
+
+    public void stop();
+}
@@ -0,0 +1,388 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+import com.sk89q.commandbook.util.FileUtil;
+import com.sk89q.commandbook.util.entity.player.UUIDUtil;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams bans between a {@link BanDatabase} and a ban list file, one row at a
+ * time. Only a batch of rows is held in memory at once, and names without a
+ * UUID are looked up a batch at a time. Exports are written to a temporary
+ * file that is renamed into place once it is complete.
+ *
+ * <p>Both formats can be read and written. CSV files use the same columns as
+ * bans.csv, while JSON files use the format of the server's banned-players.json
+ * and banned-ips.json, with an extra "ip" field for address bans.</p>
+ */
+public class BanTransfer {
+
+    /**
+     * The number of bans handed to the database at once
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    /**
+     * How often progress is reported
+     */
+    public static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+    public enum Format {
+        CSV,
+        JSON;
+
+        /**
+         * Picks the format of a file from its extension.
+         *
+         * @param file The file
+         * @return The format, or null if it is not known
+         */
+        public static Format fromFile(File file) {
+            String name = file.getName().toLowerCase();
+            if (name.endsWith(".csv")) {
+                return CSV;
+            } else if (name.endsWith(".json")) {
+                return JSON;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Receives progress reports while bans are transferred.
+     */
+    public interface ProgressListener {
+        /**
+         * @param count The number of bans transferred so far
+         * @param elapsed The time spent so far, in milliseconds
+         */
+        public void progress(long count, long elapsed);
+    }
+
+    private final BanDatabase database;
+    private final ProgressListener listener;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z");
+    private final List<Ban> ready = new ArrayList<Ban>(BATCH_SIZE);
+    private final List<Ban> unresolved = new ArrayList<Ban>(UUIDUtil.BATCH_SIZE);
+    private long count;
+    private long started;
+    private long lastReport;
+
+    public BanTransfer(BanDatabase database, ProgressListener listener) {
+        this.database = database;
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the number of bans transferred so far.
+     *
+     * @return the number of bans
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Reads every ban from a file into the database.
+     *
+     * @param file The file to read
+     * @param format The format of the file
+     * @return The number of bans imported
+     * @throws IOException if the file could not be read
+     */
+    public long importFile(File file, Format format) throws IOException {
+        start();
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "utf-8"));
+        try {
+            switch (format) {
+                case CSV:
+                    CSVReader csvReader = new CSVReader(reader);
+                    String[] line;
+                    while ((line = csvReader.readNext()) != null) {
+                        Ban ban = CSVBanDatabase.readBan(line);
+                        if (ban != null) {
+                            add(ban);
+                        }
+                    }
+                    break;
+                case JSON:
+                    try {
+                        new JSONParser().parse(reader, new JSONBanHandler());
+                    } catch (ParseException e) {
+                        throw new IOException("Invalid JSON: " + e);
+                    }
+                    break;
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+        resolve();
+        flush();
+        database.save();
+        return count;
+    }
+
+    /**
+     * Writes every ban in the database to a file.
+     *
+     * @param file The file to write
+     * @param format The format to write in
+     * @return The number of bans exported
+     * @throws IOException if the file could not be written
+     */
+    public long exportFile(File file, Format format) throws IOException {
+        start();
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, "utf-8"));
+            switch (format) {
+                case CSV:
+                    CSVWriter csvWriter = new CSVWriter(writer);
+                    for (Ban ban : database) {
+                        csvWriter.writeNext(CSVBanDatabase.writeBan(ban));
+                        progress(1);
+                    }
+                    csvWriter.flush();
+                    break;
+                case JSON:
+                    writer.write('[');
+                    boolean first = true;
+                    for (Ban ban : database) {
+                        writer.write(first ? "\n  " : ",\n  ");
+                        writer.write(JSONObject.toJSONString(writeJSONBan(ban)));
+                        first = false;
+                        progress(1);
+                    }
+                    writer.write("\n]\n");
+                    writer.flush();
+                    break;
+            }
+            output.getFD().sync();
+        } finally {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        if (!FileUtil.replace(tempFile, file)) {
+            throw new IOException("Failed to replace " + file.getPath() + " with " + tempFile.getPath());
+        }
+        listener.progress(count, System.currentTimeMillis() - started);
+        return count;
+    }
+
+    private void start() {
+        count = 0;
+        started = lastReport = System.currentTimeMillis();
+    }
+
+    private void progress(int transferred) {
+        count += transferred;
+        long now = System.currentTimeMillis();
+        if (now - lastReport >= PROGRESS_INTERVAL) {
+            lastReport = now;
+            listener.progress(count, now - started);
+        }
+    }
+
+    private void add(Ban ban) {
+        if (ban.getID() == null && ban.getLastKnownAlias() != null) {
+            unresolved.add(ban);
+            if (unresolved.size() == UUIDUtil.BATCH_SIZE) {
+                resolve();
+            }
+        } else {
+            ready.add(ban);
+            if (ready.size() == BATCH_SIZE) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Looks up the UUIDs of the bans that only have a name. Bans whose name
+     * cannot be found are imported as they are.
+     */
+    private void resolve() {
+        if (unresolved.isEmpty()) {
+            return;
+        }
+        List<String> names = new ArrayList<String>(unresolved.size());
+        for (Ban ban : unresolved) {
+            names.add(ban.getLastKnownAlias());
+        }
+        Map<String, UUID> resolved = UUIDUtil.convert(names);
+        for (Ban ban : unresolved) {
+            UUID ID = resolved.get(ban.getLastKnownAlias().toLowerCase());
+            if (ID != null) {
+                ban = new Ban(ID, ban.getLastKnownAlias(), ban.getAddress(), ban.getReason(),
+                        ban.getStart(), ban.getEnd(), ban.getIssuer());
+            }
+            ready.add(ban);
+            if (ready.size() == BATCH_SIZE) {
+                flush();
+            }
+        }
+        unresolved.clear();
+    }
+
+    private void flush() {
+        if (ready.isEmpty()) {
+            return;
+        }
+        database.importBans(ready);
+        progress(ready.size());
+        ready.clear();
+    }
+
+    private Map<String, Object> writeJSONBan(Ban ban) {
+        Map<String, Object> entry = new LinkedHashMap<String, Object>();
+        if (ban.getID() != null) {
+            entry.put("uuid", ban.getID().toString());
+        }
+        if (ban.getLastKnownAlias() != null) {
+            entry.put("name", ban.getLastKnownAlias());
+        }
+        if (ban.getAddress() != null) {
+            entry.put("ip", ban.getAddress());
+        }
+        entry.put("created", dateFormat.format(new Date(ban.getStart())));
+        entry.put("source", ban.getIssuer() == null ? "CommandBook" : ban.getIssuer());
+        entry.put("expires", ban.getEnd() == 0L ? "forever" : dateFormat.format(new Date(ban.getEnd())));
+        entry.put("reason", ban.getReason());
+        return entry;
+    }
+
+    private Ban readJSONBan(Map<String, Object> entry) {
+        try {
+            String rawID = (String) entry.get("uuid");
+            String name = (String) entry.get("name");
+            String address = AddressRange.normalize((String) entry.get("ip"));
+            if (rawID == null && name == null && address == null) {
+                return null;
+            }
+            return new Ban(rawID == null ? null : UUID.fromString(rawID),
+                    name == null ? null : name.toLowerCase(),
+                    address,
+                    (String) entry.get("reason"),
+                    readJSONDate(entry.get("created"), 0L),
+                    readJSONDate(entry.get("expires"), 0L),
+                    (String) entry.get("source"));
+        } catch (ClassCastException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private long readJSONDate(Object value, long def) {
+        if (!(value instanceof String) || value.equals("forever")) {
+            return def;
+        }
+        try {
+            return dateFormat.parse((String) value).getTime();
+        } catch (java.text.ParseException e) {
+            return def;
+        }
+    }
+
+    /**
+     * Collects the fields of each object in the top level array as the file is
+     * parsed, and adds a ban whenever an object ends.
+     */
+    private class JSONBanHandler implements ContentHandler {
+        private int depth;
+        private String key;
+        private Map<String, Object> entry;
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            if (++depth == 1) {
+                entry = new HashMap<String, Object>();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            if (depth-- == 1 && entry != null) {
+                Ban ban = readJSONBan(entry);
+                if (ban != null) {
+                    add(ban);
+                }
+                entry = null;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            this.key = key;
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            key = null;
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) {
+            if (depth == 1 && entry != null && key != null) {
+                entry.put(key, value);
+            }
+            return true;
+        }
+    }
+}
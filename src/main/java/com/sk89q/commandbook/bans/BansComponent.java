@@ -20,6 +20,7 @@
 
 import com.sk89q.commandbook.CommandBook;
 import com.sk89q.commandbook.InfoComponent;
+import com.sk89q.commandbook.commands.PaginatedResult;
 import com.sk89q.commandbook.util.ChatUtil;
 import com.sk89q.commandbook.util.InputUtil;
 import com.sk89q.minecraft.util.commands.*;
@@ -34,23 +35,79 @@
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
-import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.sk89q.commandbook.CommandBook.logger;
 
 @ComponentInformation(friendlyName = "Bans", desc = "A system for kicks and bans.")
 public class BansComponent extends BukkitComponent implements Listener {
+    /**
+     * How often the ban sync state is written if it has changed, in ticks
+     */
+    private static final long SYNC_STATE_FREQUENCY = 20;
+
     private BanDatabase bans;
     private LocalConfiguration config;
+    private int compactorTask = -1;
+    private int syncStateTask = -1;
+    private final AtomicBoolean transferRunning = new AtomicBoolean();
+    private final AtomicBoolean searchRunning = new AtomicBoolean();
 
     @Override
     public void enable() {
         config = configure(new LocalConfiguration());
 
         // Setup the ban database
-        bans = new CSVBanDatabase(CommandBook.inst().getDataFolder());
-        bans.load();
+        File dataFolder = CommandBook.inst().getDataFolder();
+        if (config.backend.equalsIgnoreCase("sqlite")) {
+            SQLiteBanDatabase sqlBans = new SQLiteBanDatabase(dataFolder);
+            if (sqlBans.load()) {
+                importCSVBans(sqlBans, dataFolder);
+                bans = sqlBans;
+            } else {
+                logger().warning("Falling back to CSV ban storage");
+                sqlBans.unload();
+            }
+        }
+        if (bans == null) {
+            CSVBanDatabase csvBans = new CSVBanDatabase(dataFolder);
+            csvBans.load();
+            compactorTask = CommandBook.server().getScheduler().scheduleAsyncRepeatingTask(
+                    CommandBook.inst(), new BanJournalCompactor(csvBans, config.journalCompactThreshold),
+                    BanJournalCompactor.CHECK_FREQUENCY, BanJournalCompactor.CHECK_FREQUENCY);
+            bans = csvBans;
+        }
+        if (config.syncEnabled) {
+            File syncDirectory = new File(config.syncDirectory);
+            if (!syncDirectory.isAbsolute()) {
+                syncDirectory = new File(dataFolder, config.syncDirectory);
+            }
+            SyncedBanDatabase syncedBans = new SyncedBanDatabase(bans,
+                    new FileBanSyncTransport(syncDirectory, config.syncPollInterval),
+                    new File(dataFolder, "ban-sync.state"), config.syncNode);
+            if (syncedBans.startSync()) {
+                bans = syncedBans;
+                final SyncedBanDatabase stateBans = syncedBans;
+                syncStateTask = CommandBook.server().getScheduler().scheduleAsyncRepeatingTask(
+                        CommandBook.inst(), new Runnable() {
+                            @Override
+                            public void run() {
+                                stateBans.flushState();
+                            }
+                        }, SYNC_STATE_FREQUENCY, SYNC_STATE_FREQUENCY);
+            }
+        }
+        convertNameBansLater();
         CommandBook.registerEvents(this);
         registerCommands(Commands.class);
     }
@@ -59,18 +116,237 @@ public void enable() {
     public void reload() {
         super.reload();
         getBanDatabase().load();
+        convertNameBansLater();
         configure(config);
     }
 
     @Override
     public void disable() {
+        if (compactorTask != -1) {
+            CommandBook.server().getScheduler().cancelTask(compactorTask);
+            compactorTask = -1;
+        }
+        if (syncStateTask != -1) {
+            CommandBook.server().getScheduler().cancelTask(syncStateTask);
+            syncStateTask = -1;
+        }
         bans.unload();
+        bans = null;
+    }
+
+    /**
+     * Looks up the UUIDs of bans that only have a name in the background, rather
+     * than blocking while the ban list is loaded.
+     */
+    private void convertNameBansLater() {
+        BanDatabase database = bans instanceof SyncedBanDatabase ? ((SyncedBanDatabase) bans).getDelegate() : bans;
+        if (!(database instanceof CSVBanDatabase)) {
+            return;
+        }
+        final CSVBanDatabase csvBans = (CSVBanDatabase) database;
+        CommandBook.server().getScheduler().scheduleAsyncDelayedTask(CommandBook.inst(), new Runnable() {
+            @Override
+            public void run() {
+                csvBans.convertNameBans();
+            }
+        });
+    }
+
+    /**
+     * Resolves a ban list file name within the plugin's data folder.
+     *
+     * @param name The file name
+     * @return The file
+     * @throws CommandException if the file is outside of the data folder
+     */
+    private File matchTransferFile(String name) throws CommandException {
+        File dataFolder = CommandBook.inst().getDataFolder();
+        File file = new File(dataFolder, name);
+        try {
+            if (!file.getCanonicalPath().startsWith(dataFolder.getCanonicalPath() + File.separator)) {
+                throw new CommandException("Ban lists must be within the CommandBook folder.");
+            }
+        } catch (IOException e) {
+            throw new CommandException("Invalid file name: " + name);
+        }
+        return file;
+    }
+
+    private BanTransfer.Format matchTransferFormat(CommandContext args, File file) throws CommandException {
+        BanTransfer.Format format;
+        if (args.hasFlag('f')) {
+            try {
+                format = BanTransfer.Format.valueOf(args.getFlag('f').toUpperCase());
+            } catch (IllegalArgumentException e) {
+                format = null;
+            }
+        } else {
+            format = BanTransfer.Format.fromFile(file);
+        }
+        if (format == null) {
+            throw new CommandException("Unknown ban list format, use -f csv or -f json.");
+        }
+        return format;
+    }
+
+    /**
+     * Imports or exports a ban list in the background, reporting progress to
+     * the sender from the main thread.
+     *
+     * @param sender The sender to report to
+     * @param file The ban list file
+     * @param format The format of the file
+     * @param importing Whether to import rather than export
+     * @throws CommandException if another transfer is running
+     */
+    private void transferLater(final CommandSender sender, final File file, final BanTransfer.Format format,
+                               final boolean importing) throws CommandException {
+        if (!transferRunning.compareAndSet(false, true)) {
+            throw new CommandException("A ban list is already being imported or exported.");
+        }
+        final String action = importing ? "Imported " : "Exported ";
+        final BanTransfer transfer = new BanTransfer(getBanDatabase(), new BanTransfer.ProgressListener() {
+            @Override
+            public void progress(long count, long elapsed) {
+                reportLater(sender, ChatColor.YELLOW + action + count + " bans ("
+                        + (elapsed > 0 ? count * 1000 / elapsed : count) + " per second)...");
+            }
+        });
+        sender.sendMessage(ChatColor.YELLOW + (importing ? "Importing" : "Exporting")
+                + " bans " + (importing ? "from " : "to ") + file.getName() + "...");
+        CommandBook.server().getScheduler().scheduleAsyncDelayedTask(CommandBook.inst(), new Runnable() {
+            @Override
+            public void run() {
+                long started = System.currentTimeMillis();
+                try {
+                    long count = importing ? transfer.importFile(file, format) : transfer.exportFile(file, format);
+                    reportLater(sender, ChatColor.YELLOW + action + count + " bans in "
+                            + (System.currentTimeMillis() - started) / 1000.0 + " seconds.");
+                } catch (IOException e) {
+                    logger().warning("Failed to transfer bans with " + file.getAbsolutePath() + ": " + e.getMessage());
+                    reportLater(sender, ChatColor.RED + "Failed after " + transfer.getCount()
+                            + " bans: " + e.getMessage());
+                } finally {
+                    transferRunning.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a ban search off the main thread, as it may have to read through a long
+     * history, and shows the requested page once it is done. One search runs at a time.
+     *
+     * @param sender The sender to show the results to
+     * @param query The query
+     * @param page The page to show, starting at 1
+     * @throws CommandException if another search is running
+     */
+    private void searchLater(final CommandSender sender, final BanQuery query, final int page) throws CommandException {
+        if (!searchRunning.compareAndSet(false, true)) {
+            throw new CommandException("Another ban search is running, try again shortly.");
+        }
+        final BanDatabase bans = getBanDatabase();
+        CommandBook.server().getScheduler().scheduleAsyncDelayedTask(CommandBook.inst(), new Runnable() {
+            @Override
+            public void run() {
+                final int count;
+                final List<Ban> results;
+                try {
+                    // Clamped the same way as the page the results are displayed on
+                    count = bans.count(query);
+                    int maxPage = Math.max(0, (count - 1) / PaginatedResult.PER_PAGE);
+                    int offset = Math.max(0, Math.min(page - 1, maxPage)) * PaginatedResult.PER_PAGE;
+                    results = count == 0 ? Collections.<Ban>emptyList()
+                            : bans.query(query, offset, PaginatedResult.PER_PAGE);
+                } finally {
+                    searchRunning.set(false);
+                }
+                CommandBook.server().getScheduler().scheduleSyncDelayedTask(CommandBook.inst(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            getSearchResult().display(sender, new PaginatedResult.ResultSource<Ban>() {
+                                @Override
+                                public int count() {
+                                    return count;
+                                }
+
+                                @Override
+                                public List<Ban> getPage(int offset, int limit) {
+                                    return results;
+                                }
+                            }, page);
+                        } catch (CommandException e) {
+                            sender.sendMessage(ChatColor.RED + e.getMessage());
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the database bans are stored in, below any synchronization.
+     *
+     * @return The ban database
+     */
+    private BanDatabase getBackend() {
+        return bans instanceof SyncedBanDatabase ? ((SyncedBanDatabase) bans).getDelegate() : bans;
+    }
+
+    private void reportLater(final CommandSender sender, final String message) {
+        CommandBook.server().getScheduler().scheduleSyncDelayedTask(CommandBook.inst(), new Runnable() {
+            @Override
+            public void run() {
+                sender.sendMessage(message);
+            }
+        });
+    }
+
+    /**
+     * Moves the bans of an existing bans.csv into a newly created SQL database.
+     * This only happens once, as bans.csv is renamed after it has been imported.
+     *
+     * @param sqlBans The SQL database
+     * @param dataFolder The folder containing bans.csv
+     */
+    private void importCSVBans(SQLiteBanDatabase sqlBans, File dataFolder) {
+        File csvFile = new File(dataFolder, "bans.csv");
+        if (!csvFile.exists() || !sqlBans.isEmpty()) {
+            return;
+        }
+        // Read the files directly, as loading a CSV database would start its threads and rewrite bans.csv
+        Collection<Ban> csvBans = CSVBanDatabase.readBans(dataFolder);
+        if (csvBans == null) {
+            return;
+        }
+        if (!sqlBans.insertBans(new ArrayList<Ban>(csvBans))) {
+            // Left in place, so the import is tried again on the next start
+            logger().warning("Failed to import bans.csv into the SQLite ban database");
+            return;
+        }
+        if (csvFile.renameTo(new File(dataFolder, "bans.csv.imported"))) {
+            logger().info("Imported bans.csv into the SQLite ban database");
+        } else {
+            logger().warning("Failed to rename bans.csv after importing it");
+        }
+        File journalFile = new File(dataFolder, "bans.journal");
+        if (journalFile.exists() && !journalFile.renameTo(new File(dataFolder, "bans.journal.imported"))) {
+            logger().warning("Failed to rename bans.journal after importing it");
+        }
     }
 
     private static class LocalConfiguration extends ConfigurationBase {
         @Setting("message") public String banMessage = "You have been banned";
         @Setting("broadcast-bans") public boolean broadcastBans;
         @Setting("broadcast-kicks") public boolean broadcastKicks;
+        @Setting("journal-compact-threshold") public int journalCompactThreshold = 1000;
+        @Setting("backend") public String backend = "csv";
+        @Setting("sync.enabled") public boolean syncEnabled;
+        @Setting("sync.directory") public String syncDirectory = "ban-sync";
+        @Setting("sync.node") public String syncNode = "";
+        @Setting("sync.poll-interval") public int syncPollInterval = 250;
     }
 
     /**
@@ -83,20 +359,21 @@ public BanDatabase getBanDatabase() {
     }
 
     /**
-     * Called on player login.
+     * Called before a player logs in, on the connecting player's own thread
+     * rather than the main server thread.
      *
      * @param event Relevant event details
      */
     @EventHandler(priority = EventPriority.NORMAL)
-    public void playerLogin(PlayerLoginEvent event) {
-        Player player = event.getPlayer();
+    public void playerPreLogin(AsyncPlayerPreLoginEvent event) {
+        BanDatabase bans = getBanDatabase();
 
         Ban ban = null;
 
-        if (getBanDatabase().isBanned(player.getUniqueId())) {
-            ban = getBanDatabase().getBanned(player.getUniqueId());
-        } else if (getBanDatabase().isBanned(event.getAddress())) {
-            ban = getBanDatabase().getBanned(event.getAddress().getHostAddress());
+        if (bans.isBanned(event.getUniqueId())) {
+            ban = bans.getBanned(event.getUniqueId());
+        } else if (bans.isBanned(event.getAddress())) {
+            ban = bans.getBanned(event.getAddress());
         }
 
         if (ban != null) {
@@ -105,10 +382,24 @@ public void playerLogin(PlayerLoginEvent event) {
             String how = "You are " + (ban.getAddress() != null ? "IP " : "") + "banned" + (hasReason ? " for:" : ".");
             String end = "Expires: " + (ban.getEnd() == 0L ? ChatColor.DARK_RED + "Never" : ChatUtil.getFriendlyTime(ban.getEnd()));
 
-            event.disallow(PlayerLoginEvent.Result.KICK_BANNED, how + (hasReason ? "\n" + reason : "") + "\n" + end);
+            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_BANNED, how + (hasReason ? "\n" + reason : "") + "\n" + end);
         }
     }
 
+    public PaginatedResult<Ban> getSearchResult() {
+        return new PaginatedResult<Ban>(ChatColor.GOLD + "Bans") {
+            @Override
+            public String format(Ban entry) {
+                String target = entry.getLastKnownAlias() != null ? entry.getLastKnownAlias()
+                        : entry.getAddress() != null ? entry.getAddress() : String.valueOf(entry.getID());
+                return ChatColor.WHITE + target + ChatColor.YELLOW
+                        + (entry.getReason() == null ? "" : " - " + entry.getReason())
+                        + " (By: " + ChatColor.WHITE + (entry.getIssuer() == null ? "Unknown" : entry.getIssuer())
+                        + ChatColor.YELLOW + ", " + ChatUtil.getFriendlyTime(entry.getStart()) + ")";
+            }
+        };
+    }
+
     @EventHandler
     public void playerWhois(InfoComponent.PlayerWhoisEvent event) {
         if (CommandBook.inst().hasPermission(event.getSource(), "commandbook.bans.isbanned")) {
@@ -228,7 +519,7 @@ public void ban(CommandContext args, CommandSender sender) throws CommandExcepti
         }
 
         @Command(aliases = {"banip", "ipban"},
-                usage = "<target> [reason...]", desc = "Ban an IP address", flags = "st:",
+                usage = "<target> [reason...]", desc = "Ban an IP address or range (such as 10.0.0.0/24)", flags = "st:",
                 min = 1, max = -1)
         @CommandPermissions({"commandbook.bans.ban.ip"})
         public void banIP(CommandContext args, CommandSender sender) throws CommandException {
@@ -243,9 +534,15 @@ public void banIP(CommandContext args, CommandSender sender) throws CommandExcep
                         .replace("\0", "")
                         .replace("\b", "");
 
+            AddressRange range = AddressRange.parse(addr);
+            if (range == null) {
+                throw new CommandException("Invalid IP address or range: " + addr);
+            }
+            addr = range.toString();
+
             // Need to kick + log
             for (Player player : CommandBook.server().getOnlinePlayers()) {
-                if (player.getAddress().getAddress().getHostAddress().equals(addr)) {
+                if (range.contains(player.getAddress().getAddress())) {
                     player.kickPlayer(message == null ? "Banned!" : message);
                     getBanDatabase().logKick(player, sender, message);
                 }
@@ -350,6 +647,7 @@ public class ManagementCommands {
         @CommandPermissions({"commandbook.bans.load"})
         public void loadBans(CommandContext args, CommandSender sender) throws CommandException {
             if (getBanDatabase().load()) {
+                convertNameBansLater();
                 sender.sendMessage(ChatColor.YELLOW + "Bans database reloaded.");
             } else {
                 throw new CommandException("Bans database failed to load entirely. See server console.");
@@ -365,5 +663,76 @@ public void saveBans(CommandContext args, CommandSender sender) throws CommandEx
                 throw new CommandException("Bans database failed to save entirely. See server console.");
             }
         }
+
+        @Command(aliases = {"import"}, usage = "[-f csv|json] <file>",
+                desc = "Import a ban list from the CommandBook folder", flags = "f:", min = 1, max = 1)
+        @CommandPermissions({"commandbook.bans.import"})
+        public void importBans(CommandContext args, CommandSender sender) throws CommandException {
+            File file = matchTransferFile(args.getString(0));
+            if (!file.exists()) {
+                throw new CommandException("No ban list named " + args.getString(0) + " was found.");
+            }
+            transferLater(sender, file, matchTransferFormat(args, file), true);
+        }
+
+        @Command(aliases = {"export"}, usage = "[-f csv|json] <file>",
+                desc = "Export the ban list to the CommandBook folder", flags = "f:", min = 1, max = 1)
+        @CommandPermissions({"commandbook.bans.export"})
+        public void exportBans(CommandContext args, CommandSender sender) throws CommandException {
+            File file = matchTransferFile(args.getString(0));
+            transferLater(sender, file, matchTransferFormat(args, file), false);
+        }
+
+        /**
+         * Converts how long ago something happened, such as 7d, to a time.
+         *
+         * @param input How long ago, or "now"
+         * @param now The current time
+         * @return The time in milliseconds since the epoch
+         * @throws CommandException if the input is not a valid time
+         */
+        private long matchPastTime(String input, long now) throws CommandException {
+            // matchDate returns the current time itself for "now", rather than a duration
+            if (input.equalsIgnoreCase("now")) {
+                return now;
+            }
+            return now - InputUtil.TimeParser.matchDate(input);
+        }
+
+        @Command(aliases = {"search", "find"},
+                usage = "[-i issuer] [-r reason] [-a since] [-b until] [-p address] [-s active|expired|all] [page]",
+                desc = "Search the bans database", flags = "i:r:a:b:p:s:", min = 0, max = 1)
+        @CommandPermissions({"commandbook.bans.search"})
+        public void searchBans(CommandContext args, CommandSender sender) throws CommandException {
+            final BanQuery query = new BanQuery();
+            query.setIssuer(args.getFlag('i'));
+            query.setReason(args.getFlag('r'));
+            query.setAddressPrefix(args.getFlag('p'));
+
+            // Times are given as how long ago, such as 7d
+            long now = System.currentTimeMillis();
+            if (args.hasFlag('a')) {
+                query.setStartedAfter(matchPastTime(args.getFlag('a'), now));
+            }
+            if (args.hasFlag('b')) {
+                query.setStartedBefore(matchPastTime(args.getFlag('b'), now));
+            }
+
+            if (args.hasFlag('s')) {
+                String status = args.getFlag('s');
+                if (status.equalsIgnoreCase("active")) {
+                    query.setStatus(BanQuery.Status.ACTIVE);
+                } else if (status.equalsIgnoreCase("expired")) {
+                    if (getBackend() instanceof CSVBanDatabase) {
+                        throw new CommandException("The CSV ban backend deletes bans once they expire or are lifted.");
+                    }
+                    query.setStatus(BanQuery.Status.EXPIRED);
+                } else if (!status.equalsIgnoreCase("all")) {
+                    throw new CommandException("Unknown ban status: " + status);
+                }
+            }
+
+            searchLater(sender, query, args.getInteger(0, 1));
+        }
     }
 }
@@ -2,8 +2,7 @@
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
-import com.sk89q.commandbook.util.ChatUtil;
-import com.sk89q.commandbook.util.ServerUtil;
+import com.sk89q.commandbook.util.FileUtil;
 import com.sk89q.commandbook.util.entity.player.UUIDUtil;
 import org.apache.commons.lang.Validate;
 import org.bukkit.command.CommandSender;
@@ -11,77 +10,101 @@
 
 import java.io.*;
 import java.net.InetAddress;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.logging.*;
-import java.util.logging.Formatter;
 
 import static com.sk89q.commandbook.CommandBook.logger;
 
 public class CSVBanDatabase implements BanDatabase {
 
-    protected final Logger auditLogger
-            = Logger.getLogger("Minecraft.CommandBook.Bans");
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
+    protected final BanAuditLogger auditLogger;
 
     protected final File storageFile;
 
     /**
-     * Used to lookup bans by UUID
+     * Changes made since {@link #storageFile} was last written
      */
-    protected Map<UUID, Ban> UUIDBan = new HashMap<UUID, Ban>();
+    protected final BanJournal journal;
 
     /**
-     * Used to lookup bans by name
+     * Whether a compaction is currently writing {@link #storageFile}
      */
-    @Deprecated
-    protected Map<String, Ban> nameBan = null;
+    private boolean compacting;
 
     /**
-     * Used to lookup bans by ip address
+     * Whether bans were imported without being journaled since the last compaction
      */
-    protected Map<String, Ban> ipBan = new HashMap<String, Ban>();
+    private boolean imported;
 
     /**
-     * A set of all bans. No ban in the lookup maps is not in here.
+     * Removes temporary bans once they end
      */
-    protected final Set<Ban> bans = new HashSet<Ban>();
+    protected final BanExpiryScheduler expiryScheduler = new BanExpiryScheduler(this);
 
-    private static final SimpleDateFormat dateFormat =
-            new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
+    /**
+     * The current bans. Lookups read it without locking, while loading builds a
+     * new index and swaps it in once it is complete.
+     */
+    private volatile BanIndex index = new BanIndex();
 
     public CSVBanDatabase(File banStorageDir) {
         storageFile = new File(banStorageDir, "bans.csv");
+        journal = new BanJournal(new File(banStorageDir, "bans.journal"));
 
-         // Set up an audit trail
-        try {
-            FileHandler handler = new FileHandler(
-                    (new File(banStorageDir, "bans.%g.%u.log")).getAbsolutePath()
-                    .replace("\\", "/"), true);
+        // Set up an audit trail
+        auditLogger = new BanAuditLogger(banStorageDir);
+    }
 
-            handler.setFormatter(new Formatter() {
+    /**
+     * Loads the ban list and replays the journal. Bans that only have a name are
+     * loaded as they are, see {@link #convertNameBans()}.
+     *
+     * @return whether the operation was fully successful
+     */
+    public synchronized boolean load() {
+        BanIndex loaded = new BanIndex();
+        if (!readSnapshot(storageFile, loaded)) {
+            // Keep the bans that are currently loaded rather than half of the file
+            return false;
+        }
 
-                @Override
-                public String format(LogRecord record) {
-                    return "[" + dateFormat.format(new Date())
-                            + "] " + record.getMessage() + "\r\n";
-                }
-            });
+        boolean successful = journal.replay(replayInto(loaded));
+        index = loaded;
+        logger().info(loaded.getBans().size() + " banned name(s) loaded.");
 
-            auditLogger.addHandler(handler);
-        } catch (SecurityException e) {
-            logger().warning("Failed to setup audit log for the "
-                    + "CSV ban database: " + e.getMessage());
-        } catch (IOException e) {
-            logger().warning("Failed to setup audit log for the "
-                    + "CSV ban database: " + e.getMessage());
+        expiryScheduler.clear();
+        for (Ban ban : loaded.getBans()) {
+            expiryScheduler.schedule(ban);
         }
+        expiryScheduler.start();
+        return successful;
     }
 
-    public synchronized boolean load() {
-        FileInputStream input = null;
-        boolean successful = true;
-        boolean needsSaved = false;
+    /**
+     * Reads the bans in a ban directory's ban list and journal without loading a
+     * database from it, so no threads are started and no file is written.
+     *
+     * @param banStorageDir The directory holding bans.csv
+     * @return The bans, or null if the ban list could not be read
+     */
+    public static Collection<Ban> readBans(File banStorageDir) {
+        BanIndex loaded = new BanIndex();
+        if (!readSnapshot(new File(banStorageDir, "bans.csv"), loaded)) {
+            return null;
+        }
+        new BanJournal(new File(banStorageDir, "bans.journal")).replay(replayInto(loaded));
+        return loaded.getBans();
+    }
 
+    /**
+     * Reads a ban list into an index.
+     *
+     * @return whether the file was read, or did not exist
+     */
+    private static boolean readSnapshot(File storageFile, BanIndex loaded) {
+        FileUtil.recover(storageFile, new File(storageFile.getPath() + ".tmp"));
+        FileInputStream input = null;
         try {
             input = new FileInputStream(storageFile);
             InputStreamReader streamReader = new InputStreamReader(input, "utf-8");
@@ -89,68 +112,25 @@ public synchronized boolean load() {
             String[] line;
 
             while ((line = reader.readNext()) != null) {
-                int lineLen = line.length;
-                if (lineLen < 5) {
-                    logger().warning("A ban entry with < 5 fields was found!");
+                Ban ban = readBan(line);
+                if (ban == null) {
                     continue;
                 }
-                try {
-                    int i = 0;
-                    UUID ID = null;
-                    if (lineLen > 5) {
-                        String rawLine = line[i++];
-                        if (!rawLine.isEmpty() && !rawLine.equals("null")) {
-                            ID = UUID.fromString(rawLine);
-                        }
-                    }
-                    String name = line[i++].toLowerCase();
-                    String address = line[i++];
-                    String reason = line[i++];
-                    long startDate = Long.parseLong(line[i++]);
-                    long endDate = Long.parseLong(line[i++]);
-                    if ("".equals(name) || "null".equals(name)) name = null;
-                    if ("".equals(address) || "null".equals(address)) address = null;
-                    if ("".equals(reason) || "null".equals(reason)) reason = null;
-                    Ban ban = new Ban(ID, name, address, reason, startDate, endDate);
-                    if (ID != null) {
-                        UUIDBan.put(ID, ban);
-                    } else if (name != null) {
-                        logger().finest("Converting " + name + "'s ban record to UUID...");
-                        ID = UUIDUtil.convert(name);
-                        if (ID != null) {
-                            // Update the record
-                            ban = new Ban(ID, name, address, reason, startDate, endDate);
-                            UUIDBan.put(ID, ban);
-
-                            // Log & request save
-                            needsSaved = true;
-                            logger().finest("Success!");
-                        } else {
-                            if (nameBan == null) {
-                                nameBan = new HashMap<String, Ban>();
-                            }
-                            nameBan.put(name, ban);
-                            logger().warning(ban.toString() + " could not be converted!");
-                        }
-                    }
-                    if (address != null) ipBan.put(address, ban);
-                    bans.add(ban);
-                } catch (IllegalArgumentException i) {
-                    if (i instanceof NumberFormatException) {
-                        logger().warning("Non-long long field found in ban!");
-                    } else {
-                        logger().warning("Invalid UUID field found in ban!");
+                if (ban.getID() == null && ban.getLastKnownAlias() != null) {
+                    loaded.putName(ban);
+                    if (ban.getAddress() == null) {
+                        continue;
                     }
                 }
+                loaded.put(ban);
             }
-            logger().info(bans.size() + " banned name(s) loaded.");
+            return true;
         } catch (FileNotFoundException ignored) {
+            return true;
         } catch (IOException e) {
-            nameBan = new HashMap<String, Ban>();
-            ipBan = new HashMap<String, Ban>();
             logger().warning("Failed to load " + storageFile.getAbsolutePath()
                     + ": " + e.getMessage());
-            successful = false;
+            return false;
         } finally {
             if (input != null) {
                 try {
@@ -159,31 +139,208 @@ public synchronized boolean load() {
                 }
             }
         }
-        if (needsSaved) save();
-        return successful;
     }
 
-    public synchronized boolean save() {
+    private static BanJournal.RecordHandler replayInto(final BanIndex loaded) {
+        return new BanJournal.RecordHandler() {
+            @Override
+            public void ban(Ban ban) {
+                loaded.put(ban);
+            }
+
+            @Override
+            public void unban(UUID ID, String address) {
+                loaded.remove(ID, address);
+            }
+
+            @Override
+            public void unbanName(String name) {
+                loaded.removeName(name);
+            }
+        };
+    }
+
+    /**
+     * Reads a ban from a line of a ban list.
+     *
+     * @param line The fields of the line
+     * @return The ban, or null if the line is invalid
+     */
+    static Ban readBan(String[] line) {
+        int lineLen = line.length;
+        if (lineLen < 5) {
+            logger().warning("A ban entry with < 5 fields was found!");
+            return null;
+        }
+        try {
+            int i = 0;
+            UUID ID = null;
+            if (lineLen > 5) {
+                String rawLine = line[i++];
+                if (!rawLine.isEmpty() && !rawLine.equals("null")) {
+                    ID = UUID.fromString(rawLine);
+                }
+            }
+            String name = line[i++].toLowerCase();
+            String address = line[i++];
+            String reason = line[i++];
+            long startDate = Long.parseLong(line[i++]);
+            long endDate = Long.parseLong(line[i++]);
+            String issuer = i < lineLen ? line[i] : null;
+            if ("".equals(name) || "null".equals(name)) name = null;
+            if ("".equals(address) || "null".equals(address)) address = null;
+            if ("".equals(reason) || "null".equals(reason)) reason = null;
+            if ("".equals(issuer) || "null".equals(issuer)) issuer = null;
+            return new Ban(ID, name, address, reason, startDate, endDate, issuer);
+        } catch (IllegalArgumentException i) {
+            if (i instanceof NumberFormatException) {
+                logger().warning("Non-long long field found in ban!");
+            } else {
+                logger().warning("Invalid UUID field found in ban!");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes a ban as a line of a ban list.
+     *
+     * @param ban The ban
+     * @return The fields of the line
+     */
+    static String[] writeBan(Ban ban) {
+        return new String[] {
+                String.valueOf(ban.getID()),
+                ban.getLastKnownAlias(),
+                ban.getAddress(),
+                ban.getReason(),
+                String.valueOf(ban.getStart()),
+                String.valueOf(ban.getEnd()),
+                ban.getIssuer()
+        };
+    }
+
+    /**
+     * Converts the bans that only have a name to bans on the player's UUID. The
+     * names are looked up in batches without holding the database lock, so this
+     * should be called off the main thread.
+     *
+     * @return the number of bans converted
+     */
+    public int convertNameBans() {
+        List<Ban> nameBans = new ArrayList<Ban>(index.getNameBans());
+        if (nameBans.isEmpty()) {
+            return 0;
+        }
+        List<String> names = new ArrayList<String>(nameBans.size());
+        for (Ban ban : nameBans) {
+            names.add(ban.getLastKnownAlias());
+        }
+        Map<String, UUID> resolved = UUIDUtil.convert(names);
+
+        int converted = 0;
+        synchronized (this) {
+            for (Ban ban : nameBans) {
+                String name = ban.getLastKnownAlias().toLowerCase();
+                UUID ID = resolved.get(name);
+                if (ID == null) {
+                    logger().warning(ban.toString() + " could not be converted!");
+                    continue;
+                }
+                // Skip bans which were lifted while the names were looked up
+                if (index.getName(name) != ban) {
+                    continue;
+                }
+                Ban convertedBan = new Ban(ID, ban.getLastKnownAlias(), ban.getAddress(), ban.getReason(),
+                        ban.getStart(), ban.getEnd(), ban.getIssuer());
+                index.removeName(name);
+                index.put(convertedBan);
+                expiryScheduler.schedule(convertedBan);
+                ++converted;
+            }
+            imported |= converted > 0;
+        }
+        if (converted > 0) {
+            logger().info(converted + " name ban(s) converted to UUID.");
+            save();
+        }
+        return converted;
+    }
+
+    /**
+     * Forces the changes made since the last compaction to disk. As every change is
+     * appended to the journal when it is made, this does not rewrite the ban list
+     * unless bans were imported since it was last written.
+     *
+     * @return whether the operation was fully successful
+     */
+    public boolean save() {
+        boolean needsCompaction;
+        synchronized (this) {
+            needsCompaction = imported;
+            imported = false;
+        }
+        if (needsCompaction && !compact()) {
+            synchronized (this) {
+                imported = true;
+            }
+            return false;
+        }
+        return journal.flush();
+    }
+
+    /**
+     * Returns the number of changes made since the ban list was last written.
+     *
+     * @return the number of journaled changes
+     */
+    public int getJournalSize() {
+        return journal.getRecordCount();
+    }
+
+    /**
+     * Writes the ban list to {@link #storageFile} and discards the journaled changes
+     * it now contains. Changes made while the file is being written are appended to
+     * a fresh journal, so this can safely run off the main thread.
+     *
+     * @return whether the operation was fully successful
+     */
+    public boolean compact() {
+        List<Ban> snapshot;
+        synchronized (this) {
+            if (compacting || !journal.beginCompaction()) {
+                return false;
+            }
+            compacting = true;
+            snapshot = new ArrayList<Ban>(index.getBans());
+        }
+        try {
+            if (writeSnapshot(snapshot)) {
+                journal.finishCompaction();
+                return true;
+            }
+            return false;
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private boolean writeSnapshot(Collection<Ban> snapshot) {
+        File tempFile = new File(storageFile.getPath() + ".tmp");
         FileOutputStream output = null;
         boolean successful = true;
 
         try {
-            output = new FileOutputStream(storageFile);
+            output = new FileOutputStream(tempFile);
             CSVWriter writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(output, "utf-8")));
-            String[] line;
 
-            for (Ban ban : bans) {
-                line = new String[] {
-                        String.valueOf(ban.getID()),
-                        ban.getLastKnownAlias(),
-                        ban.getAddress(),
-                        ban.getReason(),
-                        String.valueOf(ban.getStart()),
-                        String.valueOf(ban.getEnd())
-                };
-                writer.writeNext(line);
+            for (Ban ban : snapshot) {
+                writer.writeNext(writeBan(ban));
             }
             writer.flush();
+            output.getFD().sync();
             writer.close();
         } catch (IOException e) {
             logger().warning("Failed to save " + storageFile.getAbsolutePath()
@@ -197,59 +354,74 @@ public synchronized boolean save() {
                 }
             }
         }
+
+        if (successful) {
+            // The journal has already been cut down to the changes after this snapshot,
+            // so the old file has to stay in place until the new one replaces it
+            if (!FileUtil.replace(tempFile, storageFile)) {
+                logger().warning("Failed to replace " + storageFile.getAbsolutePath()
+                        + " with " + tempFile.getAbsolutePath());
+                successful = false;
+            }
+        }
         return successful;
     }
 
     public boolean unload() {
-        for (Handler handler : auditLogger.getHandlers()) {
-            if (handler instanceof FileHandler) {
-                handler.flush();
-                handler.close();
-                auditLogger.removeHandler(handler);
-                return true;
-            }
-        }
-        return false;
+        expiryScheduler.stop();
+        compact();
+        journal.close();
+        return auditLogger.close();
+    }
+
+    /**
+     * Checks whether a ban is still in effect. Bans that have ended are removed by
+     * {@link #expiryScheduler}, but may still be found until it gets to them.
+     *
+     * @param ban The ban to check, may be null
+     * @return Whether the ban is in effect
+     */
+    static boolean isActive(Ban ban) {
+        return ban != null && (ban.getEnd() == 0L || ban.getEnd() - System.currentTimeMillis() > 0);
     }
 
     @Override
     public boolean isBanned(UUID ID) {
-        Ban ban = UUIDBan.get(ID);
-        if (ban != null) {
-            if (ban.getEnd() != 0L && ban.getEnd() - System.currentTimeMillis() <= 0) {
-                unban(ID, null, null, "Tempban expired");
-                save();
-                return false;
-            }
-            return true;
-        }
-        return false;
+        return ID != null && isActive(index.get(ID));
     }
 
     @Override
     public boolean isBanned(InetAddress address) {
-        Ban ban = ipBan.get(address.getHostAddress());
-        if (ban != null) {
-            if (ban.getEnd() != 0L && ban.getEnd() - System.currentTimeMillis() <= 0) {
-                unban(null, address.getHostAddress(), null, "Tempban expired");
-                save();
-                return false;
+        return isActive(index.find(address));
+    }
+
+    /**
+     * Removes the given bans, if they are still in place. Called by
+     * {@link #expiryScheduler} with bans that have ended.
+     *
+     * @param expired The bans to remove
+     */
+    synchronized void expire(List<Ban> expired) {
+        for (Ban ban : expired) {
+            // Only the entries that still point to this ban, as either may have been replaced
+            UUID ID = ban.getID() != null && index.get(ban.getID()) == ban ? ban.getID() : null;
+            String address = ban.getAddress() != null && index.get(ban.getAddress()) == ban ? ban.getAddress() : null;
+            if (ID != null || address != null) {
+                unban(ID, address, null, "Tempban expired");
             }
-            return true;
         }
-        return false;
     }
 
     @Override
     public String getBannedMessage(UUID ID) {
-        Ban ban = UUIDBan.get(ID);
+        Ban ban = getBanned(ID);
         if (ban == null || ban.getReason() == null) return "You are banned.";
         return ban.getReason();
     }
 
     @Override
     public String getBannedMessage(String address) {
-        Ban ban = ipBan.get(address);
+        Ban ban = getBanned(address);
         if (ban == null || ban.getReason() == null) return "You are banned by IP.";
         return ban.getReason();
     }
@@ -259,42 +431,41 @@ public void ban(Player player, CommandSender source, String reason, long end) {
     }
 
     @Override
-    public void ban(UUID ID, String name, String address, CommandSender source, String reason, long end) {
+    public synchronized void ban(UUID ID, String name, String address, CommandSender source, String reason, long end) {
         Validate.isTrue(ID != null || address != null, "You must specify either an ID, or address");
-        Ban ban = new Ban(ID, name, address, reason, System.currentTimeMillis(), end);
-        if (ID != null) {
-            Ban oldBan = UUIDBan.remove(ID);
-            if (oldBan != null) {
-                bans.remove(oldBan);
-            }
-            UUIDBan.put(ID, ban);
+        ban(new Ban(ID, name, address, reason, System.currentTimeMillis(), end,
+                source == null ? null : source.getName()), source);
+    }
+
+    @Override
+    public synchronized void ban(Ban ban, CommandSender source) {
+        Validate.isTrue(ban.getID() != null || ban.getAddress() != null, "You must specify either an ID, or address");
+        String address = AddressRange.normalize(ban.getAddress());
+        if (address != null && !address.equals(ban.getAddress())) {
+            ban = new Ban(ban.getID(), ban.getLastKnownAlias(), address, ban.getReason(),
+                    ban.getStart(), ban.getEnd(), ban.getIssuer());
         }
-        if (address != null) {
-            Ban oldBan = ipBan.remove(address);
-            if (oldBan != null) {
-                bans.remove(oldBan);
-            }
-            ipBan.put(address, ban);
+        index.put(ban);
+        expiryScheduler.schedule(ban);
+        try {
+            journal.appendBan(ban);
+        } catch (IOException e) {
+            logger().warning("Failed to journal " + ban + ": " + e.getMessage());
         }
-        bans.add(ban);
-        auditLogger.info(String.format("BAN: %s (%s) added %s: %s",
-            source == null ? "Plugin" : ChatUtil.toUniqueName(source),
-            source == null ? "local" : ServerUtil.toInetAddressString(source),
-            ban.toString(),
-            reason));
+        auditLogger.logBan(source, ban);
     }
 
     @Override
-    public boolean unbanName(String name, CommandSender source, String reason) {
-        if (nameBan == null || name == null || name.isEmpty()) return false;
-        Ban ban = nameBan.remove(name.toLowerCase());
+    public synchronized boolean unbanName(String name, CommandSender source, String reason) {
+        if (!index.hasNameBans() || name == null || name.isEmpty()) return false;
+        Ban ban = index.removeName(name);
         if (ban != null) {
-            bans.remove(ban);
-            auditLogger.info(String.format("UNBAN: %s (%s) removed %s: %s",
-                    source == null ? "Plugin" : ChatUtil.toUniqueName(source),
-                    source == null ? "local" : ServerUtil.toInetAddressString(source),
-                    ban.toString(),
-                    reason));
+            try {
+                journal.appendUnbanName(name);
+            } catch (IOException e) {
+                logger().warning("Failed to journal unban of " + ban + ": " + e.getMessage());
+            }
+            auditLogger.logUnban(source, ban, reason);
             return true;
         }
         return false;
@@ -306,66 +477,86 @@ public boolean unban(Player player, CommandSender source, String reason) {
     }
 
     @Override
-    public boolean unban(UUID ID, String address, CommandSender source, String reason) {
-        Ban ban = null;
-        if (ID != null) {
-            ban = UUIDBan.remove(ID);
-        }
-        if (ban == null && address != null) {
-            ban = ipBan.remove(address);
-        }
+    public synchronized boolean unban(UUID ID, String address, CommandSender source, String reason) {
+        address = AddressRange.normalize(address);
+        Ban ban = index.remove(ID, address);
         if (ban != null) {
-            bans.remove(ban);
-            auditLogger.info(String.format("UNBAN: %s (%s) removed %s: %s",
-                    source == null ? "Plugin" : ChatUtil.toUniqueName(source),
-                    source == null ? "local" : ServerUtil.toInetAddressString(source),
-                    ban.toString(),
-                    reason));
+            try {
+                journal.appendUnban(ID, address);
+            } catch (IOException e) {
+                logger().warning("Failed to journal unban of " + ban + ": " + e.getMessage());
+            }
+            auditLogger.logUnban(source, ban, reason);
             return true;
         }
         return false;
     }
 
     public void logKick(Player player, CommandSender source, String reason) {
-        auditLogger.info(String.format("KICKED: %s (%s) kicked player '%s': %s",
-                ChatUtil.toUniqueName(source),
-                ServerUtil.toInetAddressString(source),
-                player.getName(),
-                reason));
+        auditLogger.logKick(player, source, reason);
     }
 
     public void importFrom(BanDatabase bans) {
+        List<Ban> batch = new ArrayList<Ban>(IMPORT_BATCH_SIZE);
         for (Ban ban : bans) {
-            boolean set = false;
-            if (ban.getID() != null) {
-                set = true;
-                UUIDBan.put(ban.getID(), ban);
-            }
-            if (ban.getAddress() != null && !ban.getAddress().isEmpty()) {
-                set = true;
-                ipBan.put(ban.getAddress(), ban);
+            batch.add(ban);
+            if (batch.size() == IMPORT_BATCH_SIZE) {
+                importBans(batch);
+                batch.clear();
             }
-            if (set) {
-                this.bans.add(ban);
+        }
+        importBans(batch);
+    }
+
+    /**
+     * Adds a batch of bans without journaling each of them. Instead, the whole
+     * ban list is written on the next save.
+     *
+     * @param bans The bans to add
+     */
+    public synchronized void importBans(Collection<Ban> bans) {
+        for (Ban ban : bans) {
+            if (ban.getID() != null || (ban.getAddress() != null && !ban.getAddress().isEmpty())) {
+                index.put(ban);
+                expiryScheduler.schedule(ban);
+            } else if (ban.getLastKnownAlias() != null) {
+                index.putName(ban);
             } else {
                 logger().warning(ban.toString() + " could not be imported!");
+                continue;
             }
+            imported = true;
         }
     }
 
     @Override
     public Ban getBanned(UUID ID) {
-        return UUIDBan.get(ID);
+        return ID == null ? null : index.get(ID);
     }
 
     @Override
     public Ban getBanned(String address) {
-        return ipBan.get(address);
+        return address == null ? null : index.get(AddressRange.normalize(address));
+    }
+
+    @Override
+    public Ban getBanned(InetAddress address) {
+        return index.find(address);
+    }
+
+    @Override
+    public List<Ban> query(BanQuery query, int offset, int limit) {
+        return index.query(query, offset, limit);
+    }
+
+    @Override
+    public int count(BanQuery query) {
+        return index.count(query);
     }
 
     public Iterator<Ban> iterator() {
         return new Iterator<Ban>() {
-            private final Iterator<Ban> setIter = bans.iterator();
+            private final Iterator<Ban> setIter = index.getBans().iterator();
             private Ban next;
             public boolean hasNext() {
                 return setIter.hasNext();
@@ -0,0 +1,454 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import com.sk89q.commandbook.util.FileUtil;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Synchronizes bans through a directory shared by every node, such as a
+ * directory on the same machine or a network share. Each node appends its
+ * changes to its own log in the directory, and polls the logs of the other
+ * nodes for changes it has not read yet.
+ *
+ * <p>Each change is stored as its length followed by its encoded form, so a
+ * change that is still being written is left for the next poll.</p>
+ *
+ * <p>A node's log is split into segments, named {@code node.bansync} for the
+ * first and {@code node~N.bansync} after that. Every node records in its
+ * {@code node.acks} file the oldest segment of each other node it still has to
+ * read, and a node deletes its own segments once every other node has
+ * acknowledged reading past them. A node that has never written its
+ * acknowledgements will not see the changes in deleted segments.</p>
+ */
+public class FileBanSyncTransport implements BanSyncTransport, Runnable {
+    private static final String EXTENSION = ".bansync";
+    private static final String ACKS_EXTENSION = ".acks";
+    private static final char SEGMENT_SEPARATOR = '~';
+
+    /**
+     * The largest change that will be read, to guard against damaged logs
+     */
+    private static final int MAX_CHANGE_SIZE = 64 * 1024;
+
+    /**
+     * The size after which a new segment is started
+     */
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * How many polls to wait between checks for segments that can be deleted
+     */
+    private static final int COMPACT_POLLS = 240;
+
+    private final File directory;
+    private final long pollInterval;
+    private final Map<String, Long> positions = new ConcurrentHashMap<String, Long>();
+    private final Set<String> resyncRequests = Collections.synchronizedSet(new HashSet<String>());
+    private final Map<String, Integer> writtenAcks = new HashMap<String, Integer>();
+    private String node;
+    private int segment;
+    private File ownLog;
+    private DataOutputStream output;
+    private Receiver receiver;
+    private Thread pollThread;
+    private volatile boolean running;
+
+    /**
+     * @param directory The shared directory
+     * @param pollInterval How often to check for changes, in milliseconds
+     */
+    public FileBanSyncTransport(File directory, long pollInterval) {
+        this.directory = directory;
+        this.pollInterval = pollInterval;
+    }
+
+    @Override
+    public synchronized long start(String node, Map<String, Long> positions, Receiver receiver) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory.getAbsolutePath());
+        }
+        this.node = node;
+        this.receiver = receiver;
+        this.positions.putAll(positions);
+
+        // Find where this node left off, in case it stopped before saving its state
+        long lastSequence = 0;
+        segment = 0;
+        long validLength = 0;
+        List<BanChange> published = new ArrayList<BanChange>();
+        Map<String, List<Segment>> logs = listSegments();
+        if (logs == null) {
+            throw new IOException("Failed to list " + directory.getAbsolutePath());
+        }
+        for (Segment own : logs.get(node)) {
+            validLength = readLog(own.file, 0, published);
+            for (BanChange change : published) {
+                lastSequence = Math.max(lastSequence, change.getSequence());
+            }
+            published.clear();
+            segment = own.number;
+        }
+        ownLog = getSegmentFile(node, segment);
+
+        // Drop a change that was cut off part way, so new changes are not appended after it
+        if (ownLog.length() > validLength) {
+            RandomAccessFile file = new RandomAccessFile(ownLog, "rw");
+            try {
+                file.setLength(validLength);
+            } finally {
+                file.close();
+            }
+        }
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ownLog, true)));
+
+        running = true;
+        pollThread = new Thread(this, "CommandBook Ban Sync");
+        pollThread.setDaemon(true);
+        pollThread.start();
+        return lastSequence;
+    }
+
+    @Override
+    public Map<String, Long> getPositions() {
+        return new HashMap<String, Long>(positions);
+    }
+
+    @Override
+    public synchronized void publish(BanChange change) throws IOException {
+        if (output == null) {
+            throw new IOException("The ban sync transport is not running");
+        }
+        if (ownLog.length() >= MAX_SEGMENT_SIZE) {
+            output.close();
+            output = null;
+            ownLog = getSegmentFile(node, ++segment);
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ownLog, true)));
+        }
+        byte[] data = change.encode();
+        output.writeInt(data.length);
+        output.write(data);
+        output.flush();
+    }
+
+    @Override
+    public void resync(String node) {
+        resyncRequests.add(node);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (pollThread != null) {
+            pollThread.interrupt();
+            try {
+                pollThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pollThread = null;
+        }
+        synchronized (this) {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ignored) {
+                }
+                output = null;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        List<BanChange> changes = new ArrayList<BanChange>();
+        int polls = 0;
+        while (running) {
+            Map<String, List<Segment>> logs = listSegments();
+            if (logs == null) {
+                logger().warning("Failed to list ban sync logs in " + directory.getAbsolutePath());
+                logs = Collections.emptyMap();
+            }
+            Set<String> present = new HashSet<String>();
+            Map<String, Integer> acks = new HashMap<String, Integer>();
+            for (Map.Entry<String, List<Segment>> entry : logs.entrySet()) {
+                if (entry.getKey().equals(node)) {
+                    continue;
+                }
+                List<Segment> segments = entry.getValue();
+                // The newest segment is always still needed, as it may be appended to
+                int needed = segments.get(segments.size() - 1).number;
+                for (Segment log : segments) {
+                    present.add(log.file.getName());
+                }
+                for (Segment log : segments) {
+                    String name = log.file.getName();
+                    Long position = positions.get(name);
+                    long newPosition = readLog(log.file, position == null ? 0 : position, changes);
+                    if (!changes.isEmpty()) {
+                        receiver.receive(changes);
+                        changes.clear();
+                    }
+                    if (resyncRequests.remove(entry.getKey())) {
+                        // Read all of the node's segments again on the next poll
+                        for (Segment resynced : segments) {
+                            positions.remove(resynced.file.getName());
+                        }
+                        needed = 0;
+                        break;
+                    }
+                    // Only move past the changes once they have been received
+                    positions.put(name, newPosition);
+                    if (newPosition < log.file.length()) {
+                        needed = Math.min(needed, log.number);
+                    }
+                }
+                acks.put(entry.getKey(), needed);
+            }
+            if (!logs.isEmpty()) {
+                positions.keySet().retainAll(present);
+                writeAcks(acks);
+            }
+            if (++polls >= COMPACT_POLLS && !logs.isEmpty()) {
+                polls = 0;
+                compact(logs.get(node));
+            }
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * A segment of a node's log.
+     */
+    private static class Segment implements Comparable<Segment> {
+        private final int number;
+        private final File file;
+
+        private Segment(int number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            return number < other.number ? -1 : (number == other.number ? 0 : 1);
+        }
+    }
+
+    private File getSegmentFile(String node, int number) {
+        return new File(directory, number == 0 ? node + EXTENSION : node + SEGMENT_SEPARATOR + number + EXTENSION);
+    }
+
+    /**
+     * Lists the log segments in the directory by node, oldest first. The list
+     * for this node is always present, even if it is empty.
+     *
+     * @return The segments of each node, or null if the directory could not be listed
+     */
+    private Map<String, List<Segment>> listSegments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+        Map<String, List<Segment>> segments = new HashMap<String, List<Segment>>();
+        segments.put(node, new ArrayList<Segment>());
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(EXTENSION)) {
+                continue;
+            }
+            name = name.substring(0, name.length() - EXTENSION.length());
+            int number = 0;
+            int split = name.lastIndexOf(SEGMENT_SEPARATOR);
+            if (split != -1) {
+                try {
+                    number = Integer.parseInt(name.substring(split + 1));
+                    name = name.substring(0, split);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            List<Segment> nodeSegments = segments.get(name);
+            if (nodeSegments == null) {
+                nodeSegments = new ArrayList<Segment>();
+                segments.put(name, nodeSegments);
+            }
+            nodeSegments.add(new Segment(number, file));
+        }
+        for (List<Segment> nodeSegments : segments.values()) {
+            Collections.sort(nodeSegments);
+        }
+        return segments;
+    }
+
+    /**
+     * Writes the oldest segment of each other node that this node still needs,
+     * if it has changed since it was last written.
+     *
+     * @param acks The oldest needed segment of each node
+     */
+    private void writeAcks(Map<String, Integer> acks) {
+        if (acks.equals(writtenAcks)) {
+            return;
+        }
+        Properties state = new Properties();
+        for (Map.Entry<String, Integer> entry : acks.entrySet()) {
+            state.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        File acksFile = new File(directory, node + ACKS_EXTENSION);
+        File tempFile = new File(directory, node + ACKS_EXTENSION + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            state.store(out, "Ban sync segments still needed by " + node);
+        } catch (IOException e) {
+            logger().warning("Failed to write " + tempFile.getAbsolutePath() + ": " + e.getMessage());
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        if (!FileUtil.replace(tempFile, acksFile)) {
+            logger().warning("Failed to replace " + acksFile.getAbsolutePath());
+            return;
+        }
+        writtenAcks.clear();
+        writtenAcks.putAll(acks);
+    }
+
+    /**
+     * Deletes the segments of this node that every other node has read.
+     *
+     * @param segments The segments of this node, oldest first
+     */
+    private void compact(List<Segment> segments) {
+        if (segments.size() < 2) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        int needed = Integer.MAX_VALUE;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(ACKS_EXTENSION + ".bak")) {
+                // Another node is part way through replacing its acknowledgements
+                return;
+            }
+            if (!name.endsWith(ACKS_EXTENSION) || name.equals(node + ACKS_EXTENSION)) {
+                continue;
+            }
+            Properties acks = new Properties();
+            InputStream input = null;
+            try {
+                input = new FileInputStream(file);
+                acks.load(input);
+                needed = Math.min(needed, Integer.parseInt(acks.getProperty(node, "0")));
+            } catch (IOException e) {
+                // Keep everything if it is not known what a node has read
+                return;
+            } catch (NumberFormatException e) {
+                return;
+            } finally {
+                if (input != null) {
+                    try {
+                        input.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            for (Segment log : segments) {
+                if (log.number >= needed || log.number >= segment) {
+                    break;
+                }
+                if (!log.file.delete()) {
+                    logger().warning("Failed to delete ban sync log " + log.file.getAbsolutePath());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the complete changes of a log after a position.
+     *
+     * @param log The log
+     * @param position The position to start reading at
+     * @param changes The list to add the changes to
+     * @return The position after the last complete change
+     */
+    private long readLog(File log, long position, List<BanChange> changes) {
+        if (log.length() <= position) {
+            return position;
+        }
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(log, "r");
+            long length = input.length();
+            input.seek(position);
+            while (length - position >= 4) {
+                int size = input.readInt();
+                if (size <= 0 || size > MAX_CHANGE_SIZE) {
+                    logger().warning("Skipping the rest of damaged ban sync log " + log.getAbsolutePath());
+                    position = length;
+                    break;
+                }
+                if (length - position - 4 < size) {
+                    // Still being written
+                    break;
+                }
+                byte[] data = new byte[size];
+                input.readFully(data);
+                position += 4 + size;
+                try {
+                    changes.add(BanChange.decode(data));
+                } catch (IOException e) {
+                    logger().warning("Skipping invalid change in " + log.getAbsolutePath() + ": " + e.getMessage());
+                }
+            }
+        } catch (FileNotFoundException ignored) {
+            // Deleted after it was listed
+        } catch (IOException e) {
+            logger().warning("Failed to read ban sync log " + log.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return position;
+    }
+}
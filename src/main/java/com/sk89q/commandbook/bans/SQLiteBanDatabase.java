@@ -0,0 +1,772 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import org.apache.commons.lang.Validate;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.sql.*;
+import java.util.*;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * A ban database stored in an embedded SQLite file. Bans are looked up through
+ * indexes on UUID, address and end time, and bans that are lifted are kept as
+ * history instead of being deleted. The active bans are additionally kept in
+ * a {@link BanIndex}, so that logins are checked against memory without
+ * waiting for the database.
+ *
+ * <p>The SQLite driver is expected to be provided by the server.</p>
+ */
+public class SQLiteBanDatabase implements BanDatabase {
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final String COLUMNS = "uuid, name, address, reason, start_time, end_time, issuer";
+
+    private static final String ACTIVE = "removed_time = 0 AND (end_time = 0 OR end_time > ?)";
+
+    protected final BanAuditLogger auditLogger;
+
+    protected final File storageFile;
+
+    private Connection connection;
+
+    /**
+     * Statements to find the newest active ban by a column, prepared once per connection
+     */
+    private final Map<String, PreparedStatement> findStatements = new HashMap<String, PreparedStatement>();
+
+    /**
+     * The active bans. Lookups read it without locking, while loading builds a
+     * new index and swaps it in once it is complete. Changes are made with the
+     * database lock held, after they have been written to the database.
+     */
+    private volatile BanIndex index = new BanIndex();
+
+    public SQLiteBanDatabase(File banStorageDir) {
+        storageFile = new File(banStorageDir, "bans.db");
+
+        // Set up an audit trail
+        auditLogger = new BanAuditLogger(banStorageDir);
+    }
+
+    public synchronized boolean load() {
+        try {
+            if (connection == null) {
+                Class.forName("org.sqlite.JDBC");
+                connection = DriverManager.getConnection("jdbc:sqlite:" + storageFile.getAbsolutePath());
+                createTables();
+            }
+
+            BanIndex loaded = new BanIndex();
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT " + COLUMNS + " FROM bans WHERE " + ACTIVE + " ORDER BY start_time");
+            try {
+                statement.setLong(1, System.currentTimeMillis());
+                ResultSet results = statement.executeQuery();
+                while (results.next()) {
+                    indexBan(loaded, readBan(results));
+                }
+            } finally {
+                statement.close();
+            }
+            index = loaded;
+            logger().info(loaded.getBans().size() + " banned name(s) loaded.");
+            return true;
+        } catch (ClassNotFoundException e) {
+            logger().warning("Failed to load " + storageFile.getAbsolutePath()
+                    + ": the SQLite driver is not available");
+            return false;
+        } catch (SQLException e) {
+            logger().warning("Failed to load " + storageFile.getAbsolutePath()
+                    + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Adds an active ban to an index, the same way the CSV backend does.
+     */
+    private static void indexBan(BanIndex index, Ban ban) {
+        if (ban.getID() == null && ban.getLastKnownAlias() != null) {
+            index.putName(ban);
+            if (ban.getAddress() == null) {
+                return;
+            }
+        }
+        if (ban.getID() != null || ban.getAddress() != null) {
+            index.put(ban);
+        }
+    }
+
+    /**
+     * Removes the indexed copy of a ban read from the database. It is removed by its
+     * UUID, its address and its name, as lifting it in the database lifts the whole row.
+     */
+    private void unindexBan(Ban lifted) {
+        BanIndex index = this.index;
+        Ban ban = lifted.getID() == null ? null : index.get(lifted.getID());
+        if (ban == null && lifted.getAddress() != null) {
+            ban = index.get(lifted.getAddress());
+        }
+        if (ban == null && lifted.getLastKnownAlias() != null) {
+            ban = index.getName(lifted.getLastKnownAlias());
+        }
+        if (ban != null) {
+            removeIndexed(ban);
+        }
+    }
+
+    /**
+     * Removes the entries of the index that still point to an indexed ban.
+     */
+    private void removeIndexed(Ban ban) {
+        BanIndex index = this.index;
+        if (ban.getID() != null && index.get(ban.getID()) == ban) {
+            index.remove(ban.getID(), null);
+        }
+        if (ban.getAddress() != null && index.get(ban.getAddress()) == ban) {
+            index.remove(null, ban.getAddress());
+        }
+        if (ban.getLastKnownAlias() != null && index.getName(ban.getLastKnownAlias()) == ban) {
+            index.removeName(ban.getLastKnownAlias());
+        }
+    }
+
+    private void createTables() throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS bans ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "uuid TEXT, "
+                    + "name TEXT, "
+                    + "address TEXT, "
+                    + "reason TEXT, "
+                    + "start_time INTEGER NOT NULL, "
+                    + "end_time INTEGER NOT NULL DEFAULT 0, "
+                    + "removed_time INTEGER NOT NULL DEFAULT 0, "
+                    + "removed_reason TEXT, "
+                    + "issuer TEXT)");
+            if (!hasColumn("bans", "issuer")) {
+                statement.executeUpdate("ALTER TABLE bans ADD COLUMN issuer TEXT");
+            }
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS bans_uuid ON bans (uuid, removed_time)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS bans_address ON bans (address, removed_time)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS bans_end ON bans (end_time)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS bans_name ON bans (name)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS bans_start ON bans (start_time)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS bans_issuer ON bans (issuer COLLATE NOCASE, start_time)");
+        } finally {
+            statement.close();
+        }
+    }
+
+    private boolean hasColumn(String table, String column) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet results = statement.executeQuery("PRAGMA table_info(" + table + ")");
+            while (results.next()) {
+                if (column.equalsIgnoreCase(results.getString("name"))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Checks whether the database holds no bans at all, including lifted ones.
+     *
+     * @return whether the database is empty
+     */
+    public synchronized boolean isEmpty() {
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                return !statement.executeQuery("SELECT 1 FROM bans LIMIT 1").next();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            logger().warning("Failed to read " + storageFile.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Every change is committed as it is made, so there is nothing left to save.
+     *
+     * @return true
+     */
+    public boolean save() {
+        return true;
+    }
+
+    public synchronized boolean unload() {
+        for (PreparedStatement statement : findStatements.values()) {
+            try {
+                statement.close();
+            } catch (SQLException ignored) {
+            }
+        }
+        findStatements.clear();
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger().warning("Failed to close " + storageFile.getAbsolutePath() + ": " + e.getMessage());
+            }
+            connection = null;
+        }
+        return auditLogger.close();
+    }
+
+    private static Ban readBan(ResultSet results) throws SQLException {
+        String rawID = results.getString(1);
+        return new Ban(rawID == null ? null : UUID.fromString(rawID),
+                results.getString(2),
+                results.getString(3),
+                results.getString(4),
+                results.getLong(5),
+                results.getLong(6),
+                results.getString(7));
+    }
+
+    private static boolean isActive(Ban ban) {
+        return ban != null && (ban.getEnd() == 0L || ban.getEnd() - System.currentTimeMillis() > 0);
+    }
+
+    /**
+     * Finds the active ban matching a column in the database. The statement is
+     * prepared once, and only the statement is locked while it runs.
+     *
+     * @param column The column to match
+     * @param value The value to match
+     * @return The newest matching active ban, or null
+     */
+    private Ban findActive(String column, String value) {
+        try {
+            PreparedStatement statement;
+            synchronized (findStatements) {
+                statement = findStatements.get(column);
+                if (statement == null) {
+                    statement = connection.prepareStatement("SELECT " + COLUMNS + " FROM bans WHERE "
+                            + column + " = ? AND " + ACTIVE + " ORDER BY start_time DESC LIMIT 1");
+                    findStatements.put(column, statement);
+                }
+            }
+            synchronized (statement) {
+                statement.setString(1, value);
+                statement.setLong(2, System.currentTimeMillis());
+                ResultSet results = statement.executeQuery();
+                try {
+                    return results.next() ? readBan(results) : null;
+                } finally {
+                    results.close();
+                }
+            }
+        } catch (SQLException e) {
+            logger().warning("Failed to read " + storageFile.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isBanned(UUID ID) {
+        return ID != null && isActive(index.get(ID));
+    }
+
+    @Override
+    public boolean isBanned(InetAddress address) {
+        return isActive(index.find(address));
+    }
+
+    @Override
+    public String getBannedMessage(UUID ID) {
+        Ban ban = getBanned(ID);
+        if (ban == null || ban.getReason() == null) return "You are banned.";
+        return ban.getReason();
+    }
+
+    @Override
+    public String getBannedMessage(String address) {
+        Ban ban = getBanned(address);
+        if (ban == null || ban.getReason() == null) return "You are banned by IP.";
+        return ban.getReason();
+    }
+
+    public void ban(Player player, CommandSender source, String reason, long end) {
+        ban(player.getUniqueId(), player.getName(), player.getAddress().getAddress().getHostAddress(), source, reason, end);
+    }
+
+    @Override
+    public synchronized void ban(UUID ID, String name, String address, CommandSender source, String reason, long end) {
+        Validate.isTrue(ID != null || address != null, "You must specify either an ID, or address");
+        ban(new Ban(ID, name, address, reason, System.currentTimeMillis(), end,
+                source == null ? null : source.getName()), source);
+    }
+
+    @Override
+    public synchronized void ban(Ban ban, CommandSender source) {
+        Validate.isTrue(ban.getID() != null || ban.getAddress() != null, "You must specify either an ID, or address");
+        String address = AddressRange.normalize(ban.getAddress());
+        if (address != null && !address.equals(ban.getAddress())) {
+            ban = new Ban(ban.getID(), ban.getLastKnownAlias(), address, ban.getReason(),
+                    ban.getStart(), ban.getEnd(), ban.getIssuer());
+        }
+        // A new ban replaces any current ban on the same UUID or address
+        Ban replacedByID = ban.getID() == null ? null : index.get(ban.getID());
+        Ban replacedByAddress = address == null ? null : index.get(address);
+        boolean liftedID = false;
+        boolean liftedAddress = false;
+        try {
+            // The old bans are only lifted if the new one is stored
+            connection.setAutoCommit(false);
+            liftedID = ban.getID() != null && lift("uuid", ban.getID().toString(), "Replaced") > 0;
+            liftedAddress = address != null && lift("address", address, "Replaced") > 0;
+            PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO bans (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+            try {
+                writeBan(statement, ban);
+                statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            // A ban that was never stored is neither enforced nor audited
+            logger().warning("Failed to save " + ban + ": " + e.getMessage());
+            try {
+                connection.rollback();
+            } catch (SQLException ignored) {
+            }
+            return;
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException ignored) {
+            }
+        }
+        // The new ban is indexed before the old ones are dropped, so the player is never seen as unbanned
+        index.put(ban);
+        if (liftedID && replacedByID != null) {
+            removeIndexed(replacedByID);
+        }
+        if (liftedAddress && replacedByAddress != null) {
+            removeIndexed(replacedByAddress);
+        }
+        auditLogger.logBan(source, ban);
+    }
+
+    private static void writeBan(PreparedStatement statement, Ban ban) throws SQLException {
+        statement.setString(1, ban.getID() == null ? null : ban.getID().toString());
+        statement.setString(2, ban.getLastKnownAlias() == null ? null : ban.getLastKnownAlias().toLowerCase());
+        statement.setString(3, ban.getAddress());
+        statement.setString(4, ban.getReason());
+        statement.setLong(5, ban.getStart());
+        statement.setLong(6, ban.getEnd());
+        statement.setString(7, ban.getIssuer());
+    }
+
+    /**
+     * Marks the active bans matching a column as lifted.
+     *
+     * @return The number of bans lifted
+     */
+    private int lift(String column, String value, String reason) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("UPDATE bans SET removed_time = ?, removed_reason = ? "
+                + "WHERE " + column + " = ? AND removed_time = 0");
+        try {
+            statement.setLong(1, System.currentTimeMillis());
+            statement.setString(2, reason);
+            statement.setString(3, value);
+            return statement.executeUpdate();
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Override
+    public synchronized boolean unbanName(String name, CommandSender source, String reason) {
+        if (name == null || name.isEmpty()) return false;
+        Ban ban = findActive("name", name.toLowerCase());
+        if (ban == null || ban.getID() != null) return false;
+        try {
+            PreparedStatement statement = connection.prepareStatement("UPDATE bans SET removed_time = ?, removed_reason = ? "
+                    + "WHERE name = ? AND uuid IS NULL AND removed_time = 0");
+            try {
+                statement.setLong(1, System.currentTimeMillis());
+                statement.setString(2, reason);
+                statement.setString(3, name.toLowerCase());
+                statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            logger().warning("Failed to unban " + ban + ": " + e.getMessage());
+            return false;
+        }
+        unindexBan(ban);
+        auditLogger.logUnban(source, ban, reason);
+        return true;
+    }
+
+    @Override
+    public boolean unban(Player player, CommandSender source, String reason) {
+        return unban(player.getUniqueId(), null, source, reason);
+    }
+
+    @Override
+    public synchronized boolean unban(UUID ID, String address, CommandSender source, String reason) {
+        address = AddressRange.normalize(address);
+        Ban ban = null;
+        try {
+            if (ID != null) {
+                ban = findActive("uuid", ID.toString());
+                if (ban != null) {
+                    lift("uuid", ID.toString(), reason);
+                }
+            }
+            if (ban == null && address != null) {
+                ban = findActive("address", address);
+                if (ban != null) {
+                    lift("address", address, reason);
+                }
+            }
+        } catch (SQLException e) {
+            logger().warning("Failed to unban " + ban + ": " + e.getMessage());
+            return false;
+        }
+        if (ban != null) {
+            unindexBan(ban);
+            auditLogger.logUnban(source, ban, reason);
+            return true;
+        }
+        return false;
+    }
+
+    public void logKick(Player player, CommandSender source, String reason) {
+        auditLogger.logKick(player, source, reason);
+    }
+
+    /**
+     * Imports the bans from another ban database, inserting them in batches within
+     * a single transaction.
+     *
+     * @param bans
+     */
+    public synchronized void importFrom(BanDatabase bans) {
+        if (insert(bans)) {
+            load();
+        }
+    }
+
+    public synchronized void importBans(Collection<Ban> bans) {
+        insertBans(bans);
+    }
+
+    /**
+     * Adds a batch of bans within a single transaction. The active bans are only
+     * enforced once the transaction has been committed.
+     *
+     * @param bans The bans to add
+     * @return whether the bans were stored
+     */
+    public synchronized boolean insertBans(Collection<Ban> bans) {
+        if (!insert(bans)) {
+            return false;
+        }
+        for (Ban ban : bans) {
+            if (isActive(ban)) {
+                indexBan(index, ban);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the transaction was committed
+     */
+    private boolean insert(Iterable<Ban> bans) {
+        int count = 0;
+        try {
+            connection.setAutoCommit(false);
+            PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO bans (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+            try {
+                for (Ban ban : bans) {
+                    if (ban.getID() == null && ban.getAddress() == null && ban.getLastKnownAlias() == null) {
+                        logger().warning(ban.toString() + " could not be imported!");
+                        continue;
+                    }
+                    writeBan(statement, ban);
+                    statement.addBatch();
+                    if (++count % BATCH_SIZE == 0) {
+                        statement.executeBatch();
+                    }
+                }
+                statement.executeBatch();
+            } finally {
+                statement.close();
+            }
+            connection.commit();
+            return true;
+        } catch (SQLException e) {
+            logger().warning("Failed to import bans into " + storageFile.getAbsolutePath() + ": " + e.getMessage());
+            try {
+                connection.rollback();
+            } catch (SQLException ignored) {
+            }
+            return false;
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public Ban getBanned(UUID ID) {
+        if (ID == null) return null;
+        Ban ban = index.get(ID);
+        return isActive(ban) ? ban : null;
+    }
+
+    @Override
+    public Ban getBanned(String address) {
+        if (address == null) return null;
+        Ban ban = index.get(AddressRange.normalize(address));
+        return isActive(ban) ? ban : null;
+    }
+
+    @Override
+    public Ban getBanned(InetAddress address) {
+        Ban ban = index.find(address);
+        return isActive(ban) ? ban : null;
+    }
+
+    /**
+     * Returns a page of the bans that were ever placed on a UUID or address,
+     * including lifted and expired ones, newest first.
+     *
+     * @param ID The UUID to look up, may be null
+     * @param address The address to look up, may be null
+     * @param offset The number of bans to skip
+     * @param limit The maximum number of bans to return
+     * @return The bans
+     */
+    public synchronized List<Ban> getHistory(UUID ID, String address, int offset, int limit) {
+        List<Ban> history = new ArrayList<Ban>();
+        try {
+            PreparedStatement statement = connection.prepareStatement("SELECT " + COLUMNS + " FROM bans "
+                    + "WHERE uuid = ? OR address = ? ORDER BY start_time DESC LIMIT ? OFFSET ?");
+            try {
+                statement.setString(1, ID == null ? null : ID.toString());
+                statement.setString(2, AddressRange.normalize(address));
+                statement.setInt(3, limit);
+                statement.setInt(4, offset);
+                ResultSet results = statement.executeQuery();
+                while (results.next()) {
+                    history.add(readBan(results));
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            logger().warning("Failed to read " + storageFile.getAbsolutePath() + ": " + e.getMessage());
+        }
+        return history;
+    }
+
+    @Override
+    public synchronized List<Ban> query(BanQuery query, int offset, int limit) {
+        List<Ban> page = new ArrayList<Ban>();
+        try {
+            List<Object> parameters = new ArrayList<Object>();
+            PreparedStatement statement = prepareQuery("SELECT " + COLUMNS + " FROM bans", query, parameters,
+                    " ORDER BY start_time DESC LIMIT ? OFFSET ?");
+            try {
+                int i = setParameters(statement, parameters);
+                statement.setInt(i++, limit);
+                statement.setInt(i, offset);
+                ResultSet results = statement.executeQuery();
+                while (results.next()) {
+                    page.add(readBan(results));
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            logger().warning("Failed to search " + storageFile.getAbsolutePath() + ": " + e.getMessage());
+        }
+        return page;
+    }
+
+    @Override
+    public synchronized int count(BanQuery query) {
+        try {
+            List<Object> parameters = new ArrayList<Object>();
+            PreparedStatement statement = prepareQuery("SELECT COUNT(*) FROM bans", query, parameters, "");
+            try {
+                setParameters(statement, parameters);
+                ResultSet results = statement.executeQuery();
+                return results.next() ? results.getInt(1) : 0;
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            logger().warning("Failed to search " + storageFile.getAbsolutePath() + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Builds the statement for a query, collecting its parameters in order.
+     */
+    private PreparedStatement prepareQuery(String select, BanQuery query, List<Object> parameters,
+                                           String suffix) throws SQLException {
+        StringBuilder sql = new StringBuilder(select).append(" WHERE 1 = 1");
+        if (query.getIssuer() != null) {
+            sql.append(" AND issuer = ? COLLATE NOCASE");
+            parameters.add(query.getIssuer());
+        }
+        if (query.getReason() != null) {
+            sql.append(" AND reason LIKE ? ESCAPE '!'");
+            parameters.add("%" + escapeLike(query.getReason()) + "%");
+        }
+        if (query.getStartedAfter() != 0) {
+            sql.append(" AND start_time >= ?");
+            parameters.add(query.getStartedAfter());
+        }
+        if (query.getStartedBefore() != 0) {
+            sql.append(" AND start_time <= ?");
+            parameters.add(query.getStartedBefore());
+        }
+        if (query.getAddressPrefix() != null) {
+            sql.append(" AND address LIKE ? ESCAPE '!'");
+            parameters.add(escapeLike(query.getAddressPrefix()) + "%");
+        }
+        switch (query.getStatus()) {
+            case ACTIVE:
+                sql.append(" AND ").append(ACTIVE);
+                parameters.add(System.currentTimeMillis());
+                break;
+            case EXPIRED:
+                sql.append(" AND NOT (").append(ACTIVE).append(")");
+                parameters.add(System.currentTimeMillis());
+                break;
+        }
+        return connection.prepareStatement(sql.append(suffix).toString());
+    }
+
+    private static int setParameters(PreparedStatement statement, List<Object> parameters) throws SQLException {
+        int i = 1;
+        for (Object parameter : parameters) {
+            if (parameter instanceof Long) {
+                statement.setLong(i++, (Long) parameter);
+            } else {
+                statement.setString(i++, (String) parameter);
+            }
+        }
+        return i;
+    }
+
+    private static String escapeLike(String text) {
+        return text.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+
+    /**
+     * Reads a page of the active bans, ordered by their row id.
+     *
+     * @param afterRow The id of the last row already read
+     * @param rows Receives the row ids of the bans read
+     * @return The bans
+     */
+    private synchronized List<Ban> readActivePage(long afterRow, List<Long> rows) {
+        List<Ban> page = new ArrayList<Ban>();
+        try {
+            PreparedStatement statement = connection.prepareStatement("SELECT " + COLUMNS + ", id FROM bans "
+                    + "WHERE id > ? AND " + ACTIVE + " ORDER BY id LIMIT " + BATCH_SIZE);
+            try {
+                statement.setLong(1, afterRow);
+                statement.setLong(2, System.currentTimeMillis());
+                ResultSet results = statement.executeQuery();
+                while (results.next()) {
+                    page.add(readBan(results));
+                    rows.add(results.getLong(8));
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            logger().warning("Failed to read " + storageFile.getAbsolutePath() + ": " + e.getMessage());
+        }
+        return page;
+    }
+
+    /**
+     * Iterates over the active bans, reading them from the database a page at a time.
+     *
+     * @return The iterator
+     */
+    public Iterator<Ban> iterator() {
+        return new Iterator<Ban>() {
+            private final List<Long> rows = new ArrayList<Long>();
+            private List<Ban> page = Collections.emptyList();
+            private int position;
+            private long lastRow;
+            private boolean exhausted;
+            private Ban next;
+
+            public boolean hasNext() {
+                if (position >= page.size() && !exhausted) {
+                    rows.clear();
+                    page = readActivePage(lastRow, rows);
+                    position = 0;
+                    if (page.size() < BATCH_SIZE) {
+                        exhausted = true;
+                    }
+                    if (!rows.isEmpty()) {
+                        lastRow = rows.get(rows.size() - 1);
+                    }
+                }
+                return position < page.size();
+            }
+
+            public Ban next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return next = page.get(position++);
+            }
+
+            public void remove() {
+                unban(next.getID(), next.getAddress(), null, "Removed by iterator");
+            }
+        };
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.bans;
+
+import com.sk89q.commandbook.util.FileUtil;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.*;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Shares the changes made to a ban database with the other servers using the
+ * same {@link BanSyncTransport}. Bans and unbans made on this server are
+ * published as {@link BanChange}s, and changes received from other servers are
+ * applied to the wrapped database as they arrive.
+ *
+ * <p>Every node numbers its own changes, and the highest number applied from
+ * each node is kept as a version vector, so that changes that are delivered
+ * again are skipped. When two nodes change the same ban, the change made last
+ * wins. Bulk imports and expiring tempbans are not published, as every node
+ * handles these itself. When a gap in a node's changes is seen, its changes are
+ * read again from the transport once before the gap is accepted.</p>
+ *
+ * <p>The node name, version vector, last-change stamps and transport positions
+ * are kept in a state file. Changes only mark the state as dirty, and
+ * {@link #flushState()} writes it in the background, so that bans and received
+ * changes never wait for the file.</p>
+ */
+public class SyncedBanDatabase implements BanDatabase, BanSyncTransport.Receiver {
+
+    /**
+     * When a ban was last changed, and by which node
+     */
+    private static class Stamp {
+        private final long time;
+        private final String origin;
+
+        private Stamp(long time, String origin) {
+            this.time = time;
+            this.origin = origin;
+        }
+    }
+
+    private final BanDatabase delegate;
+    private final BanSyncTransport transport;
+    private final File stateFile;
+    private String node;
+    private long sequence;
+
+    /**
+     * The highest sequence number applied from each other node
+     */
+    private final Map<String, Long> versions = new HashMap<String, Long>();
+
+    /**
+     * The last change to each banned UUID, address and name
+     */
+    private final Map<String, Stamp> stamps = new HashMap<String, Stamp>();
+
+    /**
+     * The nodes whose changes are being read again after a gap
+     */
+    private final Set<String> resyncing = new HashSet<String>();
+
+    /**
+     * The transport positions read from the state file, to start the transport at
+     */
+    private final Map<String, Long> positions = new HashMap<String, Long>();
+
+    /**
+     * Whether the state has changed since it was last written
+     */
+    private boolean dirty;
+
+    /**
+     * Held while the state file is written, so that writes happen in order
+     */
+    private final Object stateWriteLock = new Object();
+
+    /**
+     * @param delegate The database to store bans in
+     * @param transport The transport to exchange changes over
+     * @param stateFile The file to keep this node's name and version vector in
+     * @param node The name of this node, or null to use a generated name
+     */
+    public SyncedBanDatabase(BanDatabase delegate, BanSyncTransport transport, File stateFile, String node) {
+        this.delegate = delegate;
+        this.transport = transport;
+        this.stateFile = stateFile;
+        this.node = node == null || node.isEmpty() ? null : node;
+    }
+
+    public BanDatabase getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Starts exchanging changes with the other nodes.
+     *
+     * @return whether synchronization was started
+     */
+    public boolean startSync() {
+        synchronized (this) {
+            readState();
+            try {
+                sequence = Math.max(sequence, transport.start(node, positions, this));
+            } catch (IOException e) {
+                logger().warning("Failed to start ban synchronization: " + e.getMessage());
+                return false;
+            }
+            dirty = true;
+        }
+        flushState();
+        return true;
+    }
+
+    private void readState() {
+        Properties state = new Properties();
+        InputStream input = null;
+        try {
+            FileUtil.recover(stateFile, new File(stateFile.getPath() + ".tmp"));
+            input = new FileInputStream(stateFile);
+            state.load(input);
+        } catch (FileNotFoundException ignored) {
+        } catch (IOException e) {
+            logger().warning("Failed to read " + stateFile.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        String savedNode = state.getProperty("node");
+        if (node == null) {
+            node = savedNode != null ? savedNode : UUID.randomUUID().toString();
+        }
+        // The sequence and versions belong to the node they were saved by
+        if (node.equals(savedNode)) {
+            try {
+                sequence = Long.parseLong(state.getProperty("sequence", "0"));
+                for (String key : state.stringPropertyNames()) {
+                    if (key.startsWith("version.")) {
+                        versions.put(key.substring(8), Long.parseLong(state.getProperty(key)));
+                    } else if (key.startsWith("position.")) {
+                        positions.put(key.substring(9), Long.parseLong(state.getProperty(key)));
+                    } else if (key.startsWith("stamp.")) {
+                        String value = state.getProperty(key);
+                        int split = value.indexOf(' ');
+                        if (split != -1) {
+                            stamps.put(key.substring(6), new Stamp(Long.parseLong(value.substring(0, split)),
+                                    value.substring(split + 1)));
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                logger().warning("Invalid ban synchronization state in " + stateFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Writes the state file if the state has changed since it was last written.
+     * The state is copied with the lock held, but written without it.
+     *
+     * @return whether the state file is up to date
+     */
+    public boolean flushState() {
+        synchronized (stateWriteLock) {
+            Properties state;
+            synchronized (this) {
+                if (!dirty || node == null) {
+                    return true;
+                }
+                dirty = false;
+                state = snapshotState();
+            }
+            if (!writeState(state)) {
+                synchronized (this) {
+                    dirty = true;
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private Properties snapshotState() {
+        Properties state = new Properties();
+        state.setProperty("node", node);
+        state.setProperty("sequence", String.valueOf(sequence));
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+            state.setProperty("version." + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        for (Map.Entry<String, Stamp> entry : stamps.entrySet()) {
+            state.setProperty("stamp." + entry.getKey(), entry.getValue().time + " " + entry.getValue().origin);
+        }
+        for (Map.Entry<String, Long> entry : transport.getPositions().entrySet()) {
+            state.setProperty("position." + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        return state;
+    }
+
+    private boolean writeState(Properties state) {
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(tempFile);
+            state.store(output, "CommandBook ban synchronization state");
+        } catch (IOException e) {
+            logger().warning("Failed to write " + tempFile.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        if (!FileUtil.replace(tempFile, stateFile)) {
+            logger().warning("Failed to replace " + stateFile.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void receive(List<BanChange> changes) {
+        Set<String> skipped = new HashSet<String>();
+        for (BanChange change : changes) {
+            String origin = change.getOrigin();
+            if (origin.equals(node) || skipped.contains(origin)) {
+                continue;
+            }
+            Long applied = versions.get(origin);
+            if (applied != null && change.getSequence() <= applied) {
+                continue;
+            }
+            if (applied != null && change.getSequence() > applied + 1) {
+                long missed = change.getSequence() - applied - 1;
+                if (resyncing.add(origin)) {
+                    // Read the node's changes again before giving up on the missing ones
+                    logger().warning("Missed " + missed + " ban change(s) from " + origin + ", reading its changes again");
+                    transport.resync(origin);
+                    skipped.add(origin);
+                    continue;
+                }
+                logger().warning("Missed " + missed + " ban change(s) from " + origin
+                        + " which could not be read again");
+            }
+            resyncing.remove(origin);
+            versions.put(origin, change.getSequence());
+            dirty = true;
+
+            List<String> keys = getKeys(change);
+            if (!isNewest(change, keys)) {
+                continue;
+            }
+            stamp(keys, change);
+            switch (change.getType()) {
+                case BAN:
+                    delegate.ban(change.getBan(), null);
+                    break;
+                case UNBAN:
+                    delegate.unban(change.getID(), change.getAddress(), null, change.getReason());
+                    break;
+                case UNBAN_NAME:
+                    delegate.unbanName(change.getName(), null, change.getReason());
+                    break;
+            }
+        }
+    }
+
+    private static List<String> getKeys(BanChange change) {
+        List<String> keys = new ArrayList<String>(2);
+        if (change.getID() != null) {
+            keys.add("u:" + change.getID());
+        }
+        if (change.getAddress() != null) {
+            keys.add("a:" + change.getAddress());
+        }
+        if (change.getID() == null && change.getName() != null) {
+            keys.add("n:" + change.getName().toLowerCase());
+        }
+        return keys;
+    }
+
+    private boolean isNewest(BanChange change, List<String> keys) {
+        for (String key : keys) {
+            Stamp stamp = stamps.get(key);
+            if (stamp != null && !change.isNewerThan(stamp.time, stamp.origin)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stamp(List<String> keys, BanChange change) {
+        Stamp stamp = new Stamp(change.getTime(), change.getOrigin());
+        for (String key : keys) {
+            stamps.put(key, stamp);
+        }
+        dirty = true;
+    }
+
+    private void publish(BanChange change) {
+        stamp(getKeys(change), change);
+        try {
+            transport.publish(change);
+        } catch (IOException e) {
+            logger().warning("Failed to publish " + change + ": " + e.getMessage());
+        }
+    }
+
+    public boolean load() {
+        return delegate.load();
+    }
+
+    public boolean save() {
+        flushState();
+        return delegate.save();
+    }
+
+    public boolean unload() {
+        transport.stop();
+        flushState();
+        return delegate.unload();
+    }
+
+    @Override
+    public boolean isBanned(UUID ID) {
+        return delegate.isBanned(ID);
+    }
+
+    @Override
+    public boolean isBanned(InetAddress address) {
+        return delegate.isBanned(address);
+    }
+
+    @Override
+    public String getBannedMessage(UUID ID) {
+        return delegate.getBannedMessage(ID);
+    }
+
+    @Override
+    public String getBannedMessage(String address) {
+        return delegate.getBannedMessage(address);
+    }
+
+    @Override
+    public void ban(Player player, CommandSender source, String reason, long end) {
+        ban(player.getUniqueId(), player.getName(), player.getAddress().getAddress().getHostAddress(), source, reason, end);
+    }
+
+    @Override
+    public void ban(UUID ID, String name, String address, CommandSender source, String reason, long end) {
+        ban(new Ban(ID, name, AddressRange.normalize(address), reason, System.currentTimeMillis(), end,
+                source == null ? null : source.getName()), source);
+    }
+
+    @Override
+    public synchronized void ban(Ban ban, CommandSender source) {
+        delegate.ban(ban, source);
+        publish(BanChange.ban(node, ++sequence, ban));
+    }
+
+    @Override
+    public synchronized boolean unbanName(String name, CommandSender source, String reason) {
+        if (!delegate.unbanName(name, source, reason)) {
+            return false;
+        }
+        publish(BanChange.unbanName(node, ++sequence, name, reason));
+        return true;
+    }
+
+    @Override
+    public boolean unban(Player player, CommandSender source, String reason) {
+        return unban(player.getUniqueId(), null, source, reason);
+    }
+
+    @Override
+    public synchronized boolean unban(UUID ID, String address, CommandSender source, String reason) {
+        if (!delegate.unban(ID, address, source, reason)) {
+            return false;
+        }
+        publish(BanChange.unban(node, ++sequence, ID, AddressRange.normalize(address), reason));
+        return true;
+    }
+
+    @Override
+    public void logKick(Player player, CommandSender source, String reason) {
+        delegate.logKick(player, source, reason);
+    }
+
+    @Override
+    public void importFrom(BanDatabase bans) {
+        delegate.importFrom(bans);
+    }
+
+    @Override
+    public void importBans(Collection<Ban> bans) {
+        delegate.importBans(bans);
+    }
+
+    @Override
+    public Ban getBanned(UUID ID) {
+        return delegate.getBanned(ID);
+    }
+
+    @Override
+    public Ban getBanned(String address) {
+        return delegate.getBanned(address);
+    }
+
+    @Override
+    public Ban getBanned(InetAddress address) {
+        return delegate.getBanned(address);
+    }
+
+    @Override
+    public List<Ban> query(BanQuery query, int offset, int limit) {
+        return delegate.query(query, offset, limit);
+    }
+
+    @Override
+    public int count(BanQuery query) {
+        return delegate.count(query);
+    }
+
+    public Iterator<Ban> iterator() {
+        final Iterator<Ban> iterator = delegate.iterator();
+        return new Iterator<Ban>() {
+            private Ban next;
+
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public Ban next() {
+                return next = iterator.next();
+            }
+
+            public void remove() {
+                unban(next.getID(), next.getAddress(), null, "Removed by iterator");
+            }
+        };
+    }
+}
@@ -19,6 +19,7 @@
 package com.sk89q.commandbook.commands;
 
 import com.sk89q.commandbook.CommandBook;
+import com.sk89q.commandbook.session.SessionComponent;
 import com.sk89q.minecraft.util.commands.*;
 import com.zachsthings.libcomponents.AbstractComponent;
 import com.zachsthings.libcomponents.ComponentInformation;
@@ -33,7 +34,7 @@
 public class CommandBookCommands {
 
     public static class CommandBookParentCommand {
-        @Command(aliases = {"cmdbook"}, desc = "CommandBook commands",
+        @Command(aliases = {"cmdbook", "cb"}, desc = "CommandBook commands",
                 flags = "d", min = 1, max = 3)
         @NestedCommand({CommandBookCommands.class})
         public static void cmdBook() {
@@ -70,6 +71,25 @@ public static void save(CommandContext args, CommandSender sender) throws Comman
         sender.sendMessage(ChatColor.YELLOW + "CommandBook's configuration has been reloaded.");
     }
 
+    @Command(aliases = {"metrics"}, desc = "Performance metrics")
+    @NestedCommand({MetricsCommands.class})
+    public static void metrics() {
+    }
+
+    public static class MetricsCommands {
+        @Command(aliases = {"sessions"}, usage = "", desc = "Show the cost of player sessions", min = 0, max = 0)
+        @CommandPermissions({"commandbook.metrics.sessions"})
+        public static void sessions(CommandContext args, CommandSender sender) throws CommandException {
+            SessionComponent sessions = CommandBook.inst().getComponentManager().getComponent(SessionComponent.class);
+            if (sessions == null) {
+                throw new CommandException("The sessions component is not enabled!");
+            }
+            for (String line : sessions.getMetricsReport()) {
+                sender.sendMessage(ChatColor.YELLOW + line);
+            }
+        }
+    }
+
     @Command(aliases = {"help", "doc"}, usage = "<component>", desc = "Get documentation for a component",
             flags = "p:", min = 0, max = 1)
     @CommandPermissions("commandbook.component.help")
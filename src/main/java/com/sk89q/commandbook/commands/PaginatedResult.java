@@ -33,7 +33,7 @@
 public abstract class PaginatedResult<T> {
     private final String header;
 
-    protected static final int PER_PAGE = 9;
+    public static final int PER_PAGE = 9;
     
     public PaginatedResult(String header) {
         this.header = header;
@@ -43,26 +43,53 @@ public void display(CommandSender sender, Collection<? extends T> results, int p
         display(sender, new ArrayList<T>(results), page);
     }
     
-    public void display(CommandSender sender, List<? extends T> results, int page) throws CommandException {
-        if (results.size() == 0) throw new CommandException("No results match!");
+    public void display(CommandSender sender, final List<? extends T> results, int page) throws CommandException {
+        display(sender, new ResultSource<T>() {
+            @Override
+            public int count() {
+                return results.size();
+            }
+
+            @Override
+            public List<? extends T> getPage(int offset, int limit) {
+                return results.subList(offset, Math.min(offset + limit, results.size()));
+            }
+        }, page);
+    }
+
+    /**
+     * Displays a page of results which are fetched one page at a time, such as from a database.
+     */
+    public void display(CommandSender sender, ResultSource<? extends T> source, int page) throws CommandException {
+        int count = source.count();
+        if (count == 0) throw new CommandException("No results match!");
         --page;
 
-        int maxPages = results.size() / PER_PAGE;
+        int maxPages = count / PER_PAGE;
 
         // If the content divides perfectly, eg (18 entries, and 9 per page)
         // we end up with a blank page this handles this case
-        if (results.size() % PER_PAGE == 0) {
+        if (count % PER_PAGE == 0) {
             maxPages--;
         }
 
         page = Math.max(0, Math.min(page, maxPages));
 
         sender.sendMessage(ChatColor.YELLOW + header + " - Page (" + (page + 1) + "/" + (maxPages + 1) + ")");
-        for (int i = PER_PAGE * page; i < PER_PAGE * page + PER_PAGE  && i < results.size(); i++) {
-            sender.sendMessage(ChatColor.YELLOW.toString() + format(results.get(i)));
+        for (T result : source.getPage(PER_PAGE * page, PER_PAGE)) {
+            sender.sendMessage(ChatColor.YELLOW.toString() + format(result));
         }
     }
     
     public abstract String format(T entry);
 
+    /**
+     * A source of results that can be counted and read a page at a time.
+     */
+    public interface ResultSource<T> {
+        public int count();
+
+        public List<? extends T> getPage(int offset, int limit);
+    }
+
 }
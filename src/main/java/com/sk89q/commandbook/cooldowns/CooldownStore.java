@@ -0,0 +1,210 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.cooldowns;
+
+import com.sk89q.commandbook.util.FileUtil;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Keeps the cooldowns of every command sender in a single file, as the time at which
+ * each cooldown expires, so that they hold across restarts and crashes. Changes are only
+ * kept in memory until the next {@link #flush()}, so many uses of limited commands
+ * share one write. Expired cooldowns are dropped whenever the file is read or written.
+ *
+ * <p>The file is a header followed by, for each sender, its unique name, the number
+ * of cooldowns it has and then each command with its expiry time.</p>
+ */
+public class CooldownStore {
+    private static final int MAGIC = 0x4342434c;
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+    private final ConcurrentMap<String, ConcurrentMap<String, Long>> expiries =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Long>>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    public CooldownStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads every cooldown that has not expired yet from the file.
+     */
+    public void load() {
+        if (!FileUtil.recover(file, new File(file.getPath() + ".tmp"))) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC) {
+                logger().warning(file.getAbsolutePath() + " is not a cooldown file, ignoring it");
+                return;
+            }
+            int version = input.readUnsignedByte();
+            if (version != FORMAT_VERSION) {
+                logger().warning(file.getAbsolutePath() + " has unknown format version " + version + ", ignoring it");
+                return;
+            }
+
+            for (int owners = input.readInt(); owners > 0; --owners) {
+                String owner = input.readUTF();
+                for (int count = input.readInt(); count > 0; --count) {
+                    String command = input.readUTF();
+                    long expiry = input.readLong();
+                    if (expiry > now) {
+                        getExpiries(owner).put(command, expiry);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger().warning("Failed to read cooldowns from " + file.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private ConcurrentMap<String, Long> getExpiries(String owner) {
+        ConcurrentMap<String, Long> ownerExpiries = expiries.get(owner);
+        if (ownerExpiries == null) {
+            ownerExpiries = new ConcurrentHashMap<String, Long>();
+            ConcurrentMap<String, Long> existing = expiries.putIfAbsent(owner, ownerExpiries);
+            if (existing != null) {
+                ownerExpiries = existing;
+            }
+        }
+        return ownerExpiries;
+    }
+
+    /**
+     * Returns the cooldowns of a sender that have not expired yet.
+     *
+     * @param owner The unique name of the sender
+     * @return The expiry time of each cooldown, keyed by command
+     */
+    public Map<String, Long> get(String owner) {
+        Map<String, Long> result = new HashMap<String, Long>();
+        Map<String, Long> ownerExpiries = expiries.get(owner);
+        if (ownerExpiries != null) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Long> entry : ownerExpiries.entrySet()) {
+                if (entry.getValue() > now) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    public void set(String owner, String command, long expiry) {
+        getExpiries(owner).put(command, expiry);
+        dirty.set(true);
+    }
+
+    public void remove(String owner, String command) {
+        Map<String, Long> ownerExpiries = expiries.get(owner);
+        if (ownerExpiries != null && ownerExpiries.remove(command) != null) {
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * Writes the cooldowns to the file if any have changed since the last flush.
+     *
+     * @return Whether the file is up to date
+     */
+    public synchronized boolean flush() {
+        if (!dirty.getAndSet(false)) {
+            return true;
+        }
+
+        // Expired cooldowns are dropped here. The map of a sender is kept even when it is
+        // empty, since removing it could lose a cooldown being set at the same time.
+        long now = System.currentTimeMillis();
+        Map<String, Map<String, Long>> snapshot = new HashMap<String, Map<String, Long>>();
+        for (Map.Entry<String, ConcurrentMap<String, Long>> entry : expiries.entrySet()) {
+            Map<String, Long> live = new HashMap<String, Long>();
+            for (Map.Entry<String, Long> cooldown : entry.getValue().entrySet()) {
+                if (cooldown.getValue() > now) {
+                    live.put(cooldown.getKey(), cooldown.getValue());
+                } else {
+                    // Only if it has not been set again since it was read
+                    entry.getValue().remove(cooldown.getKey(), cooldown.getValue());
+                }
+            }
+            if (!live.isEmpty()) {
+                snapshot.put(entry.getKey(), live);
+            }
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutput = null;
+        DataOutputStream output = null;
+        try {
+            fileOutput = new FileOutputStream(tempFile);
+            output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+            output.writeInt(MAGIC);
+            output.writeByte(FORMAT_VERSION);
+            output.writeInt(snapshot.size());
+            for (Map.Entry<String, Map<String, Long>> entry : snapshot.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeInt(entry.getValue().size());
+                for (Map.Entry<String, Long> cooldown : entry.getValue().entrySet()) {
+                    output.writeUTF(cooldown.getKey());
+                    output.writeLong(cooldown.getValue());
+                }
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+            output.close();
+            output = null;
+        } catch (IOException e) {
+            logger().warning("Failed to write cooldowns to " + tempFile.getAbsolutePath() + ": " + e.getMessage());
+            dirty.set(true);
+            return false;
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        if (!FileUtil.replace(tempFile, file)) {
+            logger().warning("Failed to rename " + tempFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+            dirty.set(true);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+import com.zachsthings.libcomponents.config.Setting;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes the {@link Setting} fields of a session in a compact binary form.
+ * Each field is written with its setting name and a type tag, so fields can be
+ * reordered, added or removed between versions: unknown fields are skipped when
+ * decoding, and fields missing from the data keep their current value.
+ * Primitive fields are read and written without boxing.
+ *
+ * <p>Supported field types are primitives and their wrappers, strings, enums,
+ * and lists and string-keyed maps of those.</p>
+ */
+public class BinarySessionCodec {
+    /**
+     * The version of the encoding. Data written by a newer version is rejected,
+     * while older versions are converted as they are read.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte INT = 4;
+    private static final byte LONG = 5;
+    private static final byte FLOAT = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte STRING = 8;
+    private static final byte LIST = 9;
+    private static final byte MAP = 10;
+
+    private static final Map<Class<?>, Map<String, Field>> schemas = new ConcurrentHashMap<Class<?>, Map<String, Field>>();
+
+    private BinarySessionCodec() {
+    }
+
+    public static byte[] encode(PersistentSession session) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, Field> schema = getSchema(session.getClass());
+        out.writeShort(FORMAT_VERSION);
+        out.writeShort(schema.size());
+        try {
+            for (Map.Entry<String, Field> entry : schema.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeField(out, entry.getValue(), session);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("Could not read a field of " + session.getClass().getName() + ": " + e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    public static void decode(PersistentSession session, byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedShort();
+        if (version > FORMAT_VERSION) {
+            throw new IOException("Session data was written by a newer version (" + version + ")");
+        }
+        Map<String, Field> schema = getSchema(session.getClass());
+        int count = in.readUnsignedShort();
+        try {
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte tag = in.readByte();
+                Field field = schema.get(name);
+                if (field == null) {
+                    skipValue(in, tag);
+                } else {
+                    readField(in, tag, field, session);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("Could not set a field of " + session.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the setting fields of a session class and its superclasses, by setting name.
+     */
+    private static Map<String, Field> getSchema(Class<?> clazz) {
+        Map<String, Field> schema = schemas.get(clazz);
+        if (schema == null) {
+            schema = new LinkedHashMap<String, Field>();
+            for (Class<?> type = clazz; type != null && type != Object.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    Setting setting = field.getAnnotation(Setting.class);
+                    if (setting == null || Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    if (!schema.containsKey(setting.value())) {
+                        schema.put(setting.value(), field);
+                    }
+                }
+            }
+            schemas.put(clazz, schema);
+        }
+        return schema;
+    }
+
+    // -- Writing
+
+    private static void writeField(DataOutputStream out, Field field, Object target) throws IOException, IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type == long.class) {
+            out.writeByte(LONG);
+            out.writeLong(field.getLong(target));
+        } else if (type == int.class) {
+            out.writeByte(INT);
+            out.writeInt(field.getInt(target));
+        } else if (type == boolean.class) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean(field.getBoolean(target));
+        } else if (type == double.class) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(field.getDouble(target));
+        } else if (type == float.class) {
+            out.writeByte(FLOAT);
+            out.writeFloat(field.getFloat(target));
+        } else if (type == short.class) {
+            out.writeByte(SHORT);
+            out.writeShort(field.getShort(target));
+        } else if (type == byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte(field.getByte(target));
+        } else {
+            writeValue(out, field.get(target));
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Enum) {
+            out.writeByte(STRING);
+            out.writeUTF(((Enum<?>) value).name());
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                out.writeUTF(String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> list = (Collection<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                writeValue(out, element);
+            }
+        } else {
+            throw new IOException("Unsupported session setting type: " + value.getClass().getName());
+        }
+    }
+
+    // -- Reading
+
+    private static void readField(DataInputStream in, byte tag, Field field, Object target) throws IOException, IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type.isPrimitive()) {
+            if (type == boolean.class) {
+                if (tag == BOOLEAN) {
+                    field.setBoolean(target, in.readBoolean());
+                } else {
+                    skipValue(in, tag);
+                }
+            } else if (!isNumber(tag)) {
+                skipValue(in, tag);
+            } else if (type == long.class) {
+                field.setLong(target, readLong(in, tag));
+            } else if (type == int.class) {
+                field.setInt(target, (int) readLong(in, tag));
+            } else if (type == double.class) {
+                field.setDouble(target, readDouble(in, tag));
+            } else if (type == float.class) {
+                field.setFloat(target, (float) readDouble(in, tag));
+            } else if (type == short.class) {
+                field.setShort(target, (short) readLong(in, tag));
+            } else if (type == byte.class) {
+                field.setByte(target, (byte) readLong(in, tag));
+            } else {
+                skipValue(in, tag);
+            }
+            return;
+        }
+
+        Object value = coerce(readValue(in, tag), field.getGenericType());
+        if (value == null && tag != NULL) {
+            return; // Could not be converted to the field's type
+        }
+        if (Modifier.isFinal(field.getModifiers())) {
+            // Final collections are refilled in place
+            Object current = field.get(target);
+            try {
+                if (current instanceof Map && value instanceof Map) {
+                    Map<Object, Object> currentMap = cast(current);
+                    currentMap.clear();
+                    for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                        if (entry.getValue() != null) {
+                            currentMap.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                } else if (current instanceof Collection && value instanceof Collection) {
+                    Collection<Object> currentList = cast(current);
+                    currentList.clear();
+                    currentList.addAll((Collection<?>) value);
+                }
+            } catch (RuntimeException ignored) {
+                // Elements the collection doesn't accept, such as ones a sorted collection can't compare
+            }
+        } else {
+            value = adapt(value, field.getType());
+            if (value == null && tag != NULL) {
+                return; // A collection type that can't be created
+            }
+            field.set(target, value);
+        }
+    }
+
+    /**
+     * Copies a decoded map or collection into the concrete class a field is
+     * declared with, such as a {@code TreeMap}, if it isn't already one.
+     *
+     * @return The value as the given type, or null if it can't be converted
+     */
+    private static Object adapt(Object value, Class<?> type) {
+        if (value == null || type.isInstance(value)) {
+            return value;
+        }
+        boolean map = value instanceof Map && Map.class.isAssignableFrom(type);
+        boolean collection = value instanceof Collection && Collection.class.isAssignableFrom(type);
+        if ((!map && !collection) || type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+            return null;
+        }
+        try {
+            Object adapted = type.newInstance();
+            if (map) {
+                Map<Object, Object> adaptedMap = cast(adapted);
+                adaptedMap.putAll((Map<?, ?>) value);
+            } else {
+                Collection<Object> adaptedList = cast(adapted);
+                adaptedList.addAll((Collection<?>) value);
+            }
+            return adapted;
+        } catch (InstantiationException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null; // Such as elements a sorted collection can't compare
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object value) {
+        return (T) value;
+    }
+
+    private static boolean isNumber(byte tag) {
+        return tag >= BYTE && tag <= DOUBLE;
+    }
+
+    private static long readLong(DataInputStream in, byte tag) throws IOException {
+        switch (tag) {
+            case BYTE: return in.readByte();
+            case SHORT: return in.readShort();
+            case INT: return in.readInt();
+            case LONG: return in.readLong();
+            case FLOAT: return (long) in.readFloat();
+            case DOUBLE: return (long) in.readDouble();
+            default: throw new IOException("Not a number: " + tag);
+        }
+    }
+
+    private static double readDouble(DataInputStream in, byte tag) throws IOException {
+        switch (tag) {
+            case FLOAT: return in.readFloat();
+            case DOUBLE: return in.readDouble();
+            default: return readLong(in, tag);
+        }
+    }
+
+    private static Object readValue(DataInputStream in, byte tag) throws IOException {
+        switch (tag) {
+            case NULL: return null;
+            case BOOLEAN: return in.readBoolean();
+            case BYTE: return in.readByte();
+            case SHORT: return in.readShort();
+            case INT: return in.readInt();
+            case LONG: return in.readLong();
+            case FLOAT: return in.readFloat();
+            case DOUBLE: return in.readDouble();
+            case STRING: return in.readUTF();
+            case LIST: {
+                int size = in.readInt();
+                List<Object> list = new ArrayList<Object>(Math.min(size, 1024));
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, in.readByte()));
+                }
+                return list;
+            }
+            case MAP: {
+                int size = in.readInt();
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                for (int i = 0; i < size; i++) {
+                    String key = in.readUTF();
+                    map.put(key, readValue(in, in.readByte()));
+                }
+                return map;
+            }
+            default:
+                throw new IOException("Unknown session setting tag: " + tag);
+        }
+    }
+
+    private static void skipValue(DataInputStream in, byte tag) throws IOException {
+        switch (tag) {
+            case NULL: break;
+            case BOOLEAN: case BYTE: in.skipBytes(1); break;
+            case SHORT: in.skipBytes(2); break;
+            case INT: case FLOAT: in.skipBytes(4); break;
+            case LONG: case DOUBLE: in.skipBytes(8); break;
+            case STRING: in.skipBytes(in.readUnsignedShort()); break;
+            case LIST: {
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    skipValue(in, in.readByte());
+                }
+                break;
+            }
+            case MAP: {
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    in.skipBytes(in.readUnsignedShort());
+                    skipValue(in, in.readByte());
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown session setting tag: " + tag);
+        }
+    }
+
+    /**
+     * Converts a decoded value to the declared type of a field, so that for example
+     * a number stored as an int can be read into a {@code Map<String, Long>}.
+     *
+     * @return The converted value, or null if it could not be converted
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object coerce(Object value, Type type) {
+        if (value == null) {
+            return null;
+        }
+        Class<?> raw = type instanceof ParameterizedType ? (Class<?>) ((ParameterizedType) type).getRawType()
+                : type instanceof Class ? (Class<?>) type : Object.class;
+        Type[] args = type instanceof ParameterizedType ? ((ParameterizedType) type).getActualTypeArguments() : null;
+
+        if (Map.class.isAssignableFrom(raw)) {
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            Type valueType = args != null && args.length == 2 ? args[1] : Object.class;
+            Map<String, Object> map = new HashMap<String, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put((String) entry.getKey(), coerce(entry.getValue(), valueType));
+            }
+            return map;
+        } else if (Collection.class.isAssignableFrom(raw)) {
+            if (!(value instanceof Collection)) {
+                return null;
+            }
+            Type elementType = args != null && args.length == 1 ? args[0] : Object.class;
+            Collection<Object> list = Set.class.isAssignableFrom(raw) ? new HashSet<Object>() : new ArrayList<Object>();
+            for (Object element : (Collection<?>) value) {
+                list.add(coerce(element, elementType));
+            }
+            return list;
+        } else if (raw.isEnum()) {
+            try {
+                return Enum.valueOf((Class<? extends Enum>) raw, String.valueOf(value));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        } else if (value instanceof Number) {
+            Number number = (Number) value;
+            if (raw == Long.class) {
+                return number.longValue();
+            } else if (raw == Integer.class) {
+                return number.intValue();
+            } else if (raw == Double.class) {
+                return number.doubleValue();
+            } else if (raw == Float.class) {
+                return number.floatValue();
+            } else if (raw == Short.class) {
+                return number.shortValue();
+            } else if (raw == Byte.class) {
+                return number.byteValue();
+            }
+        }
+        return raw.isInstance(value) ? value : null;
+    }
+}
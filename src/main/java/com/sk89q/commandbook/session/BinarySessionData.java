@@ -0,0 +1,152 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+import com.sk89q.commandbook.util.FileUtil;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Stores sessions in a binary file, as a block per session class encoded by
+ * {@link BinarySessionCodec}. Blocks are kept encoded in memory, so loading and
+ * saving a session costs no more than decoding or encoding its fields.
+ */
+public class BinarySessionData implements SessionData {
+    public static final String EXTENSION = ".bin";
+    private static final int MAGIC = 0x43425353; // CBSS
+
+    private final File file;
+    private final Map<String, byte[]> blocks = new LinkedHashMap<String, byte[]>();
+
+    public BinarySessionData(File file) {
+        this.file = file;
+        read();
+    }
+
+    private void read() {
+        if (!FileUtil.recover(file, new File(file.getPath() + ".tmp"))) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a session file");
+            }
+            int version = in.readUnsignedShort();
+            if (version > BinarySessionCodec.FORMAT_VERSION) {
+                throw new IOException("Written by a newer version (" + version + ")");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String type = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                blocks.put(type, data);
+            }
+        } catch (IOException e) {
+            logger().warning("Error loading sessions persistence file " + file.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the encoded sessions in this file, by class name.
+     *
+     * @return The encoded sessions
+     */
+    public Map<String, byte[]> getEncoded() {
+        return Collections.unmodifiableMap(blocks);
+    }
+
+    public void load(PersistentSession session) {
+        byte[] data = blocks.get(session.getClass().getName());
+        if (data != null) {
+            try {
+                BinarySessionCodec.decode(session, data);
+            } catch (IOException e) {
+                logger().log(Level.WARNING, "Could not decode " + session.getClass().getName() + " from " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    public void save(PersistentSession session) {
+        try {
+            blocks.put(session.getClass().getName(), BinarySessionCodec.encode(session));
+        } catch (IOException e) {
+            logger().log(Level.WARNING, "Could not encode " + session.getClass().getName(), e);
+        }
+    }
+
+    public void remove(Class<? extends PersistentSession> type) {
+        blocks.remove(type.getName());
+    }
+
+    public boolean write() {
+        File parent = file.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File tempFile = new File(parent, file.getName() + ".tmp");
+        FileOutputStream fileOut = null;
+        DataOutputStream out = null;
+        try {
+            fileOut = new FileOutputStream(tempFile);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeShort(BinarySessionCodec.FORMAT_VERSION);
+            out.writeInt(blocks.size());
+            for (Map.Entry<String, byte[]> entry : blocks.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            logger().warning("Failed to write sessions persistence file " + file.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        if (!FileUtil.replace(tempFile, file)) {
+            logger().warning("Failed to replace " + file.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+import com.sk89q.commandbook.util.FileUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * A {@link SessionStore} that keeps every session in a single append-only file.
+ * Each save or delete appends a record, and an in-memory index points at the
+ * newest data of each session, so no file is opened or created per user.
+ * Appends are not forced to disk until {@link #flush()}, which lets many
+ * changes share one fsync. Once most of the file is overwritten records, it
+ * can be compacted by {@link #compact()} while the store is in use.
+ *
+ * <p>Each record is a length, a body and a CRC-32 of the body. A torn record at
+ * the end of the file, left by a crash, is discarded when the store is opened.</p>
+ */
+public class LogSessionStore implements SessionStore {
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int MIN_COMPACT_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final File compactFile;
+    private File activeFile;
+    private RandomAccessFile output;
+    private FileChannel channel;
+    private long end;
+    private long garbage;
+    private boolean unsynced;
+    private boolean compacting;
+    private Map<String, Map<String, Location>> index = new HashMap<String, Map<String, Location>>();
+
+    private static class Location {
+        private final long offset;
+        private final int length;
+        private final int recordSize;
+
+        private Location(long offset, int length, int recordSize) {
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+    public LogSessionStore(File file) throws IOException {
+        this.file = file;
+        this.compactFile = new File(file.getPath() + ".compact");
+        if (!FileUtil.recover(file, compactFile) && compactFile.exists() && !compactFile.renameTo(file)) {
+            throw new IOException("Could not restore " + compactFile.getAbsolutePath());
+        }
+        open(file);
+    }
+
+    private void open(File source) throws IOException {
+        activeFile = source;
+        output = new RandomAccessFile(source, "rw");
+        channel = output.getChannel();
+        index = new HashMap<String, Map<String, Location>>();
+        end = replay(channel, 0, index);
+        if (end < channel.size()) {
+            logger().warning("Discarding a torn record at the end of " + source.getAbsolutePath());
+            channel.truncate(end);
+        }
+        garbage = end - getLiveBytes(index);
+    }
+
+    private static long getLiveBytes(Map<String, Map<String, Location>> index) {
+        long live = 0;
+        for (Map<String, Location> sessions : index.values()) {
+            for (Location location : sessions.values()) {
+                live += location.recordSize;
+            }
+        }
+        return live;
+    }
+
+    private static String userKey(String senderType, String commander) {
+        return senderType + "/" + commander;
+    }
+
+    // -- Records
+
+    private static ByteBuffer encode(byte op, String user, String sessionType, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (data == null ? 0 : data.length));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // Length, filled in below
+        out.writeByte(op);
+        out.writeUTF(user);
+        out.writeUTF(sessionType);
+        if (data != null) {
+            out.write(data);
+        }
+        CRC32 crc = new CRC32();
+        byte[] record = bytes.toByteArray();
+        crc.update(record, 4, record.length - 4);
+        out.writeInt((int) crc.getValue());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        buffer.putInt(0, record.length - 4);
+        return buffer;
+    }
+
+    /**
+     * Reads records from a position onwards, applying them to an index.
+     *
+     * @return The position after the last intact record
+     */
+    private long replay(FileChannel source, long position, Map<String, Map<String, Location>> target) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new ChannelInput(source, position)));
+        CRC32 crc = new CRC32();
+        long size = source.size();
+        while (position + 4 <= size) {
+            int length = in.readInt();
+            if (length <= 0 || position + 4 + length + 4 > size) {
+                break;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            crc.reset();
+            crc.update(body);
+            if (in.readInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+            byte op = record.readByte();
+            String user = record.readUTF();
+            String sessionType = record.readUTF();
+            int dataLength = record.available();
+            int recordSize = 4 + length + 4;
+            if (op == PUT) {
+                apply(target, user, sessionType, new Location(position + 4 + (length - dataLength), dataLength, recordSize));
+            } else {
+                apply(target, user, sessionType, null);
+            }
+            position += recordSize;
+        }
+        return position;
+    }
+
+    private void apply(Map<String, Map<String, Location>> target, String user, String sessionType, Location location) {
+        Map<String, Location> sessions = target.get(user);
+        if (sessions == null) {
+            if (location == null) {
+                return;
+            }
+            sessions = new HashMap<String, Location>(4);
+            target.put(user, sessions);
+        }
+        Location previous = location == null ? sessions.remove(sessionType) : sessions.put(sessionType, location);
+        if (previous != null) {
+            garbage += previous.recordSize;
+        }
+        if (sessions.isEmpty()) {
+            target.remove(user);
+        }
+    }
+
+    private long append(ByteBuffer record) throws IOException {
+        long position = end;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        long start = end;
+        end = position;
+        unsynced = true;
+        return start;
+    }
+
+    private byte[] read(Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        long position = location.offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Session record is truncated");
+            }
+            position += read;
+        }
+        return buffer.array();
+    }
+
+    // -- SessionStore
+
+    public synchronized byte[] load(String senderType, String commander, String sessionType) throws IOException {
+        Map<String, Location> sessions = index.get(userKey(senderType, commander));
+        Location location = sessions == null ? null : sessions.get(sessionType);
+        return location == null ? null : read(location);
+    }
+
+    public synchronized void save(String senderType, String commander, String sessionType, byte[] data) throws IOException {
+        String user = userKey(senderType, commander);
+        ByteBuffer record = encode(PUT, user, sessionType, data);
+        int recordSize = record.remaining();
+        long position = append(record);
+        apply(index, user, sessionType, new Location(position + recordSize - 4 - data.length, data.length, recordSize));
+    }
+
+    public synchronized void delete(String senderType, String commander, String sessionType) throws IOException {
+        String user = userKey(senderType, commander);
+        Map<String, Location> sessions = index.get(user);
+        if (sessions == null || !sessions.containsKey(sessionType)) {
+            return;
+        }
+        ByteBuffer record = encode(DELETE, user, sessionType, null);
+        garbage += record.remaining();
+        append(record);
+        apply(index, user, sessionType, null);
+    }
+
+    public synchronized Map<String, byte[]> scan(String senderType, String commander) throws IOException {
+        Map<String, Location> sessions = index.get(userKey(senderType, commander));
+        if (sessions == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, byte[]> ret = new HashMap<String, byte[]>(sessions.size());
+        for (Map.Entry<String, Location> entry : sessions.entrySet()) {
+            ret.put(entry.getKey(), read(entry.getValue()));
+        }
+        return ret;
+    }
+
+    public void flush() throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (!unsynced) {
+                return;
+            }
+            channel = this.channel;
+            unsynced = false;
+        }
+        // Forced outside the lock, so that reads and appends aren't held up
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException ignored) {
+            // Replaced by compaction, which forces the new file itself
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger().warning("Failed to flush " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+        try {
+            output.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // -- Compaction
+
+    /**
+     * Returns whether more than half of the file is taken by records that have
+     * been overwritten or deleted.
+     *
+     * @return Whether the store should be compacted
+     */
+    public synchronized boolean needsCompaction() {
+        return !compacting && activeFile == file && end > MIN_COMPACT_SIZE && garbage > end / 2;
+    }
+
+    /**
+     * Rewrites the file with only the newest record of each session. The live
+     * records are copied without holding the lock of the store, so it stays
+     * usable; records appended meanwhile are copied over before the files are swapped.
+     *
+     * @return whether the operation was fully successful
+     */
+    public boolean compact() {
+        Map<String, Map<String, Location>> snapshot;
+        long snapshotEnd;
+        FileChannel source;
+        synchronized (this) {
+            if (compacting || activeFile != file) {
+                return true;
+            }
+            compacting = true;
+            snapshot = new HashMap<String, Map<String, Location>>(index.size());
+            for (Map.Entry<String, Map<String, Location>> entry : index.entrySet()) {
+                snapshot.put(entry.getKey(), new HashMap<String, Location>(entry.getValue()));
+            }
+            snapshotEnd = end;
+            source = channel;
+        }
+
+        RandomAccessFile compactOutput = null;
+        try {
+            compactOutput = new RandomAccessFile(compactFile, "rw");
+            compactOutput.setLength(0);
+            FileChannel target = compactOutput.getChannel();
+            Map<String, Map<String, Location>> compactIndex = new HashMap<String, Map<String, Location>>(snapshot.size());
+            long position = 0;
+            for (Map.Entry<String, Map<String, Location>> user : snapshot.entrySet()) {
+                for (Map.Entry<String, Location> session : user.getValue().entrySet()) {
+                    Location location = session.getValue();
+                    // Records are immutable once written, so they can be copied as they are
+                    long recordStart = location.offset + location.length + 4 - location.recordSize;
+                    position += copy(source, recordStart, location.recordSize, target, position);
+                    apply(compactIndex, user.getKey(), session.getKey(), new Location(
+                            position - 4 - location.length, location.length, location.recordSize));
+                }
+            }
+
+            synchronized (this) {
+                // Bring over what was appended during the copy
+                long tailLength = end - snapshotEnd;
+                copy(channel, snapshotEnd, tailLength, target, position);
+                long compactEnd = replay(target, position, compactIndex);
+                if (compactEnd != position + tailLength) {
+                    throw new IOException("Records appended during compaction could not be read back");
+                }
+                target.force(false);
+                compactOutput.close();
+                compactOutput = null;
+
+                output.close();
+                if (!FileUtil.replace(compactFile, file)) {
+                    // Keep using whichever file is complete; a compacted file
+                    // left behind is moved into place when the store is next opened
+                    open(file.exists() ? file : compactFile);
+                    throw new IOException("Could not replace " + file.getAbsolutePath());
+                }
+                output = new RandomAccessFile(file, "rw");
+                channel = output.getChannel();
+                activeFile = file;
+                index = compactIndex;
+                end = compactEnd;
+                garbage = end - getLiveBytes(index);
+                unsynced = false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger().warning("Failed to compact " + file.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (compactOutput != null) {
+                try {
+                    compactOutput.close();
+                } catch (IOException ignored) {
+                }
+            }
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private static long copy(FileChannel source, long position, long count, FileChannel target, long targetPosition) throws IOException {
+        long copied = 0;
+        while (copied < count) {
+            long transferred = target.transferFrom(source.position(position + copied), targetPosition + copied, count - copied);
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of " + source);
+            }
+            copied += transferred;
+        }
+        return copied;
+    }
+
+    /**
+     * Reads a channel from a position without moving the channel's own position.
+     */
+    private static class ChannelInput extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        private ChannelInput(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+}
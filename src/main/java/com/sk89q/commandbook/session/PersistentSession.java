@@ -47,6 +47,15 @@ public boolean isRecent() {
         return maxTime == -1 || getGoneTime() < maxTime;
     }
 
+    /**
+     * Returns the time at which this session stops being recent.
+     *
+     * @return The expiry time in milliseconds, or {@link Long#MAX_VALUE} if it never expires
+     */
+    public long getExpiryTime() {
+        return maxTime == -1 ? Long.MAX_VALUE : lastUpdate + maxTime;
+    }
+
     public CommandSender getOwner() {
         return sender;
     }
@@ -19,16 +19,19 @@
 package com.sk89q.commandbook.session;
 
 import com.sk89q.commandbook.CommandBook;
+import com.sk89q.commandbook.util.FileUtil;
+import com.sk89q.commandbook.util.TimingWheel;
 import com.sk89q.commandbook.util.entity.player.UUIDUtil;
 import com.sk89q.minecraft.util.commands.Command;
 import com.sk89q.minecraft.util.commands.CommandContext;
 import com.sk89q.minecraft.util.commands.CommandException;
 import com.sk89q.util.yaml.YAMLFormat;
-import com.sk89q.util.yaml.YAMLNode;
 import com.sk89q.util.yaml.YAMLProcessor;
 import com.zachsthings.libcomponents.ComponentInformation;
 import com.zachsthings.libcomponents.bukkit.BukkitComponent;
 import com.zachsthings.libcomponents.bukkit.YAMLNodeConfigurationNode;
+import com.zachsthings.libcomponents.config.ConfigurationBase;
+import com.zachsthings.libcomponents.config.Setting;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.OfflinePlayer;
@@ -37,50 +40,218 @@
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerLoginEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 @ComponentInformation(friendlyName = "Sessions", desc = "Handles player sessions")
 public class SessionComponent extends BukkitComponent implements Runnable, Listener {
-    public static final long CHECK_FREQUENCY = 60 * 20;
+    public static final long CHECK_FREQUENCY = 20;
+    public static final long PRELOAD_TIMEOUT = 5;
+    public static final long COMPACT_FREQUENCY = 60 * 20;
 
-    private final Map<Class<? extends CommandSender>, Map<String, Map<Class<? extends PersistentSession>, PersistentSession>>>
-            sessions = new ConcurrentHashMap<Class<? extends CommandSender>, Map<String, Map<Class<? extends PersistentSession>, PersistentSession>>>();
+    private final SessionRegistry sessions = new SessionRegistry();
     private final Map<Class<? extends PersistentSession>, SessionFactory<?>>
             sessionFactories = new ConcurrentHashMap<Class<? extends PersistentSession>, SessionFactory<?>>();
     private File sessionsDir;
-    private final Map<String, Map<String, YAMLProcessor>> sessionDataStores = new HashMap<String, Map<String, YAMLProcessor>>();
+    private LocalConfiguration config;
+    private SessionDataCache dataCache;
+    private int flushTaskId = -1;
+    private int compactTaskId = -1;
+    private volatile SessionStore store;
+    private final SessionMetrics metrics = new SessionMetrics();
+    private int metricsTaskId = -1;
+    private ExecutorService preloader;
+    private final ConcurrentMap<String, Preloaded> preloaded = new ConcurrentHashMap<String, Preloaded>();
+    private volatile String playerType;
+    private TimingWheel<SessionRegistry.Slots> expiryWheel;
+    private final Queue<ExpiredSession> expiredSessions = new ConcurrentLinkedQueue<ExpiredSession>();
+    private final AtomicBoolean cleanerScheduled = new AtomicBoolean();
+    private final Runnable cleaner = new ExpiredSessionCleaner();
 
     @Override
     public void enable() {
+        config = configure(new LocalConfiguration());
+        dataCache = new SessionDataCache(config.maxCachedDataStores, metrics);
+        expiryWheel = new TimingWheel<SessionRegistry.Slots>(CHECK_FREQUENCY * 50, System.currentTimeMillis());
         CommandBook.server().getScheduler().scheduleSyncRepeatingTask(CommandBook.inst(), this, CHECK_FREQUENCY, CHECK_FREQUENCY);
+        flushTaskId = CommandBook.server().getScheduler().scheduleAsyncRepeatingTask(CommandBook.inst(), dataCache,
+                SessionDataCache.FLUSH_FREQUENCY, SessionDataCache.FLUSH_FREQUENCY);
         CommandBook.registerEvents(this);
         registerCommands(Commands.class);
         sessionsDir = new File(CommandBook.inst().getDataFolder(), "sessions");
         if (!sessionsDir.exists()) {
             sessionsDir.mkdirs();
         }
+        applyFormat();
+        compactTaskId = CommandBook.server().getScheduler().scheduleAsyncRepeatingTask(CommandBook.inst(), new Runnable() {
+            @Override
+            public void run() {
+                SessionStore store = getSessionStore();
+                if (store instanceof LogSessionStore && ((LogSessionStore) store).needsCompaction()) {
+                    ((LogSessionStore) store).compact();
+                }
+            }
+        }, COMPACT_FREQUENCY, COMPACT_FREQUENCY);
+        scheduleMetricsFile();
+        preloader = Executors.newFixedThreadPool(Math.max(1, config.preloadThreads));
+        playerType = guessPlayerType();
+        for (Player player : CommandBook.server().getOnlinePlayers()) {
+            playerType = getType(player.getClass());
+            dataCache.pin(playerType + File.separator + UUIDUtil.toUniqueString(player));
+        }
     }
 
     @Override
-    public void disable() {
-        for (Player player : CommandBook.server().getOnlinePlayers()) {
-            String type = getType(player.getClass());
-            for (PersistentSession session : getSessions(player)) {
-                session.handleDisconnect();
-                session.save(new YAMLNodeConfigurationNode(getSessionConfiguration(type, UUIDUtil.toUniqueString(player), session.getClass())));
+    public void reload() {
+        super.reload();
+        String format = config.format;
+        configure(config);
+        dataCache.setMaxSize(config.maxCachedDataStores);
+        if (!format.equalsIgnoreCase(config.format)) {
+            // Write everything out, so that files are opened again in the new format
+            dataCache.clear();
+            applyFormat();
+        }
+        scheduleMetricsFile();
+    }
+
+    /**
+     * Opens or closes the built-in session store to match the configured format.
+     */
+    private void applyFormat() {
+        boolean useStore = config.format.equalsIgnoreCase("store");
+        if (useStore == store instanceof LogSessionStore) {
+            return;
+        }
+        SessionStore newStore = null;
+        if (useStore) {
+            try {
+                newStore = new LogSessionStore(new File(sessionsDir, "sessions.log"));
+            } catch (IOException e) {
+                CommandBook.logger().log(Level.SEVERE, "Could not open the session store, using YAML files instead", e);
+                config.format = "yaml";
+            }
+        }
+        setSessionStore(newStore);
+    }
+
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Describes the current cost of sessions, as shown by {@code /cmdbook metrics sessions}.
+     *
+     * @return The lines of the report
+     */
+    public List<String> getMetricsReport() {
+        return metrics.report(sessions.getTypes(), dataCache, expiryWheel.size());
+    }
+
+    /**
+     * Schedules the metrics report to be written to a file every
+     * {@code metrics-file-interval} seconds, if that is positive.
+     */
+    private void scheduleMetricsFile() {
+        if (metricsTaskId != -1) {
+            CommandBook.server().getScheduler().cancelTask(metricsTaskId);
+            metricsTaskId = -1;
+        }
+        if (config.metricsFileInterval <= 0) {
+            return;
+        }
+        final File metricsFile = new File(sessionsDir, "metrics.txt");
+        long interval = config.metricsFileInterval * 20L;
+        metricsTaskId = CommandBook.server().getScheduler().scheduleAsyncRepeatingTask(CommandBook.inst(), new Runnable() {
+            @Override
+            public void run() {
+                writeMetrics(metricsFile);
             }
-            YAMLProcessor proc = getUserConfiguration(type, UUIDUtil.toUniqueString(player), false);
-            if (proc != null) {
-                proc.save();
+        }, interval, interval);
+    }
+
+    private void writeMetrics(File metricsFile) {
+        File tempFile = new File(metricsFile.getPath() + ".tmp");
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "utf-8"));
+            writer.println("# " + new Date());
+            for (String line : getMetricsReport()) {
+                writer.println(line);
+            }
+        } catch (IOException e) {
+            CommandBook.logger().warning("Failed to write " + metricsFile.getAbsolutePath() + ": " + e.getMessage());
+            return;
+        } finally {
+            if (writer != null) {
+                writer.close();
             }
         }
+        if (!FileUtil.replace(tempFile, metricsFile)) {
+            CommandBook.logger().warning("Failed to replace " + metricsFile.getAbsolutePath());
+        }
+    }
+
+    public SessionStore getSessionStore() {
+        return store;
+    }
+
+    /**
+     * Sets the store that sessions are persisted in, or null to use a file per user.
+     * Pending changes are written out before switching, and the previous store is closed.
+     *
+     * @param store The new session store
+     */
+    public void setSessionStore(SessionStore store) {
+        dataCache.clear();
+        SessionStore previous = this.store;
+        this.store = store;
+        dataCache.setStore(store);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    @Override
+    public void disable() {
+        preloader.shutdown();
+        preloaded.clear();
+        if (flushTaskId != -1) {
+            CommandBook.server().getScheduler().cancelTask(flushTaskId);
+            flushTaskId = -1;
+        }
+        if (compactTaskId != -1) {
+            CommandBook.server().getScheduler().cancelTask(compactTaskId);
+            compactTaskId = -1;
+        }
+        if (metricsTaskId != -1) {
+            CommandBook.server().getScheduler().cancelTask(metricsTaskId);
+            metricsTaskId = -1;
+        }
+        for (Player player : CommandBook.server().getOnlinePlayers()) {
+            saveSessions(player);
+        }
+        // Remove sessions which expired since the cleaner last ran, as it will not run again
+        cleaner.run();
+        dataCache.run();
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private static class LocalConfiguration extends ConfigurationBase {
+        @Setting("max-cached-data-stores") public int maxCachedDataStores = 250;
+        @Setting("format") public String format = "yaml";
+        @Setting("preload-threads") public int preloadThreads = 2;
+        @Setting("metrics-file-interval") public int metricsFileInterval = 60;
     }
 
     // -- Getting sessions
@@ -138,31 +309,42 @@ public Map<String, AdministrativeSession> getAdminSessions() {
      * @return The currently registered session types
      */
     public <T extends PersistentSession> Map<String, T> getSessions(Class<T> type) {
+        SessionType<T> handle = sessions.getType(type);
         Map<String, T> ret = new HashMap<String, T>();
-        synchronized (sessions) {
-            for (Map<String, Map<Class<? extends PersistentSession>, PersistentSession>> parent : sessions.values()) {
-                for (Map.Entry<String, Map<Class<? extends PersistentSession>, PersistentSession>> entry : parent.entrySet()) {
-                    PersistentSession session = entry.getValue().get(type);
-                    if (session != null) {
-                        ret.put(entry.getKey(), type.cast(session));
-                    }
-                }
+        for (SessionRegistry.Slots slots : sessions.getAll()) {
+            T session = slots.get(handle);
+            if (session != null) {
+                ret.put(slots.getUniqueName(), session);
             }
         }
         return ret;
     }
 
+    /**
+     * Registers a type of session, returning a handle which gives a live view of every
+     * session of the type. Unlike {@link #getSessions(Class)}, iterating the view does
+     * not copy or lock anything, which suits tasks that visit every session periodically.
+     * Registering the same type again returns the same handle.
+     *
+     * @param type The type of session
+     * @param <T> The type parameter for the session
+     * @return The handle for the session type
+     */
+    public <T extends PersistentSession> SessionType<T> registerSessionType(Class<T> type) {
+        return sessions.getType(type);
+    }
+
     /**
      * Return the sessions which currently exist for the specified user
      * @param user The user to get a session for
      * @return The sessions which currently exist for this user
      */
     public Collection<PersistentSession> getSessions(CommandSender user) {
-        Map<Class<? extends PersistentSession>, PersistentSession> ret = getSessionM(user.getClass()).get(UUIDUtil.toUniqueString(user));
-        if (ret == null) {
-            ret = Collections.emptyMap();
+        SessionRegistry.Slots slots = sessions.get(user);
+        if (slots == null) {
+            return Collections.emptyList();
         }
-        return Collections.unmodifiableCollection(ret.values());
+        return Collections.unmodifiableCollection(slots.getAll());
     }
 
     /**
@@ -175,28 +357,36 @@ public Collection<PersistentSession> getSessions(CommandSender user) {
      * @return The player's session, or null if the session could not be correctly created
      */
     public <T extends PersistentSession> T getSession(Class<T> type, CommandSender user) {
-        synchronized (sessions) {
-            Map<String, Map<Class<? extends PersistentSession>, PersistentSession>> typeMap = getSessionM(user.getClass());
-            Map<Class<? extends PersistentSession>, PersistentSession> userSessions = typeMap.get(UUIDUtil.toUniqueString(user));
-            if (userSessions == null) {
-                userSessions = new HashMap<Class<? extends PersistentSession>, PersistentSession>();
-                typeMap.put(UUIDUtil.toUniqueString(user), userSessions);
+        SessionType<T> handle = sessions.getType(type);
+
+        // Do we have an existing session?
+        SessionRegistry.Slots slots = sessions.get(user);
+        if (slots != null) {
+            T session = slots.get(handle);
+            if (session != null) {
+                return session;
             }
+        }
 
-            // Do we have an existing session?
-            T session = type.cast(userSessions.get(type));
-            if (session == null) {
-                session = getSessionFactory(type).createSession(user);
-                if (session != null) {
-                    YAMLNode node = getSessionConfiguration(getType(user.getClass()), UUIDUtil.toUniqueString(user), type, false);
-                    if (node != null) {
-                       session.load(new YAMLNodeConfigurationNode(node));
+        while (true) {
+            slots = sessions.getOrCreate(user);
+            synchronized (slots) {
+                if (slots.isRemoved()) {
+                    continue;
+                }
+                T session = slots.get(handle);
+                if (session == null) {
+                    long start = System.nanoTime();
+                    session = getSessionFactory(type).createSession(user);
+                    if (session != null) {
+                        loadSession(session, user, false);
+                        session.handleReconnect(user);
+                        slots.set(handle, session);
+                        metrics.creation.recordSince(start);
                     }
-                    session.handleReconnect(user);
-                    userSessions.put(type, session);
                 }
+                return session;
             }
-            return session;
         }
     }
 
@@ -231,80 +421,264 @@ public <T extends PersistentSession> void registerSessionFactory(Class<T> type,
      * @param user The user to add the session to
      */
     public void addSession(PersistentSession session, CommandSender user) {
-        Map<String, Map<Class<? extends PersistentSession>, PersistentSession>> typeMap = getSessionM(user.getClass());
-        Map<Class<? extends PersistentSession>, PersistentSession> userSessions = typeMap.get(UUIDUtil.toUniqueString(user));
-        if (userSessions == null) {
-            userSessions = new HashMap<Class<? extends PersistentSession>, PersistentSession>();
-            typeMap.put(UUIDUtil.toUniqueString(user), userSessions);
+        SessionType<?> handle = sessions.getType(session.getClass());
+        while (true) {
+            SessionRegistry.Slots slots = sessions.getOrCreate(user);
+            synchronized (slots) {
+                if (!slots.isRemoved()) {
+                    slots.set(handle, session);
+                    if (session.getOwner() == null) {
+                        scheduleExpiry(slots);
+                    }
+                    return;
+                }
+            }
         }
-        userSessions.put(session.getClass(), session);
-
     }
 
     // Persistence-related methods
-    private YAMLProcessor getUserConfiguration(String type, String commander, boolean create) {
-        Map<String, YAMLProcessor> typeMap = getDataStore(type);
-        YAMLProcessor processor = typeMap.get(commander);
-        if (processor == null) {
+    private SessionData getUserConfiguration(String type, String commander, boolean create) {
+        return getUserConfiguration(type, commander, null, create);
+    }
+
+    /**
+     * Returns the persisted sessions of a user, reading them from disk if they are not cached.
+     * This is safe to call from any thread.
+     *
+     * @param type The type of command sender
+     * @param commander The unique name of the user
+     * @param name The name of the user if known, used to migrate name-based files
+     * @param create Whether to create the user's data if it doesn't exist
+     * @return The user's data, or null if there is none and {@code create} is false
+     */
+    private SessionData getUserConfiguration(String type, String commander, String name, boolean create) {
+        String key = type + File.separator + commander;
+        SessionData data = dataCache.get(key);
+        if (data != null) {
+            metrics.recordCacheHit();
+        } else {
+            metrics.recordCacheMiss();
             File userFile = new File(sessionsDir.getPath() + File.separator + type + File.separator + commander + ".yml");
-            if (!userFile.exists()) {
-                File dir = userFile.getParentFile();
-                if (!dir.exists()) {
-                    dir.mkdirs();
+            File binaryFile = new File(userFile.getParentFile(), commander + BinarySessionData.EXTENSION);
+            boolean binary = config.format.equalsIgnoreCase("binary");
+            SessionStore store = this.store;
+            if (store != null) {
+                data = getStoreData(store, type, commander, name, userFile, binaryFile, create);
+                if (data == null) {
+                    return null;
                 }
+            } else if (binary && binaryFile.exists()) {
+                data = new BinarySessionData(binaryFile);
+            } else {
+                if (!userFile.exists()) {
+                    File dir = userFile.getParentFile();
+                    if (!dir.exists()) {
+                        dir.mkdirs();
+                    }
+
+                    if (!migrate(commander, name, userFile)) {
+                        if (!create) {
+                            return null;
+                        }
 
-                if (!migrate(commander, userFile)) {
-                    if (!create) {
-                        return null;
+                        if (!binary) {
+                            try {
+                                userFile.createNewFile();
+                            } catch (IOException e) {
+                                CommandBook.logger().log(Level.WARNING, "Could not create sessions persistence file for user " + commander, e);
+                            }
+                        }
                     }
+                }
 
-                    try {
-                        userFile.createNewFile();
-                    } catch (IOException e) {
-                        CommandBook.logger().log(Level.WARNING, "Could not create sessions persistence file for user " + commander, e);
+                if (binary) {
+                    data = new BinarySessionData(binaryFile);
+                    if (userFile.exists()) {
+                        convert(commander, userFile, data);
                     }
+                } else {
+                    data = new YAMLSessionData(loadYAML(commander, userFile));
                 }
             }
-            processor = new YAMLProcessor(userFile, false, YAMLFormat.COMPACT);
-            try {
-                processor.load();
-            } catch (IOException e) {
-                CommandBook.logger().log(Level.WARNING, "Error loading sessions persistence file for user " + commander, e);
+            data = dataCache.putIfAbsent(key, data);
+        }
+        return data;
+    }
+
+    /**
+     * Reads the sessions of a user from a session store. A user who has nothing stored
+     * yet is converted from their binary or YAML persistence file if they have one.
+     */
+    private SessionData getStoreData(SessionStore store, String type, String commander, String name,
+                                     File userFile, File binaryFile, boolean create) {
+        StoreSessionData data;
+        try {
+            data = new StoreSessionData(store, type, commander);
+        } catch (IOException e) {
+            CommandBook.logger().log(Level.WARNING, "Error loading stored sessions for user " + commander, e);
+            return null;
+        }
+        if (data.isEmpty()) {
+            if (binaryFile.exists()) {
+                data.addEncoded(new BinarySessionData(binaryFile).getEncoded());
+                if (data.write() && !binaryFile.renameTo(new File(binaryFile.getPath() + ".converted"))) {
+                    CommandBook.logger().warning("Could not move aside converted session file " + binaryFile.getAbsolutePath());
+                }
+            } else if (userFile.exists() || migrate(commander, name, userFile)) {
+                convert(commander, userFile, data);
+            } else if (!create) {
+                return null;
             }
-            typeMap.put(commander, processor);
+        }
+        return data;
+    }
+
+    private YAMLProcessor loadYAML(String commander, File userFile) {
+        YAMLProcessor processor = new YAMLProcessor(userFile, false, YAMLFormat.COMPACT);
+        try {
+            processor.load();
+        } catch (IOException e) {
+            CommandBook.logger().log(Level.WARNING, "Error loading sessions persistence file for user " + commander, e);
         }
         return processor;
     }
 
-    private YAMLNode getSessionConfiguration(String type, String commander, Class<? extends PersistentSession> sessType) {
-        return getSessionConfiguration(type, commander, sessType, true);
+    /**
+     * Loads a session from the user's persistence file, if it has been saved before.
+     * The file is locked while reading, as it may be being written in the background.
+     */
+    private void loadSession(PersistentSession session, CommandSender user, boolean create) {
+        SessionData data = getUserConfiguration(getType(user.getClass()), UUIDUtil.toUniqueString(user), create);
+        if (data == null) {
+            return;
+        }
+        synchronized (data) {
+            long start = System.nanoTime();
+            data.load(session);
+            metrics.load.recordSince(start);
+        }
     }
 
-    private YAMLNode getSessionConfiguration(String type, String commander, Class<? extends PersistentSession> sessType, boolean create) {
-        YAMLProcessor proc = getUserConfiguration(type, commander, create);
-        if (proc == null) {
-            return null;
+    /**
+     * Saves every session of a user, and queues their persistence file to be written.
+     */
+    private void saveSessions(CommandSender user) {
+        String type = getType(user.getClass());
+        String commander = UUIDUtil.toUniqueString(user);
+        Collection<PersistentSession> userSessions = getSessions(user);
+        if (userSessions.isEmpty()) {
+            return;
+        }
+        for (PersistentSession session : userSessions) {
+            session.handleDisconnect();
         }
+        SessionData data = getUserConfiguration(type, commander, true);
+        SessionData saved;
+        do {
+            // Saved again if the file was read again while it was being saved to
+            for (PersistentSession session : userSessions) {
+                synchronized (data) {
+                    long start = System.nanoTime();
+                    data.save(session);
+                    metrics.save.recordSince(start);
+                }
+            }
+            saved = data;
+            data = dataCache.markDirty(type + File.separator + commander, data);
+        } while (data != saved);
+
+        SessionRegistry.Slots slots = sessions.get(user);
+        if (slots != null) {
+            synchronized (slots) {
+                scheduleExpiry(slots);
+            }
+        }
+    }
+
+    // - Conversion Functions
 
-        String className = sessType.getCanonicalName().replaceAll("\\.", "/");
-        YAMLNode sessionNode = proc.getNode(className);
-        if (sessionNode == null && create) {
-            sessionNode = proc.addNode(className);
+    /**
+     * Converts a user's YAML persistence file to the binary format. Each session stored in
+     * the file is loaded into a new instance of its class and saved again, after which the
+     * YAML file is kept as a backup. If the class of any session can't be found, the YAML
+     * file is left in place so the conversion can be finished by hand.
+     */
+    private void convert(String commander, File userFile, SessionData data) {
+        YAMLProcessor processor = loadYAML(commander, userFile);
+        List<String> keys = processor.getKeys(null);
+        boolean complete = true;
+        if (keys != null) {
+            for (String path : keys) {
+                Class<? extends PersistentSession> type = getSessionClass(path);
+                PersistentSession session = null;
+                if (type != null) {
+                    try {
+                        session = getSessionFactory(type).createSession(null);
+                    } catch (RuntimeException ignored) { }
+                }
+                if (session == null) {
+                    CommandBook.logger().warning("Could not convert session " + path + " of user " + commander);
+                    complete = false;
+                    continue;
+                }
+                session.load(new YAMLNodeConfigurationNode(processor.getNode(path)));
+                data.save(session);
+            }
+        }
+        if (data.write() && complete) {
+            if (!userFile.renameTo(new File(userFile.getPath() + ".converted"))) {
+                CommandBook.logger().warning("Could not move aside converted session file " + userFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Finds the session class stored under a path of a YAML persistence file.
+     */
+    @SuppressWarnings("unchecked")
+    private Class<? extends PersistentSession> getSessionClass(String path) {
+        String name = path.replace('/', '.');
+        for (SessionType<?> type : sessions.getTypes()) {
+            if (name.equals(type.getType().getCanonicalName())) {
+                return type.getType();
+            }
+        }
+        for (Class<? extends PersistentSession> type : sessionFactories.keySet()) {
+            if (name.equals(type.getCanonicalName())) {
+                return type;
+            }
+        }
+
+        // Nested classes have a binary name with '$' in place of the last dots
+        ClassLoader loader = getClass().getClassLoader();
+        for (String binaryName = name; binaryName.lastIndexOf('.') != -1; ) {
+            try {
+                Class<?> clazz = Class.forName(binaryName, false, loader);
+                return PersistentSession.class.isAssignableFrom(clazz) ? (Class<? extends PersistentSession>) clazz : null;
+            } catch (ClassNotFoundException e) {
+                int dot = binaryName.lastIndexOf('.');
+                binaryName = binaryName.substring(0, dot) + '$' + binaryName.substring(dot + 1);
+            }
         }
-        return sessionNode;
+        return null;
     }
 
     // - Migration Functions
-    private boolean migrate(String commander, File dest) {
+    private boolean migrate(String commander, String name, File dest) {
         boolean result = false;
         try {
             // Try to parse the commander as a player's UUID
-            OfflinePlayer player = Bukkit.getOfflinePlayer(UUID.fromString(commander));
-            if (player != null) {
+            UUID playerId = UUID.fromString(commander);
+            if (name == null) {
+                OfflinePlayer player = Bukkit.getOfflinePlayer(playerId);
+                name = player == null ? null : player.getName();
+            }
+            if (name != null) {
                 // A player was found, see if they have an old file based on their name to migrate
-                File oldUserFile = new File(sessionsDir.getPath() + File.separator + player.getName() + ".yml");
+                File oldUserFile = new File(sessionsDir.getPath() + File.separator + name + ".yml");
                 if (oldUserFile.exists()) {
                     // Move the file, and print an error if the move operation failed
+                    dest.getParentFile().mkdirs();
                     result = oldUserFile.renameTo(dest);
                     if (!result) {
                         CommandBook.logger().warning("Could not update a player's session file to use UUID: " + commander);
@@ -321,72 +695,237 @@ private String getType(Class<? extends CommandSender> clazz) {
         return split[split.length - 1];
     }
 
-    private Map<String, Map<Class<? extends PersistentSession>, PersistentSession>> getSessionM(Class<? extends CommandSender> clazz) {
-        Map<String, Map<Class<? extends PersistentSession>, PersistentSession>> typeMapping = sessions.get(clazz);
-        if (typeMapping == null) {
-            typeMapping = new HashMap<String, Map<Class<? extends PersistentSession>, PersistentSession>>();
-            sessions.put(clazz, typeMapping);
+    /**
+     * Guesses the type of players before any have logged in, from the name of the
+     * server implementation, such as CraftPlayer for CraftServer. The guess is
+     * replaced by the real type when the first player logs in.
+     *
+     * @return The type of players, or null if it can't be guessed
+     */
+    private String guessPlayerType() {
+        String server = CommandBook.server().getClass().getSimpleName();
+        if (!server.endsWith("Server") || server.length() == 6) {
+            return null;
         }
-        return typeMapping;
+        return server.substring(0, server.length() - 6) + "Player";
     }
 
-    private Map<String, YAMLProcessor> getDataStore(String type) {
-        Map<String, YAMLProcessor> typeMap = sessionDataStores.get(type);
-        if (typeMap == null) {
-            typeMap = new HashMap<String, YAMLProcessor>();
-            sessionDataStores.put(type, typeMap);
+
+    // -- Garbage collection
+
+    /**
+     * Schedules the sessions of a sender to be collected when the first of them expires.
+     * The caller must hold the lock of the slots.
+     */
+    private void scheduleExpiry(SessionRegistry.Slots slots) {
+        long expiry = Long.MAX_VALUE;
+        for (PersistentSession session : slots.getAll()) {
+            expiry = Math.min(expiry, session.getExpiryTime());
+        }
+        if (expiry != Long.MAX_VALUE && expiry != slots.getExpiryTime()) {
+            slots.setExpiryTime(expiry);
+            expiryWheel.schedule(slots, expiry);
         }
-        return typeMap;
     }
 
-
-    // -- Garbage collection
     public void run() {
-        synchronized (sessions) {
-            for (Map.Entry<Class<? extends CommandSender>, Map<String, Map<Class<? extends PersistentSession>, PersistentSession>>> parent : sessions.entrySet()) {
-                outer:
-                for (Iterator<Map.Entry<String, Map<Class<? extends PersistentSession>, PersistentSession>>>
-                             i = parent.getValue().entrySet().iterator(); i.hasNext(); ) {
-                    Map.Entry<String, Map<Class<? extends PersistentSession>, PersistentSession>> entry = i.next();
-
-                    for (Iterator<PersistentSession> i2 = entry.getValue().values().iterator(); i2.hasNext(); ) {
-                        PersistentSession sess = i2.next();
-                        if (sess.getOwner() != null) {
-                            continue outer;
-                        }
+        long start = System.nanoTime();
+        List<SessionRegistry.Slots> due = new ArrayList<SessionRegistry.Slots>();
+        long now = System.currentTimeMillis();
+        expiryWheel.advance(now, due);
+        int removed = 0;
+        for (SessionRegistry.Slots slots : due) {
+            removed += collect(slots, now);
+        }
+        metrics.recordGC(start, removed);
+        purgePreloaded(now);
+        if (!expiredSessions.isEmpty() && cleanerScheduled.compareAndSet(false, true)) {
+            CommandBook.server().getScheduler().scheduleAsyncDelayedTask(CommandBook.inst(), cleaner);
+        }
+    }
 
-                        if (!sess.isRecent()) {
-                            i2.remove();
-                            String sender = sess.getUniqueName();
-                            if (sender != null) {
-                                YAMLProcessor processor = getUserConfiguration(getType(parent.getKey()), sender, false);
-                                if (processor != null) {
-                                    processor.removeProperty(sess.getClass().getCanonicalName().replaceAll("\\.", "/"));
-                                }
-                            }
-                        }
+    /**
+     * Removes the expired sessions of a sender, if they are all offline.
+     *
+     * @return The number of sessions removed
+     */
+    private int collect(SessionRegistry.Slots slots, long now) {
+        synchronized (slots) {
+            if (slots.isRemoved() || now < slots.getExpiryTime()) {
+                // Collected already, or rescheduled for later
+                return 0;
+            }
+            slots.setExpiryTime(0);
+            List<PersistentSession> userSessions = slots.getAll();
+            for (PersistentSession sess : userSessions) {
+                if (sess.getOwner() != null) {
+                    // Back online, so scheduled again when they leave
+                    return 0;
+                }
+            }
+
+            int remaining = userSessions.size();
+            for (PersistentSession sess : userSessions) {
+                if (!sess.isRecent()) {
+                    slots.set(sessions.getType(sess.getClass()), null);
+                    --remaining;
+                    String sender = sess.getUniqueName();
+                    if (sender != null) {
+                        expiredSessions.add(new ExpiredSession(getType(slots.getSenderType()), sender, sess.getClass()));
                     }
+                }
+            }
+
+            if (remaining == 0) {
+                sessions.remove(slots);
+            } else {
+                scheduleExpiry(slots);
+            }
+            return userSessions.size() - remaining;
+        }
+    }
+
+    private static class ExpiredSession {
+        private final String type;
+        private final String commander;
+        private final Class<? extends PersistentSession> sessionType;
 
-                    if (entry.getValue().size() == 0) {
-                        i.remove();
+        private ExpiredSession(String type, String commander, Class<? extends PersistentSession> sessionType) {
+            this.type = type;
+            this.commander = commander;
+            this.sessionType = sessionType;
+        }
+    }
+
+    /**
+     * Removes collected sessions from their persistence files off the main thread,
+     * as the files may have to be read from disk first.
+     */
+    private class ExpiredSessionCleaner implements Runnable {
+        public void run() {
+            cleanerScheduled.set(false);
+            ExpiredSession expired;
+            while ((expired = expiredSessions.poll()) != null) {
+                SessionData data = getUserConfiguration(expired.type, expired.commander, false);
+                SessionData removed = null;
+                while (data != null && data != removed) {
+                    synchronized (data) {
+                        data.remove(expired.sessionType);
                     }
+                    removed = data;
+                    data = dataCache.markDirty(expired.type + File.separator + expired.commander, data);
                 }
             }
         }
     }
 
     // -- Events
+
+    /**
+     * Sessions read for a player who is logging in, and when they were read.
+     */
+    private static class Preloaded {
+        private final String type;
+        private final SessionData data;
+        private final long time;
+
+        private Preloaded(String type, SessionData data, long time) {
+            this.type = type;
+            this.data = data;
+            this.time = time;
+        }
+
+        private boolean isStale(long now) {
+            return now - time > TimeUnit.SECONDS.toMillis(PRELOAD_TIMEOUT);
+        }
+    }
+
+    /**
+     * Discards preloaded sessions that were never claimed by a login, as
+     * the files may have changed since they were read.
+     */
+    private void purgePreloaded(long now) {
+        for (Iterator<Preloaded> i = preloaded.values().iterator(); i.hasNext(); ) {
+            if (i.next().isStale(now)) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Reads the persisted sessions of a player on the preloading pool while they log in,
+     * so that {@link #onLogin(PlayerLoginEvent)} finds them parsed and in memory.
+     *
+     * @param event Relevant event details
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(final AsyncPlayerPreLoginEvent event) {
+        final String type = playerType;
+        if (type == null || event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            // The type could not be guessed, so it is learned from the first player to log in
+            return;
+        }
+        final String commander = event.getUniqueId().toString();
+        // Set by whichever of the worker and this thread gives up on the other first
+        final AtomicBoolean finished = new AtomicBoolean();
+        Future<?> task = preloader.submit(new Runnable() {
+            @Override
+            public void run() {
+                SessionData data = getUserConfiguration(type, commander, event.getName(), false);
+                if (data != null) {
+                    Preloaded entry = new Preloaded(type, data, System.currentTimeMillis());
+                    preloaded.put(commander, entry);
+                    if (!finished.compareAndSet(false, true)) {
+                        // The login stopped waiting, so nothing will claim this
+                        preloaded.remove(commander, entry);
+                    }
+                }
+            }
+        });
+        try {
+            task.get(PRELOAD_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            CommandBook.logger().log(Level.WARNING, "Could not preload the sessions of " + event.getName(), e.getCause());
+        } catch (TimeoutException ignored) {
+            // The player's sessions will be read when they are first used
+            if (finished.compareAndSet(false, true)) {
+                task.cancel(true);
+            }
+        }
+    }
+
     @EventHandler(priority = EventPriority.LOWEST)
     public void onLogin(PlayerLoginEvent event) {
         Player player = event.getPlayer();
         String type = getType(player.getClass());
+        playerType = type;
+        Preloaded entry = preloaded.remove(UUIDUtil.toUniqueString(player));
+        // Sessions preloaded under a wrongly guessed type are not used
+        if (entry != null && entry.type.equals(type) && !entry.isStale(System.currentTimeMillis())) {
+            dataCache.putIfAbsent(type + File.separator + UUIDUtil.toUniqueString(player), entry.data);
+        }
         // Trigger the session
         for (PersistentSession session : getSessions(player)) {
-            session.load(new YAMLNodeConfigurationNode(getSessionConfiguration(type, UUIDUtil.toUniqueString(player), session.getClass())));
+            loadSession(session, player, true);
             session.handleReconnect(event.getPlayer());
         }
     }
 
+    /**
+     * Keeps the persisted sessions of a player in memory while they are online,
+     * so that quitting doesn't have to read them again. This waits for the join,
+     * as a login can still be refused after {@link #onLogin(PlayerLoginEvent)}.
+     *
+     * @param event Relevant event details
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        dataCache.pin(getType(event.getPlayer().getClass()) + File.separator
+                + UUIDUtil.toUniqueString(event.getPlayer()));
+    }
+
     /**
      * Called on player disconnect.
      *
@@ -394,16 +933,10 @@ public void onLogin(PlayerLoginEvent event) {
      */
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerQuit(PlayerQuitEvent event) {
-        Player player = event.getPlayer();
-        String type = getType(player.getClass());
-        for (PersistentSession session : getSessions(event.getPlayer())) {
-            session.handleDisconnect();
-            session.save(new YAMLNodeConfigurationNode(getSessionConfiguration(type, UUIDUtil.toUniqueString(player), session.getClass())));
-        }
-        YAMLProcessor proc = getUserConfiguration(type, UUIDUtil.toUniqueString(player), false);
-        if (proc != null) {
-            proc.save();
-        }
+        preloaded.remove(UUIDUtil.toUniqueString(event.getPlayer()));
+        saveSessions(event.getPlayer());
+        dataCache.unpin(getType(event.getPlayer().getClass()) + File.separator
+                + UUIDUtil.toUniqueString(event.getPlayer()));
     }
 
     public class Commands {
@@ -0,0 +1,54 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+/**
+ * The persisted sessions of a single command sender, held in memory until they
+ * are written back to disk. Implementations are not thread-safe; callers must
+ * synchronize on the instance.
+ */
+public interface SessionData {
+    /**
+     * Loads the stored state of a session, if any has been saved.
+     *
+     * @param session The session to load into
+     */
+    public void load(PersistentSession session);
+
+    /**
+     * Stores the state of a session, replacing any previously saved state.
+     *
+     * @param session The session to save
+     */
+    public void save(PersistentSession session);
+
+    /**
+     * Removes the stored state of a type of session.
+     *
+     * @param type The type of session
+     */
+    public void remove(Class<? extends PersistentSession> type);
+
+    /**
+     * Writes the stored sessions to disk.
+     *
+     * @return whether the operation was fully successful
+     */
+    public boolean write();
+}
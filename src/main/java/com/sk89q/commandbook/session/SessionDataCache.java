@@ -0,0 +1,195 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+
+import java.io.IOException;
+import java.util.*;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Keeps the session files of recently seen users in memory, and writes changed
+ * files in the background. Writes to the same file are coalesced until the next
+ * flush, and the least recently used files are dropped from memory once more
+ * than a maximum number are cached, but only after their changes are written.
+ * Files that are pinned, such as those of online players, are never dropped, so
+ * they don't have to be read again when they are saved.
+ *
+ * <p>Data handed out by this cache is shared with the writer, so code
+ * changing or reading it must synchronize on it.</p>
+ */
+public class SessionDataCache implements Runnable {
+    public static final long FLUSH_FREQUENCY = 20;
+
+    private final Map<String, SessionData> stores = new LinkedHashMap<String, SessionData>(16, 0.75f, true);
+    private final Set<String> dirty = new LinkedHashSet<String>();
+    private final Set<String> pinned = new HashSet<String>();
+    private volatile int maxSize;
+    private volatile SessionStore store;
+    private final SessionMetrics metrics;
+
+    public SessionDataCache(int maxSize, SessionMetrics metrics) {
+        this.maxSize = maxSize;
+        this.metrics = metrics;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets the store which cached data is written to, which is flushed once
+     * after each batch of writes.
+     *
+     * @param store The session store, or null
+     */
+    public void setStore(SessionStore store) {
+        this.store = store;
+    }
+
+    public synchronized int size() {
+        return stores.size();
+    }
+
+    public synchronized int getDirtyCount() {
+        return dirty.size();
+    }
+
+    public synchronized SessionData get(String key) {
+        return stores.get(key);
+    }
+
+    /**
+     * Keeps a file in memory, even when more than the maximum number are cached,
+     * until it is unpinned. The file does not have to be cached yet.
+     *
+     * @param key The key of the file
+     */
+    public synchronized void pin(String key) {
+        pinned.add(key);
+    }
+
+    /**
+     * Lets a file be dropped from memory again.
+     *
+     * @param key The key of the file
+     */
+    public synchronized void unpin(String key) {
+        pinned.remove(key);
+    }
+
+    /**
+     * Caches a file unless another thread has cached the same one first.
+     *
+     * @param key The key of the file
+     * @param data The file
+     * @return The cached file
+     */
+    public synchronized SessionData putIfAbsent(String key, SessionData data) {
+        SessionData existing = stores.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        stores.put(key, data);
+        return data;
+    }
+
+    /**
+     * Queues a file to be written on the next flush. The file is cached again
+     * if it was dropped from memory since it was changed, unless the file has
+     * been read again in the meantime. In that case the cached copy is
+     * returned and nothing is queued, and the change has to be made to the
+     * returned copy instead.
+     *
+     * @param key The key of the file
+     * @param data The changed file
+     * @return The cached file, which is {@code data} if it was queued
+     */
+    public synchronized SessionData markDirty(String key, SessionData data) {
+        SessionData cached = stores.get(key);
+        if (cached != null && cached != data) {
+            return cached;
+        }
+        stores.put(key, data);
+        dirty.add(key);
+        return data;
+    }
+
+    /**
+     * Writes every changed file, then drops every cached file.
+     */
+    public void clear() {
+        while (true) {
+            synchronized (this) {
+                if (dirty.isEmpty()) {
+                    stores.clear();
+                    return;
+                }
+            }
+            run();
+        }
+    }
+
+    /**
+     * Writes every changed file, then drops the least recently used files
+     * until no more than the maximum number are cached.
+     */
+    public void run() {
+        List<SessionData> toSave;
+        synchronized (this) {
+            toSave = new ArrayList<SessionData>(dirty.size());
+            for (String key : dirty) {
+                toSave.add(stores.get(key));
+            }
+            dirty.clear();
+        }
+
+        for (SessionData data : toSave) {
+            synchronized (data) {
+                long start = System.nanoTime();
+                if (!data.write()) {
+                    logger().warning("Failed to save a session file");
+                }
+                metrics.write.recordSince(start);
+            }
+        }
+
+        SessionStore store = this.store;
+        if (store != null && !toSave.isEmpty()) {
+            try {
+                store.flush();
+            } catch (IOException e) {
+                logger().warning("Failed to flush the session store: " + e.getMessage());
+            }
+        }
+
+        synchronized (this) {
+            int excess = stores.size() - maxSize;
+            for (Iterator<String> i = stores.keySet().iterator(); excess > 0 && i.hasNext(); ) {
+                // Files changed since this flush started are kept for the next one
+                String key = i.next();
+                if (!dirty.contains(key) && !pinned.contains(key)) {
+                    i.remove();
+                    --excess;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms describing the cost of sessions. Recording
+ * is lock-free, so it can be done from any thread on every operation.
+ */
+public class SessionMetrics {
+    public final Latency creation = new Latency();
+    public final Latency load = new Latency();
+    public final Latency save = new Latency();
+    public final Latency write = new Latency();
+    public final Latency gc = new Latency();
+    private final AtomicLong gcRemoved = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * A histogram of durations, with four buckets per power of two
+     * so that percentiles are accurate to within about 12%.
+     */
+    public static class Latency {
+        private static final int SUB_BITS = 2;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 << SUB_BITS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(bucket(nanos));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+        }
+
+        /**
+         * Records the time passed since a start time from {@link System#nanoTime()}.
+         *
+         * @param start The start time
+         */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        private static int bucket(long value) {
+            if (value < (1 << SUB_BITS)) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (magnitude - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return ((magnitude - SUB_BITS + 1) << SUB_BITS) | sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < (1 << SUB_BITS)) {
+                return bucket;
+            }
+            int magnitude = (bucket >> SUB_BITS) + SUB_BITS - 1;
+            long sub = bucket & ((1 << SUB_BITS) - 1);
+            return ((1L << SUB_BITS | sub) + 1 << (magnitude - SUB_BITS)) - 1;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMean() {
+            long count = this.count.get();
+            return count == 0 ? 0 : total.get() / count;
+        }
+
+        /**
+         * Returns an estimate of a percentile of the recorded durations.
+         *
+         * @param fraction The percentile, from 0 to 1
+         * @return The duration in nanoseconds
+         */
+        public long getPercentile(double fraction) {
+            long count = this.count.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * fraction));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(buckets.length() - 1);
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + getCount() + " mean=" + formatNanos(getMean())
+                    + " p50=" + formatNanos(getPercentile(0.5)) + " p99=" + formatNanos(getPercentile(0.99));
+        }
+    }
+
+    public void recordGC(long start, int removed) {
+        gc.recordSince(start);
+        gcRemoved.addAndGet(removed);
+    }
+
+    public void recordCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    public void recordCacheMiss() {
+        cacheMisses.incrementAndGet();
+    }
+
+    private static String formatNanos(long nanos) {
+        return String.format("%.3fms", nanos / 1000000.0);
+    }
+
+    /**
+     * Describes the current state of sessions, one line per item.
+     *
+     * @param types The registered session types, to count live sessions of
+     * @param cache The session data cache
+     * @param scheduled The number of senders waiting to be garbage collected
+     * @return The lines of the report
+     */
+    public List<String> report(Collection<SessionType<?>> types, SessionDataCache cache, int scheduled) {
+        List<String> lines = new ArrayList<String>();
+        StringBuilder counts = new StringBuilder("Live sessions:");
+        for (SessionType<?> type : types) {
+            counts.append(' ').append(type.getType().getSimpleName()).append('=').append(type.getSessions().size());
+        }
+        lines.add(counts.toString());
+        lines.add("Session creation: " + creation);
+        lines.add("Session load: " + load);
+        lines.add("Session save: " + save);
+        lines.add("Data write: " + write);
+        lines.add("GC: runs=" + gc.getCount() + " removed=" + gcRemoved.get() + " scheduled=" + scheduled
+                + " p50=" + formatNanos(gc.getPercentile(0.5)) + " p99=" + formatNanos(gc.getPercentile(0.99)));
+        long hits = cacheHits.get();
+        long misses = cacheMisses.get();
+        lines.add("Data cache: hits=" + hits + " misses=" + misses
+                + " hit-rate=" + (hits + misses == 0 ? "-" : String.format("%.1f%%", hits * 100.0 / (hits + misses)))
+                + " cached=" + cache.size() + " dirty=" + cache.getDirtyCount());
+        return lines;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+import com.sk89q.commandbook.util.entity.player.UUIDUtil;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the sessions of every command sender. Players are keyed by their UUID,
+ * and other senders by their class and name. Each session type is given a
+ * {@link SessionType} when first seen, whose id indexes a per-sender array of sessions, so
+ * looking up an existing session takes no locks and allocates nothing.
+ *
+ * <p>Changes to the sessions of a sender are made while holding the lock of
+ * its {@link Slots}.</p>
+ */
+public class SessionRegistry {
+    private final ConcurrentMap<Class<? extends PersistentSession>, SessionType<?>> types =
+            new ConcurrentHashMap<Class<? extends PersistentSession>, SessionType<?>>();
+    private final ConcurrentMap<Object, Slots> senders = new ConcurrentHashMap<Object, Slots>();
+
+    /**
+     * The sessions of a single command sender.
+     */
+    public static class Slots {
+        private final Object key;
+        private final Class<? extends CommandSender> senderType;
+        private final String uniqueName;
+        private volatile AtomicReferenceArray<PersistentSession> sessions;
+        private boolean removed;
+        private long expiryTime;
+
+        private Slots(Object key, Class<? extends CommandSender> senderType, String uniqueName, int capacity) {
+            this.key = key;
+            this.senderType = senderType;
+            this.uniqueName = uniqueName;
+            this.sessions = new AtomicReferenceArray<PersistentSession>(capacity);
+        }
+
+        public Class<? extends CommandSender> getSenderType() {
+            return senderType;
+        }
+
+        public String getUniqueName() {
+            return uniqueName;
+        }
+
+        public <T extends PersistentSession> T get(SessionType<T> type) {
+            AtomicReferenceArray<PersistentSession> sessions = this.sessions;
+            int typeId = type.getId();
+            return typeId < sessions.length() ? type.getType().cast(sessions.get(typeId)) : null;
+        }
+
+        /**
+         * Sets the session of a type. The caller must hold the lock of this object.
+         *
+         * @param type The session type
+         * @param session The session, or null to remove it
+         */
+        public void set(SessionType<?> type, PersistentSession session) {
+            AtomicReferenceArray<PersistentSession> sessions = this.sessions;
+            int typeId = type.getId();
+            if (typeId >= sessions.length()) {
+                if (session == null) {
+                    return;
+                }
+                AtomicReferenceArray<PersistentSession> grown =
+                        new AtomicReferenceArray<PersistentSession>(Math.max(typeId + 1, sessions.length() * 2));
+                for (int i = 0; i < sessions.length(); i++) {
+                    grown.set(i, sessions.get(i));
+                }
+                this.sessions = sessions = grown;
+            }
+            PersistentSession previous = sessions.getAndSet(typeId, session);
+            if (previous != null) {
+                type.removed(previous);
+            }
+            if (session != null) {
+                type.added(session);
+            }
+        }
+
+        /**
+         * Returns the sessions which currently exist for this sender.
+         *
+         * @return The sessions
+         */
+        public List<PersistentSession> getAll() {
+            AtomicReferenceArray<PersistentSession> sessions = this.sessions;
+            List<PersistentSession> ret = new ArrayList<PersistentSession>(sessions.length());
+            for (int i = 0; i < sessions.length(); i++) {
+                PersistentSession session = sessions.get(i);
+                if (session != null) {
+                    ret.add(session);
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Returns the time at which these sessions are next due to be checked for
+         * expiry, or 0 if they aren't scheduled. The caller must hold the lock of this object.
+         *
+         * @return The scheduled expiry time
+         */
+        public long getExpiryTime() {
+            return expiryTime;
+        }
+
+        public void setExpiryTime(long expiryTime) {
+            this.expiryTime = expiryTime;
+        }
+
+        /**
+         * Returns whether this sender has been dropped from the registry. Sessions
+         * must not be added to a removed sender; the caller must hold the lock of this object.
+         *
+         * @return Whether this sender was removed
+         */
+        public boolean isRemoved() {
+            return removed;
+        }
+    }
+
+    /**
+     * Returns the handle of a session type, registering it if needed.
+     *
+     * @param type The session type
+     * @param <T> The type of session
+     * @return The handle of the type
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends PersistentSession> SessionType<T> getType(Class<T> type) {
+        SessionType<?> handle = types.get(type);
+        if (handle == null) {
+            synchronized (types) {
+                handle = types.get(type);
+                if (handle == null) {
+                    handle = new SessionType<T>(type, types.size());
+                    types.put(type, handle);
+                }
+            }
+        }
+        return (SessionType<T>) handle;
+    }
+
+    /**
+     * Returns the key a sender's sessions are stored under.
+     *
+     * @param sender The sender
+     * @return The key
+     */
+    public static Object getKey(CommandSender sender) {
+        if (sender instanceof Player) {
+            return ((Player) sender).getUniqueId();
+        }
+        return Arrays.asList(sender.getClass(), sender.getName());
+    }
+
+    /**
+     * Returns the sessions of a sender, if any have been created.
+     *
+     * @param sender The sender
+     * @return The sender's sessions, or null
+     */
+    public Slots get(CommandSender sender) {
+        return senders.get(getKey(sender));
+    }
+
+    /**
+     * Returns the sessions of a sender, creating an empty set if needed. The
+     * returned object may be removed concurrently, which should be checked with
+     * {@link Slots#isRemoved()} while holding its lock.
+     *
+     * @param sender The sender
+     * @return The sender's sessions
+     */
+    public Slots getOrCreate(CommandSender sender) {
+        Object key = getKey(sender);
+        Slots slots = senders.get(key);
+        if (slots == null) {
+            slots = new Slots(key, sender.getClass(), UUIDUtil.toUniqueString(sender), types.size());
+            Slots existing = senders.putIfAbsent(key, slots);
+            if (existing != null) {
+                slots = existing;
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Drops a sender from the registry. The caller must hold the lock of the slots.
+     *
+     * @param slots The sessions of the sender
+     */
+    public void remove(Slots slots) {
+        slots.removed = true;
+        senders.remove(slots.key, slots);
+    }
+
+    public Collection<SessionType<?>> getTypes() {
+        return types.values();
+    }
+
+    public Collection<Slots> getAll() {
+        return senders.values();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A backend that persists encoded sessions, keyed by the type of command sender,
+ * the sender's unique name and the session class. Implementations must be
+ * thread-safe. Changes are only required to be durable after {@link #flush()}.
+ */
+public interface SessionStore {
+    /**
+     * Returns the stored data of a session.
+     *
+     * @param senderType The type of command sender
+     * @param commander The unique name of the sender
+     * @param sessionType The name of the session class
+     * @return The stored data, or null if there is none
+     * @throws IOException if the data could not be read
+     */
+    public byte[] load(String senderType, String commander, String sessionType) throws IOException;
+
+    /**
+     * Stores the data of a session, replacing any previous data.
+     *
+     * @param senderType The type of command sender
+     * @param commander The unique name of the sender
+     * @param sessionType The name of the session class
+     * @param data The data to store
+     * @throws IOException if the data could not be written
+     */
+    public void save(String senderType, String commander, String sessionType, byte[] data) throws IOException;
+
+    /**
+     * Removes the data of a session.
+     *
+     * @param senderType The type of command sender
+     * @param commander The unique name of the sender
+     * @param sessionType The name of the session class
+     * @throws IOException if the removal could not be written
+     */
+    public void delete(String senderType, String commander, String sessionType) throws IOException;
+
+    /**
+     * Returns the stored data of every session of a sender.
+     *
+     * @param senderType The type of command sender
+     * @param commander The unique name of the sender
+     * @return The stored data by session class name, which is empty if there is none
+     * @throws IOException if the data could not be read
+     */
+    public Map<String, byte[]> scan(String senderType, String commander) throws IOException;
+
+    /**
+     * Makes every change so far durable.
+     *
+     * @throws IOException if the changes could not be written
+     */
+    public void flush() throws IOException;
+
+    /**
+     * Flushes and releases the store.
+     */
+    public void close();
+}
@@ -0,0 +1,76 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A handle to a registered type of session, obtained from
+ * {@link SessionComponent#registerSessionType(Class)}. Besides identifying the
+ * type, it keeps a live set of every session of the type, which is updated as
+ * sessions are created and garbage collected.
+ *
+ * @param <T> The type of session
+ */
+public class SessionType<T extends PersistentSession> {
+    private final Class<T> type;
+    private final int id;
+    private final Set<T> sessions = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+    private final Collection<T> sessionsView = Collections.unmodifiableCollection(sessions);
+
+    SessionType(Class<T> type, int id) {
+        this.type = type;
+        this.id = id;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * Returns the index of this type in the session arrays of each sender.
+     *
+     * @return The id of this type
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns every session of this type which currently exists. The returned
+     * collection is a live view which can be iterated while sessions are
+     * added and removed on other threads; it is not copied or locked.
+     *
+     * @return The sessions of this type
+     */
+    public Collection<T> getSessions() {
+        return sessionsView;
+    }
+
+    void added(PersistentSession session) {
+        sessions.add(type.cast(session));
+    }
+
+    void removed(PersistentSession session) {
+        sessions.remove(session);
+    }
+}
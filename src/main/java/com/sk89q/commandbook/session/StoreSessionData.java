@@ -0,0 +1,106 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Holds the sessions of a sender that are persisted in a {@link SessionStore},
+ * encoded by {@link BinarySessionCodec}. Only the sessions changed since the
+ * last write are sent to the store.
+ */
+public class StoreSessionData implements SessionData {
+    private final SessionStore store;
+    private final String senderType;
+    private final String commander;
+    private final Map<String, byte[]> blocks;
+    private final Set<String> changed = new HashSet<String>();
+
+    public StoreSessionData(SessionStore store, String senderType, String commander) throws IOException {
+        this.store = store;
+        this.senderType = senderType;
+        this.commander = commander;
+        this.blocks = new HashMap<String, byte[]>(store.scan(senderType, commander));
+    }
+
+    public boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    /**
+     * Adds sessions that are already encoded, such as those of a binary session file.
+     *
+     * @param encoded The encoded sessions by class name
+     */
+    public void addEncoded(Map<String, byte[]> encoded) {
+        blocks.putAll(encoded);
+        changed.addAll(encoded.keySet());
+    }
+
+    public void load(PersistentSession session) {
+        byte[] data = blocks.get(session.getClass().getName());
+        if (data != null) {
+            try {
+                BinarySessionCodec.decode(session, data);
+            } catch (IOException e) {
+                logger().log(Level.WARNING, "Could not decode " + session.getClass().getName() + " of " + commander, e);
+            }
+        }
+    }
+
+    public void save(PersistentSession session) {
+        try {
+            blocks.put(session.getClass().getName(), BinarySessionCodec.encode(session));
+            changed.add(session.getClass().getName());
+        } catch (IOException e) {
+            logger().log(Level.WARNING, "Could not encode " + session.getClass().getName(), e);
+        }
+    }
+
+    public void remove(Class<? extends PersistentSession> type) {
+        if (blocks.remove(type.getName()) != null) {
+            changed.add(type.getName());
+        }
+    }
+
+    public boolean write() {
+        try {
+            for (String sessionType : changed) {
+                byte[] data = blocks.get(sessionType);
+                if (data == null) {
+                    store.delete(senderType, commander, sessionType);
+                } else {
+                    store.save(senderType, commander, sessionType, data);
+                }
+            }
+            changed.clear();
+            return true;
+        } catch (IOException e) {
+            logger().warning("Failed to store the sessions of " + commander + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
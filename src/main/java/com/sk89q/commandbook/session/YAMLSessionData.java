@@ -0,0 +1,66 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.session;
+
+import com.sk89q.util.yaml.YAMLNode;
+import com.sk89q.util.yaml.YAMLProcessor;
+import com.zachsthings.libcomponents.bukkit.YAMLNodeConfigurationNode;
+
+/**
+ * Stores sessions as YAML, with a node per session class.
+ */
+public class YAMLSessionData implements SessionData {
+    private final YAMLProcessor processor;
+
+    public YAMLSessionData(YAMLProcessor processor) {
+        this.processor = processor;
+    }
+
+    public YAMLProcessor getProcessor() {
+        return processor;
+    }
+
+    public static String getPath(Class<? extends PersistentSession> type) {
+        return type.getCanonicalName().replaceAll("\\.", "/");
+    }
+
+    public void load(PersistentSession session) {
+        YAMLNode node = processor.getNode(getPath(session.getClass()));
+        if (node != null) {
+            session.load(new YAMLNodeConfigurationNode(node));
+        }
+    }
+
+    public void save(PersistentSession session) {
+        String path = getPath(session.getClass());
+        YAMLNode node = processor.getNode(path);
+        if (node == null) {
+            node = processor.addNode(path);
+        }
+        session.save(new YAMLNodeConfigurationNode(node));
+    }
+
+    public void remove(Class<? extends PersistentSession> type) {
+        processor.removeProperty(getPath(type));
+    }
+
+    public boolean write() {
+        return processor.save();
+    }
+}
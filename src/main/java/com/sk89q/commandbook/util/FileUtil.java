@@ -0,0 +1,94 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.util;
+
+import java.io.File;
+
+/**
+ * Replaces files with newly written copies, so that a crash part way through
+ * leaves either the old or the new copy behind.
+ *
+ * <p>A rename replaces the target in one step where the platform allows it. On
+ * platforms that can't rename over an existing file, the target is first moved
+ * to a {@code .bak} file, which {@link #recover(File, File)} puts back after a crash.</p>
+ */
+public class FileUtil {
+
+    private FileUtil() {
+    }
+
+    private static File getBackupFile(File target) {
+        return new File(target.getPath() + ".bak");
+    }
+
+    /**
+     * Replaces a file with a completely written temporary file.
+     *
+     * @param source The temporary file, which must be closed
+     * @param target The file to replace
+     * @return whether the target was replaced
+     */
+    public static boolean replace(File source, File target) {
+        if (source.renameTo(target)) {
+            return true;
+        }
+        if (!target.exists()) {
+            return false;
+        }
+
+        // The target could not be renamed over, so it is moved aside first
+        File backup = getBackupFile(target);
+        if (backup.exists() && !backup.delete()) {
+            return false;
+        }
+        if (!target.renameTo(backup)) {
+            return false;
+        }
+        if (source.renameTo(target)) {
+            backup.delete();
+            return true;
+        }
+        backup.renameTo(target);
+        return false;
+    }
+
+    /**
+     * Restores a file that was being replaced by {@link #replace(File, File)} when
+     * the server stopped. Nothing is done if the file exists.
+     *
+     * @param target The file that was being replaced
+     * @param source The temporary file it was being replaced with
+     * @return whether the file exists afterwards
+     */
+    public static boolean recover(File target, File source) {
+        if (target.exists()) {
+            return true;
+        }
+        File backup = getBackupFile(target);
+        if (!backup.exists()) {
+            return false;
+        }
+        // The temporary file was complete once the target had been moved aside
+        if (source.exists() && source.renameTo(target)) {
+            backup.delete();
+            return true;
+        }
+        return backup.renameTo(target);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, which holds items until a deadline passes.
+ * Scheduling an item and collecting the items that are due take constant time
+ * regardless of how many items are held: each level is a ring of buckets
+ * covering 64 times the span of the level below, and the items of a bucket are
+ * moved down a level when the wheel reaches it.
+ *
+ * <p>Items can't be cancelled. Instead, callers should check whether an item
+ * collected from the wheel is still due, and schedule it again if needed.</p>
+ *
+ * @param <T> The type of item
+ */
+public class TimingWheel<T> {
+    private static final int BITS = 6;
+    private static final int SIZE = 1 << BITS;
+    private static final int MASK = SIZE - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final List<List<Entry<T>>> buckets = new ArrayList<List<Entry<T>>>(LEVELS * SIZE);
+    private final List<Entry<T>> due = new ArrayList<Entry<T>>();
+    private long currentTick;
+    private int size;
+
+    private static class Entry<T> {
+        private final T item;
+        private final long tick;
+
+        private Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Create a new timing wheel.
+     *
+     * @param tickMillis The resolution of the wheel, in milliseconds
+     * @param now The current time, in milliseconds
+     */
+    public TimingWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+        for (int i = 0; i < LEVELS * SIZE; i++) {
+            buckets.add(new ArrayList<Entry<T>>(0));
+        }
+    }
+
+    /**
+     * Holds an item until a deadline passes. Deadlines beyond the span of the
+     * wheel, about 194 days at a resolution of one second, are filed again each
+     * time the wheel comes around, so items are still only returned once due.
+     *
+     * @param item The item
+     * @param deadline The time at which the item is due, in milliseconds
+     */
+    public synchronized void schedule(T item, long deadline) {
+        long tick = deadline / tickMillis;
+        // Round up, so that an item is never returned before its deadline
+        if (deadline % tickMillis != 0) {
+            ++tick;
+        }
+        add(new Entry<T>(item, tick));
+        ++size;
+    }
+
+    private void add(Entry<T> entry) {
+        long delta = entry.tick - currentTick;
+        if (delta <= 0) {
+            due.add(entry);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (BITS * (level + 1)) || level == LEVELS - 1) {
+                long tick = Math.min(entry.tick, currentTick + (1L << (BITS * (level + 1))) - 1);
+                buckets.get(level * SIZE + (int) ((tick >> (BITS * level)) & MASK)).add(entry);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the wheel forward to the given time, collecting every item that is due.
+     *
+     * @param now The current time, in milliseconds
+     * @param expired The collection to add due items to
+     */
+    public synchronized void advance(long now, Collection<? super T> expired) {
+        long target = now / tickMillis;
+        while (currentTick < target) {
+            ++currentTick;
+            // Move the items of higher levels down once the levels below have wrapped around
+            for (int level = 1; level < LEVELS && (currentTick & ((1L << (BITS * level)) - 1)) == 0; level++) {
+                List<Entry<T>> bucket = buckets.get(level * SIZE + (int) ((currentTick >> (BITS * level)) & MASK));
+                if (!bucket.isEmpty()) {
+                    List<Entry<T>> cascaded = new ArrayList<Entry<T>>(bucket);
+                    bucket.clear();
+                    for (Entry<T> entry : cascaded) {
+                        add(entry);
+                    }
+                }
+            }
+            List<Entry<T>> bucket = buckets.get((int) (currentTick & MASK));
+            due.addAll(bucket);
+            bucket.clear();
+        }
+        for (Entry<T> entry : due) {
+            if (entry.tick <= currentTick) {
+                expired.add(entry.item);
+                --size;
+            } else {
+                // Clamped to the span of the wheel, so it goes around again
+                add(entry);
+            }
+        }
+        due.clear();
+    }
+
+    /**
+     * Returns the number of items held.
+     *
+     * @return The number of items
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
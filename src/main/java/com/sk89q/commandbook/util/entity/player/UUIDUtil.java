@@ -5,15 +5,113 @@
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
-import java.util.UUID;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import static com.sk89q.commandbook.CommandBook.logger;
 
 public class UUIDUtil {
 
+    /**
+     * The maximum number of names resolved by a single profile lookup
+     */
+    public static final int BATCH_SIZE = 100;
+
+    private static final String PROFILE_URL = "https://api.mojang.com/profiles/minecraft";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     public static UUID convert(String playerName) {
         OfflinePlayer player = CommandBook.server().getOfflinePlayer(playerName);
         return player != null ? player.getUniqueId() : null;
     }
 
+    /**
+     * Resolves many names at once, {@link #BATCH_SIZE} names per lookup rather than one
+     * lookup per name. On an offline mode server, the names are converted locally.
+     *
+     * @param playerNames The names to resolve
+     * @return The UUIDs found, keyed by lower case name. Names that could not be resolved are left out.
+     */
+    public static Map<String, UUID> convert(Collection<String> playerNames) {
+        Map<String, UUID> resolved = new HashMap<String, UUID>();
+        if (!CommandBook.server().getOnlineMode()) {
+            for (String name : playerNames) {
+                resolved.put(name.toLowerCase(), UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(UTF_8)));
+            }
+            return resolved;
+        }
+
+        List<String> batch = new ArrayList<String>(BATCH_SIZE);
+        for (String name : playerNames) {
+            batch.add(name);
+            if (batch.size() == BATCH_SIZE) {
+                lookupProfiles(batch, resolved);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            lookupProfiles(batch, resolved);
+        }
+        return resolved;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void lookupProfiles(List<String> names, Map<String, UUID> resolved) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(PROFILE_URL).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setConnectTimeout(5000);
+            connection.setReadTimeout(10000);
+            connection.setDoOutput(true);
+
+            JSONArray request = new JSONArray();
+            request.addAll(names);
+            OutputStream output = connection.getOutputStream();
+            try {
+                output.write(request.toJSONString().getBytes(UTF_8));
+            } finally {
+                output.close();
+            }
+
+            Reader reader = new InputStreamReader(connection.getInputStream(), UTF_8);
+            try {
+                for (Object entry : (JSONArray) new JSONParser().parse(reader)) {
+                    JSONObject profile = (JSONObject) entry;
+                    String id = (String) profile.get("id");
+                    String name = (String) profile.get("name");
+                    if (id == null || name == null || id.length() != 32) {
+                        continue;
+                    }
+                    resolved.put(name.toLowerCase(), UUID.fromString(id.substring(0, 8) + "-" + id.substring(8, 12)
+                            + "-" + id.substring(12, 16) + "-" + id.substring(16, 20) + "-" + id.substring(20)));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            logger().warning("Failed to look up " + names.size() + " player UUIDs: " + e.getMessage());
+        } catch (ParseException e) {
+            logger().warning("Failed to look up " + names.size() + " player UUIDs: " + e);
+        } catch (ClassCastException e) {
+            logger().warning("Failed to look up " + names.size() + " player UUIDs: unexpected response");
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
     public static String toUniqueString(CommandSender sender) {
         if (sender instanceof Player) {
             return ((Player) sender).getUniqueId().toString();
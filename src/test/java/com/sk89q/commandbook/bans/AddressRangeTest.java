@@ -0,0 +1,107 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sk89q.commandbook.bans;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AddressRangeTest {
+
+    @Test
+    public void testParseSingleAddress() {
+        AddressRange range = AddressRange.parse("192.168.1.20");
+        assertNotNull(range);
+        assertEquals(32, range.getPrefixLength());
+        assertTrue(range.isSingleAddress());
+        assertEquals("192.168.1.20", range.toString());
+    }
+
+    @Test
+    public void testParseClearsHostBits() {
+        AddressRange range = AddressRange.parse("192.168.1.20/24");
+        assertNotNull(range);
+        assertEquals(24, range.getPrefixLength());
+        assertFalse(range.isSingleAddress());
+        assertArrayEquals(new byte[] {(byte) 192, (byte) 168, 1, 0}, range.getPrefix());
+        assertEquals("192.168.1.0/24", range.toString());
+        assertEquals(AddressRange.parse("192.168.1.0/24"), range);
+        assertEquals(AddressRange.parse("192.168.1.0/24").hashCode(), range.hashCode());
+    }
+
+    @Test
+    public void testParseIPv6() {
+        AddressRange range = AddressRange.parse("2001:db8::1/32");
+        assertNotNull(range);
+        assertEquals(16, range.getPrefix().length);
+        assertEquals(32, range.getPrefixLength());
+        assertEquals(AddressRange.parse("2001:0db8:0:0:0:0:0:0/32"), range);
+        assertTrue(AddressRange.parse("::1").isSingleAddress());
+    }
+
+    @Test
+    public void testParseRejectsInvalidInput() {
+        assertNull(AddressRange.parse(null));
+        assertNull(AddressRange.parse(""));
+        assertNull(AddressRange.parse("256.0.0.1"));
+        assertNull(AddressRange.parse("1.2.3"));
+        assertNull(AddressRange.parse("1.2.3.4.5"));
+        assertNull(AddressRange.parse("1..2.3"));
+        assertNull(AddressRange.parse("1.2.3.4/33"));
+        assertNull(AddressRange.parse("1.2.3.4/-1"));
+        assertNull(AddressRange.parse("1.2.3.4/"));
+        assertNull(AddressRange.parse("1.2.3.4/x"));
+        assertNull(AddressRange.parse("::1/129"));
+        assertNull(AddressRange.parse("2001:db8::g"));
+        assertNull(AddressRange.parse("::ffff:1.2.3.4"));
+        // Host names are never looked up
+        assertNull(AddressRange.parse("localhost"));
+        assertNull(AddressRange.parse("example.com"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorRejectsBadLength() {
+        new AddressRange(new byte[5], 8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorRejectsBadPrefixLength() {
+        new AddressRange(new byte[4], 33);
+    }
+
+    @Test
+    public void testContains() {
+        AddressRange range = AddressRange.parse("10.0.0.0/9");
+        assertTrue(range.contains(new byte[] {10, 0, 0, 1}));
+        assertTrue(range.contains(new byte[] {10, 127, (byte) 255, (byte) 255}));
+        assertFalse(range.contains(new byte[] {10, (byte) 128, 0, 0}));
+        assertFalse(range.contains(new byte[] {11, 0, 0, 0}));
+        assertFalse(range.contains(new byte[16]));
+        assertTrue(AddressRange.parse("0.0.0.0/0").contains(new byte[] {1, 2, 3, 4}));
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("10.1.0.0/16", AddressRange.normalize("10.1.2.3/16"));
+        assertEquals(AddressRange.parse("2001:db8::/32").toString(), AddressRange.normalize("2001:DB8:0::/32"));
+        assertEquals("not an address", AddressRange.normalize("not an address"));
+        assertNull(AddressRange.normalize(null));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sk89q.commandbook.bans;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AddressTrieTest {
+    private AddressTrie<String> trie;
+
+    @Before
+    public void setUp() {
+        trie = new AddressTrie<String>();
+    }
+
+    private static byte[] address(String address) {
+        return AddressRange.parse(address).getPrefix();
+    }
+
+    private void put(String range) {
+        trie.put(AddressRange.parse(range), range);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, trie.size());
+        assertNull(trie.find(address("1.2.3.4")));
+        assertNull(trie.find(address("::1")));
+    }
+
+    @Test
+    public void testLongestPrefixMatch() {
+        put("10.0.0.0/8");
+        put("10.1.0.0/16");
+        put("10.1.2.0/24");
+        put("10.1.2.3");
+        assertEquals("10.0.0.0/8", trie.find(address("10.200.0.1")));
+        assertEquals("10.1.0.0/16", trie.find(address("10.1.200.1")));
+        assertEquals("10.1.2.0/24", trie.find(address("10.1.2.4")));
+        assertEquals("10.1.2.3", trie.find(address("10.1.2.3")));
+        assertNull(trie.find(address("11.1.2.3")));
+    }
+
+    @Test
+    public void testDefaultRoute() {
+        put("0.0.0.0/0");
+        put("192.168.0.0/16");
+        assertEquals("0.0.0.0/0", trie.find(address("8.8.8.8")));
+        assertEquals("192.168.0.0/16", trie.find(address("192.168.5.5")));
+        assertNull(trie.find(address("::1")));
+    }
+
+    @Test
+    public void testFamiliesAreSeparate() {
+        put("0.0.0.0/8");
+        put("::/8");
+        assertEquals("0.0.0.0/8", trie.find(address("0.1.2.3")));
+        assertEquals("::/8", trie.find(address("::1")));
+        assertEquals(2, trie.size());
+    }
+
+    @Test
+    public void testPutReplaces() {
+        AddressRange range = AddressRange.parse("10.0.0.0/8");
+        assertNull(trie.put(range, "a"));
+        assertEquals("a", trie.put(AddressRange.parse("10.9.9.9/8"), "b"));
+        assertEquals(1, trie.size());
+        assertEquals("b", trie.find(address("10.0.0.1")));
+    }
+
+    @Test
+    public void testRemoveFallsBackToWiderRange() {
+        put("10.0.0.0/8");
+        put("10.1.2.0/24");
+        assertEquals("10.1.2.0/24", trie.remove(AddressRange.parse("10.1.2.0/24")));
+        assertEquals(1, trie.size());
+        assertEquals("10.0.0.0/8", trie.find(address("10.1.2.3")));
+        assertNull(trie.remove(AddressRange.parse("10.1.2.0/24")));
+        assertNull(trie.remove(AddressRange.parse("10.1.0.0/16")));
+        assertEquals("10.0.0.0/8", trie.remove(AddressRange.parse("10.0.0.0/8")));
+        assertEquals(0, trie.size());
+        assertNull(trie.find(address("10.1.2.3")));
+    }
+
+    @Test
+    public void testRemoveKeepsNestedRanges() {
+        put("10.0.0.0/8");
+        put("10.1.2.0/24");
+        trie.remove(AddressRange.parse("10.0.0.0/8"));
+        assertEquals("10.1.2.0/24", trie.find(address("10.1.2.3")));
+        assertNull(trie.find(address("10.1.3.3")));
+    }
+
+    @Test
+    public void testClear() {
+        put("10.0.0.0/8");
+        put("::1");
+        trie.clear();
+        assertEquals(0, trie.size());
+        assertNull(trie.find(address("10.0.0.1")));
+        assertNull(trie.find(address("::1")));
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(42);
+        Map<AddressRange, String> ranges = new HashMap<AddressRange, String>();
+        for (int i = 0; i < 500; i++) {
+            byte[] bytes = new byte[4];
+            random.nextBytes(bytes);
+            // Keep the ranges close together so that many of them nest
+            bytes[0] = (byte) (bytes[0] & 3);
+            AddressRange range = new AddressRange(bytes, random.nextInt(33));
+            ranges.put(range, range.toString());
+            trie.put(range, range.toString());
+        }
+        assertEquals(ranges.size(), trie.size());
+
+        for (int i = 0; i < 2000; i++) {
+            byte[] bytes = new byte[4];
+            random.nextBytes(bytes);
+            bytes[0] = (byte) (bytes[0] & 3);
+            AddressRange best = null;
+            for (AddressRange range : ranges.keySet()) {
+                if (range.contains(bytes) && (best == null || range.getPrefixLength() > best.getPrefixLength())) {
+                    best = range;
+                }
+            }
+            assertEquals(best == null ? null : ranges.get(best), trie.find(bytes));
+        }
+    }
+}
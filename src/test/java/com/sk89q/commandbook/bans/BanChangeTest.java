@@ -0,0 +1,126 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sk89q.commandbook.bans;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BanChangeTest {
+
+    private static BanChange roundTrip(BanChange change) throws IOException {
+        return BanChange.decode(change.encode());
+    }
+
+    private static void assertHeaderEquals(BanChange expected, BanChange actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getOrigin(), actual.getOrigin());
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getTime(), actual.getTime());
+    }
+
+    @Test
+    public void testBan() throws IOException {
+        Ban ban = new Ban(UUID.randomUUID(), "alice", "10.0.0.0/8", "Griefing", 1000L, 5000L, "bob");
+        BanChange change = BanChange.ban("node-a", 42, ban);
+        BanChange decoded = roundTrip(change);
+        assertHeaderEquals(change, decoded);
+        assertEquals(BanChange.Type.BAN, decoded.getType());
+
+        Ban decodedBan = decoded.getBan();
+        assertEquals(ban, decodedBan);
+        assertEquals(ban.getID(), decodedBan.getID());
+        assertEquals(ban.getLastKnownAlias(), decodedBan.getLastKnownAlias());
+        assertEquals(ban.getAddress(), decodedBan.getAddress());
+        assertEquals(ban.getReason(), decodedBan.getReason());
+        assertEquals(ban.getStart(), decodedBan.getStart());
+        assertEquals(ban.getEnd(), decodedBan.getEnd());
+        assertEquals(ban.getIssuer(), decodedBan.getIssuer());
+    }
+
+    @Test
+    public void testBanWithoutOptionalFields() throws IOException {
+        Ban ban = new Ban(null, null, "1.2.3.4", null, 0L, 0L);
+        Ban decodedBan = roundTrip(BanChange.ban("node-a", 1, ban)).getBan();
+        assertNull(decodedBan.getID());
+        assertNull(decodedBan.getLastKnownAlias());
+        assertEquals("1.2.3.4", decodedBan.getAddress());
+        assertNull(decodedBan.getReason());
+        assertNull(decodedBan.getIssuer());
+    }
+
+    @Test
+    public void testUnban() throws IOException {
+        UUID ID = UUID.randomUUID();
+        BanChange change = BanChange.unban("node-b", 7, ID, "::1", "Appealed");
+        BanChange decoded = roundTrip(change);
+        assertHeaderEquals(change, decoded);
+        assertEquals(ID, decoded.getID());
+        assertEquals("::1", decoded.getAddress());
+        assertEquals("Appealed", decoded.getReason());
+        assertNull(decoded.getBan());
+    }
+
+    @Test
+    public void testUnbanName() throws IOException {
+        BanChange change = BanChange.unbanName("node-b", Long.MAX_VALUE, "alice", null);
+        BanChange decoded = roundTrip(change);
+        assertHeaderEquals(change, decoded);
+        assertEquals("alice", decoded.getName());
+        assertNull(decoded.getID());
+        assertNull(decoded.getReason());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownVersion() throws IOException {
+        byte[] data = BanChange.unbanName("node-a", 1, "alice", null).encode();
+        data[0] = 99;
+        BanChange.decode(data);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownType() throws IOException {
+        byte[] data = BanChange.unbanName("node-a", 1, "alice", null).encode();
+        data[1] = 99;
+        BanChange.decode(data);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        byte[] data = BanChange.ban("node-a", 1, new Ban(UUID.randomUUID(), "alice", null, null, 0L, 0L)).encode();
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        BanChange.decode(truncated);
+    }
+
+    @Test
+    public void testIsNewerThan() {
+        BanChange change = BanChange.unbanName("node-b", 1, "alice", null);
+        assertTrue(change.isNewerThan(change.getTime() - 1, "node-z"));
+        assertFalse(change.isNewerThan(change.getTime() + 1, "node-a"));
+        // Ties are broken by origin
+        assertTrue(change.isNewerThan(change.getTime(), "node-a"));
+        assertFalse(change.isNewerThan(change.getTime(), "node-c"));
+        assertFalse(change.isNewerThan(change.getTime(), "node-b"));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sk89q.commandbook.session;
+
+import com.zachsthings.libcomponents.config.Setting;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BinarySessionCodecTest {
+
+    public enum Mode {
+        ON,
+        OFF
+    }
+
+    public static class AllTypesSession extends PersistentSession {
+        @Setting("long") private long longValue;
+        @Setting("int") private int intValue;
+        @Setting("boolean") private boolean booleanValue;
+        @Setting("double") private double doubleValue;
+        @Setting("float") private float floatValue;
+        @Setting("short") private short shortValue;
+        @Setting("byte") private byte byteValue;
+        @Setting("string") private String string = "default";
+        @Setting("mode") private Mode mode;
+        @Setting("boxed") private Long boxed;
+        @Setting("list") private List<String> list = new ArrayList<String>();
+        @Setting("map") private final Map<String, Long> map = new HashMap<String, Long>();
+        @Setting("sorted") private TreeMap<String, Integer> sorted = new TreeMap<String, Integer>();
+        @Setting("set") private Set<Mode> set = new HashSet<Mode>();
+
+        public AllTypesSession() {
+            super(ONE_HOUR);
+        }
+    }
+
+    public static class OldSession extends PersistentSession {
+        @Setting("count") private int count;
+        @Setting("removed") private String removed;
+        @Setting("renamed-type") private String renamedType;
+        @Setting("values") private Map<String, Integer> values = new HashMap<String, Integer>();
+
+        public OldSession() {
+            super(ONE_HOUR);
+        }
+    }
+
+    public static class NewSession extends PersistentSession {
+        @Setting("count") private long count;
+        @Setting("renamed-type") private int renamedType = 5;
+        @Setting("values") private Map<String, Long> values = new HashMap<String, Long>();
+        @Setting("added") private String added = "default";
+
+        public NewSession() {
+            super(ONE_HOUR);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        AllTypesSession session = new AllTypesSession();
+        session.longValue = Long.MIN_VALUE;
+        session.intValue = -7;
+        session.booleanValue = true;
+        session.doubleValue = 2.5;
+        session.floatValue = 1.25f;
+        session.shortValue = 300;
+        session.byteValue = -3;
+        session.string = "hello";
+        session.mode = Mode.OFF;
+        session.boxed = 99L;
+        session.list.add("a");
+        session.list.add("b");
+        session.map.put("x", 1L);
+        session.map.put("y", Long.MAX_VALUE);
+        session.sorted.put("b", 2);
+        session.sorted.put("a", 1);
+        session.set.add(Mode.ON);
+
+        AllTypesSession decoded = new AllTypesSession();
+        Map<String, Long> map = decoded.map;
+        BinarySessionCodec.decode(decoded, BinarySessionCodec.encode(session));
+        assertEquals(Long.MIN_VALUE, decoded.longValue);
+        assertEquals(-7, decoded.intValue);
+        assertTrue(decoded.booleanValue);
+        assertEquals(2.5, decoded.doubleValue, 0);
+        assertEquals(1.25f, decoded.floatValue, 0);
+        assertEquals(300, decoded.shortValue);
+        assertEquals(-3, decoded.byteValue);
+        assertEquals("hello", decoded.string);
+        assertEquals(Mode.OFF, decoded.mode);
+        assertEquals(Long.valueOf(99), decoded.boxed);
+        assertEquals(Arrays.asList("a", "b"), decoded.list);
+        assertSame(map, decoded.map);
+        assertEquals(session.map, decoded.map);
+        assertEquals(session.sorted, decoded.sorted);
+        assertEquals(Collections.singleton(Mode.ON), decoded.set);
+    }
+
+    @Test
+    public void testNullValues() throws IOException {
+        AllTypesSession session = new AllTypesSession();
+        session.string = null;
+        session.list = null;
+        AllTypesSession decoded = new AllTypesSession();
+        decoded.mode = Mode.ON;
+        BinarySessionCodec.decode(decoded, BinarySessionCodec.encode(session));
+        assertNull(decoded.string);
+        assertNull(decoded.list);
+        assertNull(decoded.mode);
+    }
+
+    @Test
+    public void testChangedFields() throws IOException {
+        OldSession session = new OldSession();
+        session.count = 12;
+        session.removed = "gone";
+        session.renamedType = "not a number";
+        session.values.put("a", 3);
+
+        NewSession decoded = new NewSession();
+        BinarySessionCodec.decode(decoded, BinarySessionCodec.encode(session));
+        // Numbers are widened, values that no longer fit are skipped, and new settings keep their defaults
+        assertEquals(12, decoded.count);
+        assertEquals(5, decoded.renamedType);
+        assertEquals(Long.valueOf(3), decoded.values.get("a"));
+        assertEquals("default", decoded.added);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNewerVersion() throws IOException {
+        byte[] data = BinarySessionCodec.encode(new NewSession());
+        data[0] = (byte) 0xff;
+        BinarySessionCodec.decode(new NewSession(), data);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sk89q.commandbook.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LogSessionStoreTest {
+    private File dir;
+    private File file;
+    private LogSessionStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("sessions", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, "sessions.log");
+        store = new LogSessionStore(file);
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                child.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private void reopen() throws IOException {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+        store = new LogSessionStore(file);
+    }
+
+    private static byte[] data(String value) {
+        return value.getBytes();
+    }
+
+    private String load(String commander, String sessionType) throws IOException {
+        byte[] data = store.load("player", commander, sessionType);
+        return data == null ? null : new String(data);
+    }
+
+    @Test
+    public void testSaveLoadDelete() throws IOException {
+        store.save("player", "alice", "afk", data("one"));
+        store.save("player", "alice", "freeze", data("two"));
+        store.save("player", "alice", "afk", data("three"));
+        store.save("console", "alice", "afk", data("four"));
+        assertEquals("three", load("alice", "afk"));
+        assertEquals("two", load("alice", "freeze"));
+        assertNull(load("bob", "afk"));
+
+        store.delete("player", "alice", "freeze");
+        assertNull(load("alice", "freeze"));
+        Map<String, byte[]> sessions = store.scan("player", "alice");
+        assertEquals(1, sessions.size());
+        assertEquals("three", new String(sessions.get("afk")));
+        assertEquals("four", new String(store.load("console", "alice", "afk")));
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        store.save("player", "alice", "afk", data("one"));
+        store.save("player", "bob", "afk", data("two"));
+        store.save("player", "alice", "afk", data(""));
+        store.delete("player", "bob", "afk");
+        store.flush();
+        reopen();
+        assertEquals("", load("alice", "afk"));
+        assertNull(load("bob", "afk"));
+        assertTrue(store.scan("player", "bob").isEmpty());
+    }
+
+    private void assertTornTailDiscarded(long length) throws IOException {
+        reopen();
+        assertEquals("one", load("alice", "afk"));
+        assertEquals("two", load("bob", "afk"));
+        assertNull(load("carol", "afk"));
+        assertEquals(length, file.length());
+
+        // New records go where the torn one was
+        store.save("player", "dave", "afk", data("four"));
+        reopen();
+        assertEquals("two", load("bob", "afk"));
+        assertEquals("four", load("dave", "afk"));
+    }
+
+    private long saveWithTail() throws IOException {
+        store.save("player", "alice", "afk", data("one"));
+        store.save("player", "bob", "afk", data("two"));
+        store.flush();
+        long length = file.length();
+        store.save("player", "carol", "afk", data("three"));
+        store.close();
+        store = null;
+        return length;
+    }
+
+    @Test
+    public void testTruncatedRecordIsDiscarded() throws IOException {
+        long length = saveWithTail();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        assertTornTailDiscarded(length);
+    }
+
+    @Test
+    public void testCorruptRecordIsDiscarded() throws IOException {
+        long length = saveWithTail();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Damage the data of the last record, so that its checksum no longer matches
+            raf.seek(raf.length() - 5);
+            raf.write('x');
+        } finally {
+            raf.close();
+        }
+        assertTornTailDiscarded(length);
+    }
+
+    @Test
+    public void testPartialLengthIsDiscarded() throws IOException {
+        long length = saveWithTail();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length + 2);
+        } finally {
+            raf.close();
+        }
+        assertTornTailDiscarded(length);
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            store.save("player", "alice", "afk", data("alice" + i));
+            store.save("player", "bob", "afk", data("bob" + i));
+        }
+        store.delete("player", "bob", "afk");
+        store.save("player", "carol", "freeze", data("carol"));
+        long before = file.length();
+
+        assertTrue(store.compact());
+        assertTrue(file.length() < before);
+        assertFalse(new File(file.getPath() + ".compact").exists());
+        assertEquals("alice99", load("alice", "afk"));
+        assertNull(load("bob", "afk"));
+        assertEquals("carol", load("carol", "freeze"));
+
+        // The store stays usable, and the compacted file can be read back
+        store.save("player", "bob", "afk", data("again"));
+        reopen();
+        assertEquals("alice99", load("alice", "afk"));
+        assertEquals("again", load("bob", "afk"));
+        assertEquals("carol", load("carol", "freeze"));
+    }
+
+    @Test
+    public void testRecoversCompactedFile() throws IOException {
+        store.save("player", "alice", "afk", data("one"));
+        store.save("player", "alice", "afk", data("two"));
+        assertTrue(store.compact());
+        store.close();
+        store = null;
+
+        // A crash after the old file was moved aside, before the compacted file replaced it
+        File compact = new File(file.getPath() + ".compact");
+        File backup = new File(file.getPath() + ".bak");
+        assertTrue(file.renameTo(compact));
+        RandomAccessFile raf = new RandomAccessFile(backup, "rw");
+        try {
+            raf.write(new byte[] {0, 0, 0, 0});
+        } finally {
+            raf.close();
+        }
+
+        store = new LogSessionStore(file);
+        assertEquals("two", load("alice", "afk"));
+        assertFalse(compact.exists());
+        assertFalse(backup.exists());
+    }
+
+    @Test
+    public void testRecoversBackupFile() throws IOException {
+        store.save("player", "alice", "afk", data("one"));
+        store.close();
+        store = null;
+
+        // A crash after the old file was moved aside, with no compacted file written
+        assertTrue(file.renameTo(new File(file.getPath() + ".bak")));
+        store = new LogSessionStore(file);
+        assertEquals("one", load("alice", "afk"));
+    }
+
+    @Test
+    public void testIgnoresUnfinishedCompaction() throws IOException {
+        store.save("player", "alice", "afk", data("one"));
+        store.close();
+        store = null;
+
+        // A compaction that stopped part way through leaves the log in place
+        File compact = new File(file.getPath() + ".compact");
+        RandomAccessFile raf = new RandomAccessFile(compact, "rw");
+        try {
+            raf.write(new byte[] {0, 0, 0, 9, 1});
+        } finally {
+            raf.close();
+        }
+        store = new LogSessionStore(file);
+        assertEquals("one", load("alice", "afk"));
+        store.save("player", "alice", "afk", data("two"));
+        assertTrue(store.compact());
+        reopen();
+        assertEquals("two", load("alice", "afk"));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.sk89q.commandbook.util;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    private static List<String> advance(TimingWheel<String> wheel, long now) {
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(now, expired);
+        return expired;
+    }
+
+    @Test
+    public void testDeadlineIsRoundedUp() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1000, 0);
+        wheel.schedule("a", 1500);
+        assertTrue(advance(wheel, 1999).isEmpty());
+        assertEquals(Arrays.asList("a"), advance(wheel, 2000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPastDeadlineIsDueOnNextAdvance() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1000, 10000);
+        wheel.schedule("a", 5000);
+        wheel.schedule("b", 10000);
+        assertEquals(2, wheel.size());
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), new HashSet<String>(advance(wheel, 10000)));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCascadesThroughEveryLevel() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+        // One deadline on each level: below 64, 64^2, 64^3 and 64^4 ticks away
+        long[] deadlines = {50, 3000, 200000, 15000000};
+        for (long deadline : deadlines) {
+            wheel.schedule(String.valueOf(deadline), deadline);
+        }
+        for (long deadline : deadlines) {
+            assertTrue(advance(wheel, deadline - 1).isEmpty());
+            assertEquals(Arrays.asList(String.valueOf(deadline)), advance(wheel, deadline));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testDeadlineBeyondSpan() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+        long span = 1L << 24;
+        long deadline = 3 * span + 17;
+        wheel.schedule("far", deadline);
+        assertTrue(advance(wheel, span).isEmpty());
+        assertTrue(advance(wheel, deadline - 1).isEmpty());
+        assertEquals(1, wheel.size());
+        assertEquals(Arrays.asList("far"), advance(wheel, deadline));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testItemsAreReturnedOnceWhenDue() {
+        Random random = new Random(7);
+        long now = 123456;
+        TimingWheel<Long> wheel = new TimingWheel<Long>(10, now);
+        Set<Long> pending = new HashSet<Long>();
+        for (int i = 0; i < 5000; i++) {
+            // Spread the deadlines over all levels; each one is unique
+            long deadline = now + random.nextInt(1 << (6 * (1 + random.nextInt(4)))) * 10L + i % 10;
+            if (pending.add(deadline)) {
+                wheel.schedule(deadline, deadline);
+            }
+        }
+        assertEquals(pending.size(), wheel.size());
+
+        while (!pending.isEmpty()) {
+            now += 1 + random.nextInt(200000);
+            List<Long> expired = new ArrayList<Long>();
+            wheel.advance(now, expired);
+            for (Long deadline : expired) {
+                assertTrue("returned early: " + deadline + " at " + now, deadline <= now);
+                assertTrue("returned twice: " + deadline, pending.remove(deadline));
+            }
+            for (Long deadline : pending) {
+                // Deadlines are rounded up to the next tick
+                long due = (deadline + 9) / 10 * 10;
+                assertTrue("not returned: " + deadline + " at " + now, due > now);
+            }
+        }
+        assertEquals(0, wheel.size());
+    }
+}